@@ -0,0 +1,123 @@
+/*
+ * BookRDFBenchmark.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The RDF step of one book: the extraction of the format URLs and the
+ * meta-information (formerly formatURLsFromDoc and extractMetaInfo), and
+ * the enriched RDF for the output. As baseline, the same work the way it
+ * was done before, with a DOM, XPath and fresh JAXP factories per book.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BookRDFBenchmark {
+
+    private byte[] rdf;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.rdf = Fixtures.load("book.rdf");
+    }
+
+    @Benchmark
+    public BookRDF extract() {
+        BookRDF book = new BookRDF(Fixtures.RDF_SYSTEM_ID, "11");
+        book.loadRDF(new ByteArrayInputStream(this.rdf), Fixtures.RDF_SYSTEM_ID);
+        return book;
+    }
+
+    @Benchmark
+    public String extractAndLinearize() {
+        BookRDF book = this.extract();
+        book.addDocumentInfo("http://ltl.emich.edu/gutenberg/", 123456L, "utf-8", "11");
+        return book.linearize();
+    }
+
+    /**
+     * extractAndLinearize with a DOM and fresh factories.
+     */
+    @Benchmark
+    public String domFreshFactories() throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        InputSource source = new InputSource(new ByteArrayInputStream(this.rdf));
+        source.setSystemId(Fixtures.RDF_SYSTEM_ID);
+        Document doc = dbFactory.newDocumentBuilder().parse(source);
+        doc.getDocumentElement().normalize();
+
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(XMLToolkit.PG_NAMESPACES);
+        XPathExpression typeEncoding = xpath.compile(".//rdf:value/text()");
+        NodeList nodes = doc.getElementsByTagName("pgterms:file");
+        int n = 0;
+        for (int i = 0; i < nodes.getLength(); i++) {
+            n += ((NodeList) typeEncoding.evaluate(nodes.item(i), XPathConstants.NODESET)).getLength();
+        }
+        n += doc.getElementsByTagName("dcterms:title").getLength();
+
+        Transformer trans = TransformerFactory.newInstance().newTransformer();
+        trans.setOutputProperty(OutputKeys.INDENT, "yes");
+        trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+        trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+        trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        StringWriter strw = new StringWriter();
+        trans.transform(new DOMSource(doc), new StreamResult(strw));
+        return n + strw.toString();
+    }
+}
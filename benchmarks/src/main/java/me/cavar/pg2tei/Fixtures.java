@@ -0,0 +1,87 @@
+/*
+ * Fixtures.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The checked-in inputs of the benchmarks: a catalog.rdf with 200 entries,
+ * the RDF of book 11 and a small HTML book.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+final class Fixtures {
+
+    static final String RDF_SYSTEM_ID = "http://www.gutenberg.org/ebooks/11.rdf";
+
+    private Fixtures() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("Fixture not on the classpath: " + name);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    static String loadString(String name) throws IOException {
+        return new String(load(name), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The catalog meta-information of book 11, as the RDFParser collects it.
+     */
+    static TEIDoc teiDoc() {
+        TEIDoc doc = new TEIDoc();
+        doc.id = "etext11";
+        doc.idN = 11;
+        doc.publisher = "Project Gutenberg";
+        doc.title.add("Alice's Adventures in Wonderland");
+        doc.creator = "Carroll, Lewis, 1832-1898";
+        doc.friendlyTitle = "Alice's Adventures in Wonderland by Lewis Carroll";
+        doc.languageISO = "ISO639-2";
+        doc.languageCode = "en";
+        doc.rights.add("http://www.gutenberg.org/license");
+        doc.subjectHeadingsLCC.add("Fantasy");
+        doc.classificationLCC = "PR";
+        doc.createdW3CDTF = "2008-06-27";
+        return doc;
+    }
+
+    /**
+     * Swallows the progress line a started pipeline prints every few
+     * seconds and at shutdown, it would end up between the JMH lines.
+     */
+    static void quiet() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * MergeWriteBenchmark.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The last two steps of a book in the pipeline: merging header and
+ * converted text into the TEI XML file, and writing the enriched RDF,
+ * renaming both into place and journaling the book, with the forces to
+ * disk that go with it. Runs in a temporary output folder.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeWriteBenchmark {
+
+    private Path outputFolder;
+    private BookPipeline pipeline;
+    private BookRDF bookRDF;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.quiet();
+        this.outputFolder = Files.createTempDirectory("pg2tei-bench");
+        File bookFolder = new File(this.outputFolder.toFile(), "11");
+        bookFolder.mkdirs();
+        Files.write(new File(bookFolder, "11.html").toPath(), Fixtures.load("book.html"));
+        this.pipeline = new BookPipeline("http://localhost/ebooks/", this.outputFolder.toString());
+        this.pipeline.start();
+        this.bookRDF = new BookRDF(Fixtures.RDF_SYSTEM_ID, "11");
+        this.bookRDF.loadRDF(new ByteArrayInputStream(Fixtures.load("book.rdf")), Fixtures.RDF_SYSTEM_ID);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.pipeline.shutdown();
+        try (Stream<Path> paths = Files.walk(this.outputFolder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public long mergeAndWrite() {
+        BookJob job = new BookJob(Fixtures.teiDoc());
+        job.bookRDF = this.bookRDF;
+        job.htmlBook = new HTMLBook("http://localhost/11.html", this.outputFolder.toString(), 11, "utf-8");
+        if (!this.pipeline.merge(job)) {
+            throw new IllegalStateException("merge failed");
+        }
+        this.pipeline.write(job);
+        return job.teiLength;
+    }
+}
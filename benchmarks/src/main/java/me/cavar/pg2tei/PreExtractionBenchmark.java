@@ -0,0 +1,84 @@
+/*
+ * PreExtractionBenchmark.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The <pre>-extraction of HTMLBook on the fixture book, and on large books
+ * made of copies of its body.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreExtractionBenchmark {
+
+    /**
+     * Copies of the body; 1 is about 7 KB, 512 about 3 MB.
+     */
+    @Param({"1", "64", "512"})
+    public int copies;
+    private String html;
+
+    @Setup
+    public void setUp() throws Exception {
+        String book = Fixtures.loadString("book.html");
+        int start = book.indexOf("<body>") + "<body>".length();
+        int end = book.indexOf("</body>");
+        StringBuilder strb = new StringBuilder(book.length() * this.copies);
+        strb.append(book, 0, start);
+        for (int i = 0; i < this.copies; i++) {
+            strb.append(book, start, end);
+        }
+        strb.append(book, end, book.length());
+        this.html = strb.toString();
+    }
+
+    @Benchmark
+    public int extractPre() throws Exception {
+        HTMLBook book = new HTMLBook("http://localhost/11.html", System.getProperty("java.io.tmpdir"), 11, "utf-8");
+        book.extractPre(new StringReader(this.html), Writer.nullWriter());
+        return book.preParagraphs.size();
+    }
+}
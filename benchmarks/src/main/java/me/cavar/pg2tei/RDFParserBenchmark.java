@@ -0,0 +1,103 @@
+/*
+ * RDFParserBenchmark.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Catalog parsing throughput of the RDFParser, in entries per second. The
+ * entries are counted instead of handed to the book pipeline.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RDFParserBenchmark {
+
+    /**
+     * A pipeline that only counts the submitted entries.
+     */
+    static class CountingPipeline extends BookPipeline {
+
+        int submitted;
+
+        CountingPipeline() {
+            super("http://localhost/ebooks/", System.getProperty("java.io.tmpdir"));
+        }
+
+        @Override
+        public void submit(TEIDoc doc, long catalogOffset, String fingerprint) {
+            this.submitted++;
+        }
+    }
+
+    /**
+     * Reported per second next to the catalogs.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Entries {
+
+        public long entries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.entries = 0;
+        }
+    }
+    private byte[] catalog;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.catalog = Fixtures.load("catalog.rdf");
+    }
+
+    @Benchmark
+    public int parseCatalog(Entries counter) throws Exception {
+        CountingPipeline pipeline = new CountingPipeline();
+        RDFParser parser = new RDFParser(pipeline);
+        parser.parseCatalog(CatalogStream.open(new ByteArrayInputStream(this.catalog), 0L), "catalog.rdf");
+        counter.entries += pipeline.submitted;
+        return pipeline.submitted;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * TEIHeaderBenchmark.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The TEI header of one book (formerly TEIDoc.genTEIXMLDom and its
+ * serialization), written from the compiled TEIHeaderTemplate.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TEIHeaderBenchmark {
+
+    private TEIDoc doc;
+    private TEIHeaderTemplate template;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() {
+        this.doc = Fixtures.teiDoc();
+        this.template = TEIHeaderTemplate.getShared();
+        this.out = new ByteArrayOutputStream(16 * 1024);
+    }
+
+    @Benchmark
+    public int header() throws Exception {
+        this.out.reset();
+        this.template.writeHead(this.doc, this.out);
+        this.template.writeTail(this.doc, this.out);
+        return this.out.size();
+    }
+
+    /**
+     * The catalog entry fingerprint the journal keeps per book.
+     */
+    @Benchmark
+    public String fingerprint() {
+        return this.doc.fingerprint();
+    }
+}
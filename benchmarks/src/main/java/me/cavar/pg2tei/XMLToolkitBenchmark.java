@@ -0,0 +1,129 @@
+/*
+ * XMLToolkitBenchmark.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The per-book overhead of the JAXP factories: the same DOM parse of the
+ * book RDF, XPath over the pgterms:file nodes and indented serialization,
+ * once with fresh factories per book as the code did before XMLToolkit,
+ * and once with the builder, compiled XPath and serializer the toolkit
+ * keeps per thread. The difference is what XMLToolkit saves per book.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XMLToolkitBenchmark {
+
+    private static final String FILE_VALUES = ".//rdf:value/text()";
+    private byte[] rdf;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.rdf = Fixtures.load("book.rdf");
+    }
+
+    /**
+     * Before: new factories, builder, XPath and transformer for every book.
+     */
+    @Benchmark
+    public String freshFactories() throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        Document doc = dbFactory.newDocumentBuilder().parse(this.source());
+        doc.getDocumentElement().normalize();
+
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(XMLToolkit.PG_NAMESPACES);
+        int n = this.count(doc, xpath.compile(FILE_VALUES));
+
+        Transformer trans = TransformerFactory.newInstance().newTransformer();
+        trans.setOutputProperty(OutputKeys.INDENT, "yes");
+        trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+        trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+        trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        StringWriter strw = new StringWriter();
+        trans.transform(new DOMSource(doc), new StreamResult(strw));
+        return n + strw.toString();
+    }
+
+    /**
+     * After: the same work with the objects XMLToolkit keeps per thread.
+     */
+    @Benchmark
+    public String toolkit() throws Exception {
+        Document doc = XMLToolkit.parse(this.source());
+        doc.getDocumentElement().normalize();
+        int n = this.count(doc, XMLToolkit.xpath(FILE_VALUES));
+        return n + XMLToolkit.serialize(doc);
+    }
+
+    private InputSource source() {
+        InputSource source = new InputSource(new ByteArrayInputStream(this.rdf));
+        source.setSystemId(Fixtures.RDF_SYSTEM_ID);
+        return source;
+    }
+
+    private int count(Document doc, XPathExpression values) throws Exception {
+        NodeList nodes = doc.getElementsByTagName("pgterms:file");
+        int n = 0;
+        for (int i = 0; i < nodes.getLength(); i++) {
+            n += ((NodeList) values.evaluate(nodes.item(i), XPathConstants.NODESET)).getLength();
+        }
+        return n + doc.getElementsByTagName("dcterms:title").getLength();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * BookEvent.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * A Java Flight Recorder event for one step of one book: the catalog entry,
+ * the RDF fetch, the HTML fetch, each subprocess, DOM parse or stylesheet
+ * run, and the writing of the TEI and RDF files. Every event carries the
+ * book ID, the bytes read and written, and the outcome, so a recording
+ * (java -XX:StartFlightRecording=... or the -j option) shows the timeline
+ * of every book next to GC and I/O. BookTrace summarizes a recording.
+ *
+ * While no recording runs, begin() and commit() cost next to nothing.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+@Name(BookEvent.NAME)
+@Label("Book Step")
+@Category("PG2TEI")
+@Description("One step of the conversion of a book")
+@StackTrace(false)
+public class BookEvent extends Event {
+
+    public static final String NAME = "me.cavar.pg2tei.BookStep";
+    // the steps
+    public static final String CATALOG = "catalog";
+    public static final String RDF = "rdf";
+    public static final String HTML = "html";
+    public static final String TEXTUTIL = "textutil";
+    public static final String ODTTOTEI = "odttotei";
+    public static final String DOM_PARSE = "dom-parse";
+    public static final String XSLT = "xslt";
+    public static final String CONVERT = "convert";
+    public static final String TEI = "tei";
+    public static final String WRITE = "write";
+    // the outcomes
+    public static final String OK = "ok";
+    public static final String SKIPPED = "skipped";
+    public static final String FAILED = "failed";
+    @Label("Book ID")
+    public int id;
+    @Label("Step")
+    public String step;
+    @Label("Bytes In")
+    @DataAmount
+    public long bytesIn;
+    @Label("Bytes Out")
+    @DataAmount
+    public long bytesOut;
+    @Label("Outcome")
+    public String outcome;
+
+    /**
+     * Starts the event.
+     *
+     * @param id the book ID
+     * @param step
+     */
+    public BookEvent(int id, String step) {
+        this.id = id;
+        this.step = step;
+        this.begin();
+    }
+
+    /**
+     * Starts the event for a book ID given as string, e.g. BookJob.fileID.
+     */
+    public BookEvent(String id, String step) {
+        this(parseID(id), step);
+    }
+
+    /**
+     * Ends the event and commits it, if a recording wants it.
+     */
+    public void finish(String outcome) {
+        this.end();
+        if (this.shouldCommit()) {
+            this.outcome = outcome;
+            this.commit();
+        }
+    }
+
+    private static int parseID(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
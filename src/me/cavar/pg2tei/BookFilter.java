@@ -0,0 +1,415 @@
+/*
+ * BookFilter.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Selects the books of a run by their catalog entry, with an expression
+ * like
+ *
+ *   lang in (en, de) and lcc startsWith "PR"
+ *   type = Text and not lcsh contains "Juvenile" and id in (1-5000, 10000)
+ *
+ * The expression is compiled once and tested against the fields of every
+ * entry as soon as it is parsed, so the books not selected are never
+ * fetched or converted.
+ *
+ * Fields: id, lang, lcsh, lcc, type, title, creator, contributor,
+ * publisher, rights, created. Operators: = != < <= > >= in (a, b, ...)
+ * startsWith endsWith contains, combined with and, or, not and
+ * parentheses. A field with several values (lcsh, title, ...) matches if
+ * one of them does, except for !=, which matches if none is equal (as
+ * not field = value does). Strings are compared ignoring case; values with
+ * blanks or special characters are quoted. The IDs of id in (...) can be
+ * ranges like 1-5000. Parentheses nest at most MAX_DEPTH deep.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class BookFilter {
+
+    /**
+     * Maximum nesting of parentheses, the parser recurses for each.
+     */
+    public static final int MAX_DEPTH = 100;
+    /**
+     * The expression as given.
+     */
+    private final String expression;
+    private final Predicate<TEIDoc> predicate;
+    // the parser state
+    private List<String> tokens;
+    private int next;
+    private int depth;
+
+    private BookFilter(String expression) {
+        this.expression = expression;
+        this.tokens = tokenize(expression);
+        this.next = 0;
+        this.depth = 0;
+        Predicate<TEIDoc> p = this.parseOr();
+        if (this.next < this.tokens.size()) {
+            throw this.error("Unexpected '" + this.tokens.get(this.next) + "'");
+        }
+        this.predicate = p;
+        this.tokens = null;
+    }
+
+    /**
+     * Compiles a filter expression.
+     *
+     * @throws IllegalArgumentException with the position of the error
+     */
+    public static BookFilter compile(String expression) {
+        return new BookFilter(expression);
+    }
+
+    /**
+     * True if the book is selected.
+     */
+    public boolean matches(TEIDoc doc) {
+        return this.predicate.test(doc);
+    }
+
+    @Override
+    public String toString() {
+        return this.expression;
+    }
+
+    // the terms of and and or are tested in a loop, not by nested
+    // Predicate.and() and or(), which would need a stack frame per term
+    private Predicate<TEIDoc> parseOr() {
+        final List<Predicate<TEIDoc>> terms = new ArrayList<>();
+        terms.add(this.parseAnd());
+        while (this.accept("or")) {
+            terms.add(this.parseAnd());
+        }
+        if (terms.size() == 1) {
+            return terms.get(0);
+        }
+        return doc -> {
+            for (Predicate<TEIDoc> term : terms) {
+                if (term.test(doc)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private Predicate<TEIDoc> parseAnd() {
+        final List<Predicate<TEIDoc>> terms = new ArrayList<>();
+        terms.add(this.parseNot());
+        while (this.accept("and")) {
+            terms.add(this.parseNot());
+        }
+        if (terms.size() == 1) {
+            return terms.get(0);
+        }
+        return doc -> {
+            for (Predicate<TEIDoc> term : terms) {
+                if (!term.test(doc)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private Predicate<TEIDoc> parseNot() {
+        boolean negate = false;
+        while (this.accept("not")) {
+            negate = !negate;
+        }
+        Predicate<TEIDoc> p;
+        if (this.accept("(")) {
+            if (++this.depth > MAX_DEPTH) {
+                throw this.error("More than " + MAX_DEPTH + " nested parentheses");
+            }
+            p = this.parseOr();
+            this.expect(")");
+            this.depth -= 1;
+        } else {
+            p = this.parseCondition();
+        }
+        return negate ? p.negate() : p;
+    }
+
+    /**
+     * field operator value(s)
+     */
+    private Predicate<TEIDoc> parseCondition() {
+        String field = this.word("a field");
+        if (field.equalsIgnoreCase("id")) {
+            return this.parseIDCondition();
+        }
+        final Function<TEIDoc, List<String>> values = field(field);
+        if (values == null) {
+            throw this.error("Unknown field '" + field + "'");
+        }
+        String op = this.word("an operator");
+        final Predicate<String> test;
+        if (op.equals("!=")) {
+            // none of the values is equal
+            final String value = this.value().toLowerCase(Locale.ROOT);
+            return doc -> {
+                for (String v : values.apply(doc)) {
+                    if (v != null && v.toLowerCase(Locale.ROOT).equals(value)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+        if (op.equalsIgnoreCase("in")) {
+            final List<String> set = new ArrayList<>();
+            for (String v : this.valueList()) {
+                set.add(v.toLowerCase(Locale.ROOT));
+            }
+            test = v -> set.contains(v);
+        } else {
+            final String value = this.value().toLowerCase(Locale.ROOT);
+            switch (op.toLowerCase(Locale.ROOT)) {
+                case "=":
+                    test = v -> v.equals(value);
+                    break;
+                case "<":
+                    test = v -> v.compareTo(value) < 0;
+                    break;
+                case "<=":
+                    test = v -> v.compareTo(value) <= 0;
+                    break;
+                case ">":
+                    test = v -> v.compareTo(value) > 0;
+                    break;
+                case ">=":
+                    test = v -> v.compareTo(value) >= 0;
+                    break;
+                case "startswith":
+                    test = v -> v.startsWith(value);
+                    break;
+                case "endswith":
+                    test = v -> v.endsWith(value);
+                    break;
+                case "contains":
+                    test = v -> v.contains(value);
+                    break;
+                default:
+                    throw this.error("Unknown operator '" + op + "'");
+            }
+        }
+        return doc -> {
+            for (String v : values.apply(doc)) {
+                if (v != null && test.test(v.toLowerCase(Locale.ROOT))) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private Predicate<TEIDoc> parseIDCondition() {
+        String op = this.word("an operator");
+        if (op.equalsIgnoreCase("in")) {
+            final List<int[]> ranges = new ArrayList<>();
+            for (String v : this.valueList()) {
+                try {
+                    ranges.addAll(CatalogIndex.parseIDs(v));
+                } catch (IllegalArgumentException e) {
+                    throw this.error("Not an ID or ID range: '" + v + "'");
+                }
+            }
+            return doc -> {
+                for (int[] r : ranges) {
+                    if (doc.idN >= r[0] && doc.idN <= r[1]) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+        String v = this.value();
+        final int value;
+        try {
+            value = Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw this.error("Not an ID: '" + v + "'");
+        }
+        switch (op) {
+            case "=":
+                return doc -> doc.idN == value;
+            case "!=":
+                return doc -> doc.idN != value;
+            case "<":
+                return doc -> doc.idN < value;
+            case "<=":
+                return doc -> doc.idN <= value;
+            case ">":
+                return doc -> doc.idN > value;
+            case ">=":
+                return doc -> doc.idN >= value;
+            default:
+                throw this.error("Unknown operator for id '" + op + "'");
+        }
+    }
+
+    /**
+     * The values of a field, null for an unknown field.
+     */
+    private static Function<TEIDoc, List<String>> field(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "lang":
+            case "language":
+                return doc -> one(doc.languageCode);
+            case "lcsh":
+            case "subject":
+                return doc -> doc.subjectHeadingsLCC;
+            case "lcc":
+                return doc -> one(doc.classificationLCC);
+            case "type":
+                return doc -> one(doc.projGCategory);
+            case "title":
+                return doc -> doc.title;
+            case "creator":
+                return doc -> one(doc.creator);
+            case "contributor":
+                return doc -> doc.contributors;
+            case "publisher":
+                return doc -> one(doc.publisher);
+            case "rights":
+                return doc -> doc.rights;
+            case "created":
+                return doc -> one(doc.createdW3CDTF);
+            default:
+                return null;
+        }
+    }
+
+    private static List<String> one(String value) {
+        return value == null ? Collections.<String>emptyList() : Collections.singletonList(value);
+    }
+
+    /**
+     * ( value, value, ... )
+     */
+    private List<String> valueList() {
+        this.expect("(");
+        ArrayList<String> values = new ArrayList<>();
+        values.add(this.value());
+        while (this.accept(",")) {
+            values.add(this.value());
+        }
+        this.expect(")");
+        return values;
+    }
+
+    /**
+     * A word or a quoted string, without the quotes.
+     */
+    private String value() {
+        String t = this.word("a value");
+        if (t.length() >= 2 && (t.charAt(0) == '"' || t.charAt(0) == '\'')) {
+            return t.substring(1, t.length() - 1);
+        }
+        return t;
+    }
+
+    private String word(String what) {
+        if (this.next >= this.tokens.size()) {
+            throw this.error("Expected " + what + " at the end");
+        }
+        String t = this.tokens.get(this.next);
+        if (t.equals("(") || t.equals(")") || t.equals(",")) {
+            throw this.error("Expected " + what + ", not '" + t + "'");
+        }
+        this.next += 1;
+        return t;
+    }
+
+    private boolean accept(String token) {
+        if (this.next < this.tokens.size() && this.tokens.get(this.next).equalsIgnoreCase(token)) {
+            this.next += 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!this.accept(token)) {
+            throw this.error("Expected '" + token + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at token " + (this.next + 1) + " of: " + this.expression);
+    }
+
+    /**
+     * Splits into parentheses, commas, operators, quoted strings (with the
+     * quotes) and words.
+     */
+    private static List<String> tokenize(String s) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i += 1;
+            } else if (c == '(' || c == ')' || c == ',') {
+                tokens.add(String.valueOf(c));
+                i += 1;
+            } else if (c == '"' || c == '\'') {
+                int end = s.indexOf(c, i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated string in: " + s);
+                }
+                tokens.add(s.substring(i, end + 1));
+                i = end + 1;
+            } else if (c == '=' || c == '<' || c == '>' || c == '!') {
+                int end = i + 1;
+                if (end < s.length() && s.charAt(end) == '=') {
+                    end += 1;
+                }
+                tokens.add(s.substring(i, end));
+                i = end;
+            } else {
+                int end = i;
+                while (end < s.length() && "()=<>!,\"'".indexOf(s.charAt(end)) < 0
+                        && !Character.isWhitespace(s.charAt(end))) {
+                    end += 1;
+                }
+                tokens.add(s.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+}
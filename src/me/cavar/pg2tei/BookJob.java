@@ -0,0 +1,80 @@
+/*
+ * BookJob.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The work item that travels through the stages of the BookPipeline.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.File;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class BookJob {
+
+    /**
+     * The catalog entry as parsed, never changed; a retry of the book
+     * starts from it again.
+     */
+    public final TEIDoc catalogDoc;
+    /**
+     * The meta-information of this attempt: a copy of the catalog entry,
+     * with the additions of the book RDF and the HTML-file.
+     */
+    public TEIDoc teiDoc;
+    /**
+     * The ID string (number) of the book, used as folder and file name.
+     */
+    public String fileID;
+    /**
+     * The RDF of the individual book.
+     */
+    public BookRDF bookRDF;
+    /**
+     * The HTML-version of the book.
+     */
+    public HTMLBook htmlBook;
+    /**
+     * The temporary TEI XML file, written by the merge stage.
+     */
+    public File teiFile;
+    /**
+     * Size of the TEI XML file in bytes.
+     */
+    public long teiLength;
+    /**
+     * SHA-256 of the TEI XML file.
+     */
+    public String teiChecksum;
+
+    /**
+     * Constructor.
+     */
+    public BookJob(TEIDoc teiDoc) {
+        this.catalogDoc = teiDoc;
+        this.teiDoc = teiDoc.copy();
+        this.fileID = Integer.toString(teiDoc.idN);
+    }
+}
@@ -0,0 +1,983 @@
+/*
+ * BookPipeline.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Staged processing of the books found in the catalog. Every stage (RDF
+ * fetch, HTML fetch, conversion, TEI merge, write) has its own worker pool
+ * and a bounded queue, so that network, subprocess and disk waits of
+ * different books overlap. A full queue blocks the stage that feeds it,
+ * which in the end throttles the catalog parser.
+ *
+ * The busy and CPU time of every stage, the length of its queue and the
+ * time spent in each step of a book are recorded in the shared Metrics.
+ *
+ * The downloads do not hold a worker. The rdf stage sends the RDF request
+ * of a book asynchronously; when it arrives it is parsed, the request for
+ * the HTML-file is sent, and when that is on disk the book goes to the
+ * html stage, which preprocesses it. A book has at most one request in
+ * flight, and the number of books fetching at once is limited (see
+ * setMaxFetches()), so many requests of different books overlap while the
+ * number of threads stays the same. A book whose RDF and HTML-file did not
+ * arrive within a deadline (see setFetchDeadline()) fails with a
+ * TimeoutException and goes on the retry queue. Its request still in
+ * flight is not waited for; it keeps the place of the book among the
+ * fetching ones until it ends (the HTTP timeouts bound it), nothing is
+ * requested after it, and what it fetched is dropped.
+ *
+ * A book that fails for a transient reason (see RetryQueue.isTransient())
+ * goes on the retry queue instead of being given up, and through the
+ * pipeline again after the catalog, each time after a longer backoff. A
+ * book the server does not have is put in the NegativeCache, and the next
+ * runs skip it until the entry expires.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.NodeList;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class BookPipeline {
+
+    /**
+     * The default time in seconds a book has for its RDF and HTML-file.
+     */
+    public static final long DEFAULT_FETCH_DEADLINE = TimeUnit.MINUTES.toSeconds(10);
+
+    /**
+     * The stages of the pipeline, in processing order, with their default
+     * number of workers and queue depth. With the in-process engine the
+     * conversion stage streams the TEI file itself, and merge is skipped.
+     */
+    public enum Stage {
+
+        RDF("rdf", 4, 64),
+        HTML("html", 4, 32),
+        CONVERT("convert", Runtime.getRuntime().availableProcessors(), 16),
+        MERGE("merge", 2, 8),
+        WRITE("write", 2, 8);
+        public final String label;
+        final int defaultWorkers;
+        final int defaultQueueDepth;
+
+        Stage(String label, int workers, int queueDepth) {
+            this.label = label;
+            this.defaultWorkers = workers;
+            this.defaultQueueDepth = queueDepth;
+        }
+
+        /**
+         * Returns the stage for a command line label like "html".
+         */
+        public static Stage forLabel(String label) {
+            for (Stage s : Stage.values()) {
+                if (s.label.equalsIgnoreCase(label)) {
+                    return s;
+                }
+            }
+            throw new IllegalArgumentException("Unknown pipeline stage: " + label);
+        }
+    }
+    /**
+     * Base URL of the individual RDF-files.
+     */
+    String ebookURLStr;
+    /**
+     * Root of the output tree.
+     */
+    String outputFolder;
+    /**
+     * Number of workers per stage.
+     */
+    private int[] workers;
+    /**
+     * Queue depth per stage.
+     */
+    private int[] queueDepth;
+    /**
+     * The worker pools, indexed by stage ordinal.
+     */
+    private ThreadPoolExecutor[] pools;
+    /**
+     * The HTML to TEI conversion engine, see HTMLBook.
+     */
+    private int engine;
+    /**
+     * The stylesheets of HTMLBook.ENGINE_XSLT, null for the default.
+     */
+    private List<File> stylesheets;
+    /**
+     * Number of books that made it through the write stage.
+     */
+    private AtomicInteger written;
+    /**
+     * The state of every book of this and earlier runs.
+     */
+    private RunJournal journal;
+    /**
+     * Only reprocess finished books whose catalog entry changed.
+     */
+    private boolean delta;
+    /**
+     * Where the stages record their timings.
+     */
+    private Metrics metrics;
+    /**
+     * The shard of the catalog this run converts, null for all books.
+     */
+    private Shard shard;
+    /**
+     * The selection of the books to convert, null for all books.
+     */
+    private BookFilter filter;
+    /**
+     * The maximum number of books with a request in flight.
+     */
+    private int maxFetches;
+    /**
+     * One permit per book from its RDF request until its HTML-file is
+     * handed to the html stage.
+     */
+    private Semaphore fetches;
+    /**
+     * Permits of books given up at their fetch deadline, held until their
+     * last request ends.
+     */
+    private AtomicInteger abandoned;
+    /**
+     * Handles the responses: parses the RDF and sends the HTML request.
+     */
+    private ThreadPoolExecutor fetchPool;
+    /**
+     * Hands the fetched books to the html stage, blocking while its queue
+     * is full. A thread of its own, so that the responses of other books
+     * are still handled and their deadlines only count the fetching.
+     */
+    private ThreadPoolExecutor handoffPool;
+    /**
+     * Seconds from the RDF request of a book until its HTML-file is on
+     * disk.
+     */
+    private long fetchDeadline;
+    /**
+     * The number of retries of a book that failed for a transient reason.
+     */
+    private int maxRetries;
+    private RetryQueue retries;
+    /**
+     * Time to live of the entries of the negative cache in seconds, 0 for
+     * no negative cache.
+     */
+    private long negativeTTL;
+    private NegativeCache negative;
+    /**
+     * The IDs of the books submitted or retried and not finished or
+     * deferred yet.
+     */
+    private Set<Integer> active;
+    /**
+     * When a book was last finished or deferred.
+     */
+    private volatile long lastSettled;
+
+    /**
+     * Constructor.
+     */
+    public BookPipeline(String ebookURLStr, String outputFolder) {
+        this.ebookURLStr = ebookURLStr;
+        this.outputFolder = outputFolder;
+        int n = Stage.values().length;
+        this.workers = new int[n];
+        this.queueDepth = new int[n];
+        for (Stage s : Stage.values()) {
+            this.workers[s.ordinal()] = s.defaultWorkers;
+            this.queueDepth[s.ordinal()] = s.defaultQueueDepth;
+        }
+        this.written = new AtomicInteger(0);
+        this.abandoned = new AtomicInteger(0);
+        this.engine = HTMLBook.ENGINE_JAVA;
+        this.maxFetches = 64;
+        this.maxRetries = RetryQueue.DEFAULT_RETRIES;
+        this.negativeTTL = NegativeCache.DEFAULT_TTL;
+        this.fetchDeadline = DEFAULT_FETCH_DEADLINE;
+        this.active = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Sets the number of retries of a book that failed for a transient
+     * reason, 0 for none. Must be called before start().
+     */
+    public void setRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("The number of retries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets how long books the server does not have are skipped, in
+     * seconds, 0 to try them in every run. Must be called before start().
+     */
+    public void setNegativeTTL(long seconds) {
+        if (seconds < 0L) {
+            throw new IllegalArgumentException("The time to live must not be negative");
+        }
+        this.negativeTTL = seconds;
+    }
+
+    /**
+     * Sets the time in seconds a book has from its RDF request until its
+     * HTML-file is on disk. shutdown() gives up on the books in the
+     * pipeline when none finished for twice this time.
+     */
+    public void setFetchDeadline(long seconds) {
+        if (seconds < 1L) {
+            throw new IllegalArgumentException("The fetch deadline must be positive");
+        }
+        this.fetchDeadline = seconds;
+    }
+
+    /**
+     * Sets the maximum number of books with an RDF or HTML request in
+     * flight. Must be called before start().
+     */
+    public void setMaxFetches(int maxFetches) {
+        if (maxFetches < 1) {
+            throw new IllegalArgumentException("The number of requests in flight must be positive");
+        }
+        this.maxFetches = maxFetches;
+    }
+
+    /**
+     * Selects the conversion engine, HTMLBook.ENGINE_JAVA,
+     * HTMLBook.ENGINE_ODT or HTMLBook.ENGINE_XSLT.
+     */
+    public void setEngine(int engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets the stylesheets HTMLBook.ENGINE_XSLT applies to the ODT content,
+     * in order.
+     */
+    public void setStylesheets(List<File> stylesheets) {
+        this.stylesheets = stylesheets;
+    }
+
+    /**
+     * Switches delta mode on: finished books are only converted again if
+     * their catalog entry changed since they were written.
+     */
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     *
+     * @return true in delta mode
+     */
+    public boolean isDelta() {
+        return this.delta;
+    }
+
+    /**
+     * Sets the pool size and queue depth of a stage. Must be called before
+     * start().
+     */
+    public void configure(Stage stage, int numWorkers, int depth) {
+        if (numWorkers < 1 || depth < 1) {
+            throw new IllegalArgumentException("Workers and queue depth must be positive: " + stage.label);
+        }
+        this.workers[stage.ordinal()] = numWorkers;
+        this.queueDepth[stage.ordinal()] = depth;
+    }
+
+    /**
+     * Parses a stage specification of the form "name=workers:queue", e.g.
+     * "html=8:32", or "name=workers" to keep the default queue depth.
+     */
+    public void configure(String spec) {
+        String[] parts = spec.split("=", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Stage spec must look like name=workers:queue: " + spec);
+        }
+        Stage stage = Stage.forLabel(parts[0].trim());
+        String[] nums = parts[1].split(":", 2);
+        int numWorkers = Integer.parseInt(nums[0].trim());
+        int depth = this.queueDepth[stage.ordinal()];
+        if (nums.length > 1) {
+            depth = Integer.parseInt(nums[1].trim());
+        }
+        this.configure(stage, numWorkers, depth);
+    }
+
+    /**
+     * Opens the run journal in the output folder and creates the worker
+     * pools.
+     */
+    public void start() throws IOException {
+        this.metrics = Metrics.getShared();
+        this.journal = new RunJournal(new File(this.outputFolder, "pg2tei.journal"));
+        this.retries = new RetryQueue(this.maxRetries);
+        if (this.negativeTTL > 0L) {
+            this.negative = new NegativeCache(new File(this.outputFolder, NegativeCache.FILE), this.negativeTTL);
+        }
+        this.pools = new ThreadPoolExecutor[Stage.values().length];
+        for (final Stage s : Stage.values()) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            ThreadFactory tf = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "pg2tei-" + s.label + "-" + threadNum.incrementAndGet());
+                    t.setDaemon(false);
+                    return t;
+                }
+            };
+            // a full queue blocks the submitting thread instead of rejecting
+            RejectedExecutionHandler block = new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Stage is shut down: " + s.label);
+                    }
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                }
+            };
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(this.workers[s.ordinal()],
+                    this.workers[s.ordinal()], 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(this.queueDepth[s.ordinal()]), tf, block);
+            this.pools[s.ordinal()] = pool;
+            this.metrics.gauge(Metrics.STAGE_QUEUED, s.label, () -> pool.getQueue().size());
+            this.metrics.gauge(Metrics.STAGE_ACTIVE, s.label, () -> pool.getActiveCount());
+        }
+        this.fetches = new Semaphore(this.maxFetches);
+        final AtomicInteger threadNum = new AtomicInteger(0);
+        this.fetchPool = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "pg2tei-fetch-" + threadNum.incrementAndGet());
+            }
+        });
+        this.handoffPool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "pg2tei-handoff");
+            }
+        });
+        this.metrics.gauge(Metrics.FETCHES, () -> this.maxFetches - this.fetches.availablePermits());
+        this.metrics.gauge(Metrics.RETRIES_QUEUED, () -> this.retries.size());
+        this.metrics.start();
+    }
+
+    /**
+     * Only converts the books of one shard of the catalog.
+     *
+     * @param shard null for all books
+     */
+    public void setShard(Shard shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Returns the shard of this run, null for all books.
+     */
+    public Shard getShard() {
+        return this.shard;
+    }
+
+    /**
+     * Only converts the books the filter selects.
+     *
+     * @param filter null for all books
+     */
+    public void setFilter(BookFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * True if the book of a catalog entry is selected for this run.
+     */
+    public boolean isSelected(TEIDoc doc) {
+        return this.filter == null || this.filter.matches(doc);
+    }
+
+    /**
+     * True if the book was finished in an earlier run, in delta mode only
+     * if its catalog entry did not change since, or if it is in the
+     * negative cache.
+     *
+     * @param id
+     * @param fingerprint fingerprint of the catalog entry
+     */
+    public boolean isFinished(int id, String fingerprint) {
+        if (this.journal == null) {
+            return false;
+        }
+        if (this.negative != null && this.negative.contains(id)) {
+            return true;
+        }
+        return this.delta ? this.journal.isUnchanged(id, fingerprint) : this.journal.isDone(id);
+    }
+
+    /**
+     * Returns the run journal, null before start().
+     */
+    public RunJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Hands a catalog entry to the first stage. Blocks while the RDF queue
+     * is full.
+     *
+     * @param doc
+     * @param catalogOffset byte offset of the entry in the catalog
+     * @param fingerprint fingerprint of the catalog entry
+     */
+    public void submit(TEIDoc doc, long catalogOffset, String fingerprint) {
+        this.journal.begin(doc.idN, catalogOffset, fingerprint);
+        this.active.add(doc.idN);
+        this.enqueue(Stage.RDF, new BookJob(doc));
+    }
+
+    /**
+     * Waits until every submitted book has passed all stages, retries the
+     * books on the retry queue, and stops the worker pools. If no book
+     * finished for twice the fetch deadline, the books still in the
+     * pipeline are logged and given up, the workers are interrupted, and
+     * the journal and manifest are written without them; the next run
+     * converts them again.
+     */
+    public void shutdown() {
+        boolean drained = this.retry();
+        for (Stage s : Stage.values()) {
+            ThreadPoolExecutor pool = this.pools[s.ordinal()];
+            if (drained) {
+                pool.shutdown();
+            } else {
+                pool.shutdownNow();
+            }
+            try {
+                if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    Logger.getLogger(BookPipeline.class.getName()).log(Level.WARNING,
+                            "Stage " + s.label + " did not stop");
+                }
+                if (s == Stage.RDF) {
+                    // the last books to fetch hand over to the html stage, the
+                    // requests of the books given up are not waited for
+                    int handoffs = this.maxFetches - this.abandoned.get();
+                    if (this.fetches.tryAcquire(handoffs, drained ? 1L : 0L, TimeUnit.MINUTES)) {
+                        this.fetches.release(handoffs);
+                    }
+                    if (drained) {
+                        this.fetchPool.shutdown();
+                        this.handoffPool.shutdown();
+                    } else {
+                        // a handoff may wait on the full html queue
+                        this.fetchPool.shutdownNow();
+                        this.handoffPool.shutdownNow();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE, null, e);
+                return;
+            }
+        }
+        this.journal.close();
+        try {
+            this.journal.writeManifest(new File(this.outputFolder, RunJournal.MANIFEST), this.shard);
+        } catch (IOException e) {
+            Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE, null, e);
+        }
+        this.metrics.stop();
+    }
+
+    /**
+     *
+     * @return the number of books written
+     */
+    public int getWrittenCounter() {
+        return this.written.get();
+    }
+
+    private void enqueue(final Stage stage, final BookJob job) {
+        this.pools[stage.ordinal()].execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                long cpu = Metrics.threadCpuTime();
+                Stage next = null;
+                try {
+                    next = process(stage, job);
+                } catch (Throwable e) {
+                    // e.g. a very deep DOM or a missing class; the book must not
+                    // stay in the pipeline, the stage thread goes on with the next
+                    Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE,
+                            "Book " + job.fileID + " failed in stage " + stage.label, e);
+                    fail(job, stage.label, e);
+                    if (e instanceof VirtualMachineError && !(e instanceof StackOverflowError)) {
+                        throw (VirtualMachineError) e;
+                    }
+                }
+                metrics.add(Metrics.STAGE_CPU, stage.label, Metrics.threadCpuTime() - cpu);
+                metrics.add(Metrics.STAGE_BUSY, stage.label, System.nanoTime() - start);
+                // outside of the timing, this blocks while the next queue is full
+                if (next != null) {
+                    try {
+                        enqueue(next, job);
+                    } catch (RejectedExecutionException e) {
+                        Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE,
+                                "Book " + job.fileID + " failed in stage " + next.label, e);
+                        fail(job, next.label, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the books on the retry queue to the first stage when their
+     * backoff is over, until no book is left in the pipeline or on the
+     * queue, or no book finished or was deferred for twice the fetch
+     * deadline.
+     *
+     * @return false if books were left in the pipeline
+     */
+    private boolean retry() {
+        long stall = TimeUnit.SECONDS.toNanos(2 * this.fetchDeadline);
+        this.lastSettled = System.nanoTime();
+        try {
+            while (true) {
+                TEIDoc doc = this.retries.poll(100, TimeUnit.MILLISECONDS);
+                if (doc != null) {
+                    this.active.add(doc.idN);
+                    this.enqueue(Stage.RDF, new BookJob(doc));
+                } else if (this.active.isEmpty() && this.retries.isEmpty()) {
+                    return true;
+                } else if (System.nanoTime() - this.lastSettled > stall) {
+                    Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE,
+                            "Giving up on " + this.active.size() + " books, none finished for "
+                            + TimeUnit.NANOSECONDS.toSeconds(stall) + " s: " + new TreeSet<>(this.active));
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE, null, e);
+            return false;
+        }
+    }
+
+    /**
+     * Records the final state of a book.
+     */
+    private void finish(int id, String state, String detail) {
+        this.journal.finish(id, state, detail);
+        this.active.remove(id);
+        this.lastSettled = System.nanoTime();
+    }
+
+    /**
+     * Puts a failed book on the retry queue if the failure is transient
+     * and it has retries left, or records it as failed in the journal and
+     * the metrics. A book the server does not have goes in the negative
+     * cache.
+     *
+     * @param job
+     * @param cause the step that failed
+     * @param e why it failed, null if the step just did not work
+     */
+    private void fail(BookJob job, String cause, Throwable e) {
+        int id = job.teiDoc.idN;
+        if (e != null) {
+            cause += ":" + RetryQueue.describe(e);
+        }
+        // the next attempt starts from the catalog entry, not from what
+        // this one added to it
+        if (RetryQueue.isTransient(e) && this.retries.defer(job.catalogDoc)) {
+            this.metrics.add(Metrics.RETRIES, cause, 1L);
+            this.journal.record(id, RunJournal.RETRY, cause);
+            this.active.remove(id);
+            this.lastSettled = System.nanoTime();
+            return;
+        }
+        if (this.negative != null && RetryQueue.isGone(e)) {
+            this.negative.add(id, cause);
+        }
+        Metrics.getShared().failure(cause);
+        this.finish(id, RunJournal.FAILED, cause);
+    }
+
+    /**
+     * Runs one stage for a book.
+     *
+     * @return the next stage, or null if the book is finished or dropped
+     */
+    Stage process(Stage stage, BookJob job) {
+        int id = job.teiDoc.idN;
+        switch (stage) {
+            case RDF:
+                // the fetches run asynchronously and hand the book on
+                this.fetch(job);
+                return null;
+            case HTML:
+                if (!job.htmlBook.preprocessHTML()) {
+                    this.fail(job, "preprocess", job.htmlBook.failure);
+                    return null;
+                }
+                return Stage.CONVERT;
+            case CONVERT:
+                if (this.engine == HTMLBook.ENGINE_JAVA) {
+                    // converted while the TEI file is streamed, no DOM
+                    if (!this.merge(job)) {
+                        this.fail(job, "convert", null);
+                        return null;
+                    }
+                    this.journal.record(id, RunJournal.CONVERTED);
+                    return Stage.WRITE;
+                }
+                long start = System.nanoTime();
+                job.htmlBook.convert();
+                this.metrics.record(Metrics.CONVERT, start);
+                // did not work, there is no converted file
+                if (!job.htmlBook.isConverted()) {
+                    this.fail(job, "convert", null);
+                    return null;
+                }
+                this.journal.record(id, RunJournal.CONVERTED);
+                return Stage.MERGE;
+            case MERGE:
+                if (!this.merge(job)) {
+                    this.fail(job, "merge", null);
+                    return null;
+                }
+                return Stage.WRITE;
+            case WRITE:
+                this.write(job);
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Fetches the RDF and the HTML-file of a book asynchronously, and
+     * hands the book to the html stage when both arrived, or fails it when
+     * they did not arrive within the deadline. Blocks while the maximum
+     * number of books is fetching.
+     */
+    private void fetch(final BookJob job) {
+        final int id = job.teiDoc.idN;
+        try {
+            this.fetches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.fail(job, "rdf-fetch", e);
+            return;
+        }
+        final long start = System.nanoTime();
+        job.bookRDF = new BookRDF(this.ebookURLStr + job.fileID + ".rdf", job.fileID);
+        // the book is finished or failed once, by the RDF step or after it
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        // completes with null if the book is finished after the RDF, or
+        // was given up before its HTML-file was requested
+        final CompletableFuture<Boolean> fetched = job.bookRDF.loadRDFAsync(this.fetchPool).thenCompose(loaded -> {
+            Metrics.getShared().record(Metrics.RDF_FETCH, start);
+            if (settled.get()) {
+                return CompletableFuture.completedFuture((Boolean) null);
+            }
+            if (!this.selectHTML(job)) {
+                if (settled.compareAndSet(false, true)) {
+                    if (!loaded) {
+                        this.fail(job, "rdf-fetch", job.bookRDF.failure);
+                    } else {
+                        this.metrics.increment(Metrics.BOOKS_SKIPPED);
+                        this.finish(id, RunJournal.SKIPPED, "no-html");
+                    }
+                }
+                return CompletableFuture.completedFuture((Boolean) null);
+            }
+            if (settled.get()) {
+                return CompletableFuture.completedFuture((Boolean) null);
+            }
+            this.journal.record(id, RunJournal.FETCHED);
+            return job.htmlBook.downloadHTML();
+        });
+        // a copy times out, fetched itself completes when its last request
+        // ends
+        fetched.copy().orTimeout(this.fetchDeadline, TimeUnit.SECONDS).whenCompleteAsync((downloaded, e) -> {
+            boolean givenUp = false;
+            try {
+                if (!settled.compareAndSet(false, true)) {
+                    // finished after the RDF
+                    return;
+                }
+                if (e instanceof TimeoutException) {
+                    Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE,
+                            "Book " + job.fileID + " not fetched within " + this.fetchDeadline + " s");
+                    givenUp = true;
+                    this.abandoned.incrementAndGet();
+                    this.fail(job, "fetch", e);
+                } else if (e != null) {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE,
+                            "Book " + job.fileID + " failed while fetching", cause);
+                    this.fail(job, "fetch", cause);
+                } else if (downloaded != null && !downloaded) {
+                    this.fail(job, "html-fetch", job.htmlBook.failure);
+                } else if (downloaded != null) {
+                    // blocks while the html queue is full
+                    this.enqueue(Stage.HTML, job);
+                }
+            } catch (RejectedExecutionException ex) {
+                Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE,
+                        "Book " + job.fileID + " failed in stage " + Stage.HTML.label, ex);
+                this.fail(job, Stage.HTML.label, ex);
+            } finally {
+                if (!givenUp) {
+                    this.fetches.release();
+                } else {
+                    // a retry downloads to a file of its own, this one is
+                    // deleted while it is written where the OS allows it
+                    if (job.htmlBook != null) {
+                        job.htmlBook.discardDownload();
+                    }
+                    fetched.whenComplete((late, ex) -> {
+                        if (job.htmlBook != null) {
+                            job.htmlBook.discardDownload();
+                        }
+                        this.fetches.release();
+                        this.abandoned.decrementAndGet();
+                    });
+                }
+            }
+        }, this.handoffPool);
+    }
+
+    /**
+     * Copies the meta-information of the fetched RDF over to the TEIDoc
+     * and selects the HTML-file.
+     *
+     * @return true if there is an HTML-file to convert
+     */
+    boolean selectHTML(BookJob job) {
+        TEIDoc doc = job.teiDoc;
+        BookRDF myBookRDF = job.bookRDF;
+        // copy over the meta info
+        if (myBookRDF.language != null) {
+            if (doc.languageCode == null) {
+                doc.languageCode = myBookRDF.language;
+            }
+        }
+        if (myBookRDF.publisher != null) {
+            if (doc.publisher == null) {
+                doc.publisher = myBookRDF.publisher;
+            }
+        }
+        if (myBookRDF.rights != null) {
+            doc.rights.add(myBookRDF.rights);
+        }
+        if (myBookRDF.title != null) {
+            doc.title.add(myBookRDF.title);
+        }
+
+        // get the HTML-file
+        if (myBookRDF.myHM.containsKey(BookRDF.HTML)) {
+            String[] val = myBookRDF.myHM.get(BookRDF.HTML);
+            job.htmlBook = new HTMLBook(val[0], this.outputFolder, doc.idN, val[2]);
+            job.htmlBook.engine = this.engine;
+            if (this.stylesheets != null) {
+                job.htmlBook.stylesheets = this.stylesheets;
+            }
+            return true;
+        }
+        // HTML_ZIP, EPUB and EPUB_NO_I are not handled yet (TODO),
+        // otherwise there is no appropriate file, nothing to convert
+        return false;
+    }
+
+    /**
+     * Streams the TEI header and the text body to a temporary TEI XML file.
+     * The body is converted from the HTML-file on the fly (ENGINE_JAVA) or
+     * streamed from the converted file (ENGINE_ODT, ENGINE_XSLT), so no
+     * book is ever held in memory as a whole. A DOM set by the caller is
+     * copied node by node.
+     *
+     * @return true if the TEI XML file was written
+     */
+    boolean merge(BookJob job) {
+        TEIDoc doc = job.teiDoc;
+        // if there are pre-paragraphs, append them to license in
+        // the TEIDoc.
+        for (String right : job.htmlBook.preParagraphs) {
+            doc.rights.add(right);
+        }
+
+        Metrics m = Metrics.getShared();
+        BookEvent event = new BookEvent(job.teiDoc.idN, BookEvent.TEI);
+        File tmp = new File(new File(this.outputFolder, job.fileID), job.fileID + ".xml.tmp");
+        try (TEIWriter out = new TEIWriter(tmp, job.fileID)) {
+            long start = System.nanoTime();
+            out.writeStart(doc);
+            m.record(Metrics.HEADER, start);
+            start = System.nanoTime();
+            if (job.htmlBook.convertedFile != null) {
+                // stream the <text>-element of the converter output over
+                File converted = job.htmlBook.convertedFile;
+                try (InputStream in = new FileInputStream(converted)) {
+                    XMLStreamReader r = XMLToolkit.createXMLStreamReader(in, converted.toURI().toString());
+                    try {
+                        out.copyText(r);
+                    } finally {
+                        r.close();
+                    }
+                }
+                // the body is in the TEI file now
+                converted.delete();
+                job.htmlBook.convertedFile = null;
+            } else if (job.htmlBook.mydoc == null) {
+                // converted and serialized in one go
+                job.htmlBook.convertTo(out.getWriter());
+                m.record(Metrics.CONVERT, start);
+                start = System.nanoTime();
+            } else {
+                // get the <text>-Element and copy it over
+                NodeList nodes = job.htmlBook.mydoc.getElementsByTagName("text");
+                if (nodes.getLength() == 1) {
+                    out.writeNode(nodes.item(0));
+                }
+                // the body is in the TEI file now
+                job.htmlBook.mydoc = null;
+            }
+            out.writeEnd();
+            m.record(Metrics.SERIALIZE, start);
+            job.teiLength = out.getLength();
+            job.teiChecksum = out.getChecksum();
+        } catch (IOException | XMLStreamException e) {
+            Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE, null, e);
+            tmp.delete();
+            event.finish(BookEvent.FAILED);
+            return false;
+        }
+        event.bytesOut = job.teiLength;
+        event.finish(BookEvent.OK);
+        job.teiFile = tmp;
+        return true;
+    }
+
+    /**
+     * Stores the extended RDF of the book and moves both files into place,
+     * only then the book is recorded as written in the journal.
+     */
+    void write(BookJob job) {
+        long start = System.nanoTime();
+        Metrics m = Metrics.getShared();
+        BookEvent event = new BookEvent(job.teiDoc.idN, BookEvent.WRITE);
+        File dir = new File(this.outputFolder, job.fileID);
+        File xmlFile = new File(dir, job.fileID + ".xml");
+        File rdfFile = new File(dir, job.fileID + ".rdf");
+        File rdfTmp = new File(dir, job.fileID + ".rdf.tmp");
+        try {
+            // determine size and file URL and call
+            // myBookRDF.addDocumentInfo to generate the new RDF DOM
+            // store the RDF DOM next to the TEI XML file
+            job.bookRDF.addDocumentInfo("http://ltl.emich.edu/gutenberg/", job.teiLength, "utf-8", job.fileID);
+
+            // Linearize the BookRDF
+            byte[] rdf = job.bookRDF.linearize().getBytes(StandardCharsets.UTF_8);
+            writeSynced(rdfTmp, rdf);
+
+            Files.move(job.teiFile.toPath(), xmlFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(rdfTmp.toPath(), rdfFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.finish(job.teiDoc.idN, RunJournal.WRITTEN,
+                    job.teiChecksum + "," + HTTPCache.sha256(rdf));
+            m.add(Metrics.BYTES_OUT, job.teiLength + rdf.length);
+            event.bytesOut = rdf.length;
+        } catch (IOException e) {
+            Logger.getLogger(BookPipeline.class.getName()).log(Level.SEVERE, null, e);
+            this.fail(job, "write", e);
+            event.finish(BookEvent.FAILED);
+            return;
+        }
+        event.finish(BookEvent.OK);
+        this.written.incrementAndGet();
+        m.increment(Metrics.BOOKS_WRITTEN);
+        m.record(Metrics.WRITE, start);
+    }
+
+    /**
+     * Writes data to file and forces it to disk.
+     */
+    private static void writeSynced(File file, byte[] data) throws IOException {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+    }
+}
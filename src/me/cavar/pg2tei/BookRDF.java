@@ -2,14 +2,15 @@
  * BookRDF.java
  * (C) 2012 by Damir Cavar (http://cavar.me/damir/)
  * 
- * This class holds a DOM-object with the RDF-content of an individual
- * Project Gutenberg book. It extracts the relevant meta-information from
- * the RDF and adds the URL and descriptor for the TEI XML files.
+ * This class holds the RDF-content of an individual Project Gutenberg
+ * book. It extracts the relevant meta-information from the RDF and adds
+ * the URL and descriptor for the TEI XML files.
  * 
- * The resuting data structures are a RDF DOM that can be serialized as 
- * the new RDF XML with the TEI XML link, as well as internal meta-information
- * fields that can be used to extend the meta-information of the TEI XML
- * files.
+ * The RDF is kept as bytes and read with StAX, no DOM is built: one pass
+ * extracts the format URLs and the meta-information fields that can be used
+ * to extend the meta-information of the TEI XML files, and a second pass
+ * writes the new RDF XML, copying the original events through and
+ * injecting the TEI XML link.
  * 
  * 
  * License:
@@ -32,44 +33,25 @@
  */
 package me.cavar.pg2tei;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  *
@@ -93,14 +75,37 @@ public class BookRDF {
      * The key for the EPUB-URL without images
      */
     public static final int EPUB_NO_I = 3;
+    private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String DCTERMS_NS = "http://purl.org/dc/terms/";
+    private static final String DCAM_NS = "http://purl.org/dc/dcam/";
+    private static final String PGTERMS_NS = "http://www.gutenberg.org/2009/pgterms/";
     /**
      * The String-representation of the URL of the RDF-file.
      */
     private URL rdfURL;
     /**
-     * DOM-object holding the RDF-content
+     * The RDF-content as fetched, null if it could not be loaded.
      */
-    private Document mydoc;
+    private byte[] rdfBytes;
+    /**
+     * The system ID of the RDF, for error messages.
+     */
+    private String systemId;
+    /**
+     * The TEI XML file to add, set by addDocumentInfo.
+     */
+    private String xmlURL;
+    private long xmlSize;
+    private String xmlCharSet;
+    private String xmlID;
+    /**
+     * True if the RDF lists dcterms:hasFormat elements.
+     */
+    private boolean hasFormats;
+    /**
+     * The book ID, for the flight recorder events.
+     */
+    private String fileID;
     /**
      * Stores the URLs for the different target formats
      */
@@ -125,6 +130,10 @@ public class BookRDF {
      * Contains the title of the text.
      */
     public String title;
+    /**
+     * Why the RDF could not be fetched, or null.
+     */
+    public Throwable failure;
 
     /**
      *
@@ -134,329 +143,477 @@ public class BookRDF {
             this.rdfURL = new URL(someurl);
         } catch (MalformedURLException ex) {
             Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, ex);
+            this.failure = ex;
         }
         this.myHM = new HashMap<>();
+        this.fileID = fileID;
     }
 
     /**
      *
-     * @return Document
+     * @return true if the RDF was loaded and is well-formed
      */
-    public Document getDOM() {
-        return this.mydoc;
+    public boolean isLoaded() {
+        return this.rdfBytes != null;
     }
 
     /**
-     *
+     * Sets the TEI XML file that linearize() adds to the RDF as a
+     * pgterms:file and a dcterms:hasFormat.
      */
     public void addDocumentInfo(String xmlURL, long size, String charSet, String id) {
-        // Create a fileNode with the relevant information
-        Element fileNode = this.mydoc.createElement("pgterms:file");
-        fileNode.setAttribute("rdf:about", xmlURL + id + "/" + id + ".xml");
-        // <dcterms:extent
-        Element extentNode = this.mydoc.createElement("dcterms:extent");
-        extentNode.setAttribute("rdf:datatype", "http://www.w3.org/2001/XMLSchema#integer");
-        extentNode.appendChild(this.mydoc.createTextNode(String.valueOf(size)));
-        fileNode.appendChild(extentNode);
-        // <dcterms:format>
-        Element formatNode = this.mydoc.createElement("dcterms:format");
-        // <rdf:Description>
-        Element rdfDescriptionNode = this.mydoc.createElement("rdf:Description");
-        Element dcamMemberOfNode = this.mydoc.createElement("dcam:memberOf");
-        dcamMemberOfNode.setAttribute("rdf:resource", "http://purl.org/dc/terms/IMT");
-        rdfDescriptionNode.appendChild(dcamMemberOfNode);
-        Element rdfValueNode = this.mydoc.createElement("rdf:value");
-        rdfValueNode.setAttribute("rdf:datatype", "http://purl.org/dc/terms/IMT");
-        rdfValueNode.appendChild(this.mydoc.createTextNode("text/xml; charset=" + charSet));
-        rdfDescriptionNode.appendChild(rdfValueNode);
-        formatNode.appendChild(rdfDescriptionNode);
-        fileNode.appendChild(formatNode);
-        // <dcterms:isFormatOf 
-        Element isFormatOfNode = this.mydoc.createElement("dcterms:isFormatOf");
-        // get the resource descriptor!
-        isFormatOfNode.setAttribute("rdf:resource", "ebooks/" + id);
-        fileNode.appendChild(isFormatOfNode);
-        Element dctermsModifiedNode = this.mydoc.createElement("dcterms:modified");
-        dctermsModifiedNode.setAttribute("rdf:datatype", "http://www.w3.org/2001/XMLSchema#dateTime");
-        Date now = new Date(); // 2004-09-14T19:51:46
-        SimpleDateFormat dtf = new SimpleDateFormat("yyyyy-mm-dd");
-        SimpleDateFormat ttf = new SimpleDateFormat("hh:mm:ss");
-        dctermsModifiedNode.appendChild(this.mydoc.createTextNode(dtf.format(now) + "T" + ttf.format(now)));
-        fileNode.appendChild(dctermsModifiedNode);
-
-        // create the node:
-        // <dcterms:hasFormat rdf:resource="..."/>
-        Element hasFormatNode = this.mydoc.createElement("dcterms:hasFormat");
-        hasFormatNode.setAttribute("rdf:resource", xmlURL + id + "/" + id + ".xml");
-
-        // insert the nodes in the DOM
-        NodeList nodes;
-        nodes = this.mydoc.getElementsByTagName("dcterms:hasFormat");
-        if (nodes.getLength() > 0) {
-            Node e = nodes.item(0);
-            e.getParentNode().insertBefore(hasFormatNode, e);
-        } else {
-            // find the <pgterms:ebook 
-            NodeList ebookNodes = this.mydoc.getElementsByTagName("pgterms:ebook");
-            if (ebookNodes.getLength() > 0) {
-                Node ebookN = ebookNodes.item(0);
-                Node first = ebookN.getFirstChild();
-                if (first.getNodeName().equals("creator")) {
-                    Node next = first.getNextSibling();
-                    ebookN.insertBefore(hasFormatNode, next);
-                } else {
-                    ebookN.insertBefore(hasFormatNode, first);
-                }
-            } else {
-                Element pgTermsEbookNode = this.mydoc.createElement("pgterms:ebook");
-                pgTermsEbookNode.setAttribute("rdf:about", "eboks/" + id);
-                pgTermsEbookNode.appendChild(hasFormatNode);
-                this.mydoc.appendChild(pgTermsEbookNode);
-            }
-        }
-        nodes = this.mydoc.getElementsByTagName("pgterms:file");
-        if (nodes.getLength() > 0) {
-            Node e = nodes.item(0);
-            e.getParentNode().insertBefore(fileNode, e);
-        } else {
-            this.mydoc.appendChild(fileNode);
-        }
+        this.xmlURL = xmlURL;
+        this.xmlSize = size;
+        this.xmlCharSet = charSet;
+        this.xmlID = id;
     }
 
     /**
-     *
-     * @throws MalformedURLException
-     * @throws IOException
-     * @throws ParserConfigurationException
-     * @throws SAXException
+     * Fetches the RDF and extracts the format URLs and the
+     * meta-information.
      */
     public void loadRDF() {
         if (this.rdfURL == null) {
             return;
         }
 
-        StringBuilder strb = new StringBuilder();
-        String line;
-
-        // to circumvent issues with redirection and 403 error
-        // we need to set redirects and set the request property ??
         //read the RDF from the server
-        HttpURLConnection con;
+        BookEvent event = new BookEvent(this.fileID, BookEvent.RDF);
+        byte[] body;
         try {
-            con = (HttpURLConnection) this.rdfURL.openConnection();
-            con.setInstanceFollowRedirects(true);
-            HttpURLConnection.setFollowRedirects(true);
-            con.setRequestMethod("GET");
-            con.setDoOutput(true);
-            con.setReadTimeout(10000);
-            con.setRequestProperty("User-Agent",
-                    "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:10.0.2) Gecko/20100101 Firefox/10.0.2");
-            con.connect();
-            BufferedReader readb = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            while ((line = readb.readLine()) != null) {
-                strb.append(line).append('\n');
-            }
-            con.disconnect();
-        } catch (MalformedURLException e) {
+            body = HTTPClient.getShared().get(this.rdfURL).body;
+        } catch (IOException e) {
             Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, e);
+            this.failure = e;
+            event.finish(BookEvent.FAILED);
+            return;
+        }
+        event.bytesIn = body.length;
+        event.finish(this.loadRDF(body, this.rdfURL.toString()) ? BookEvent.OK : BookEvent.FAILED);
+    }
+
+    /**
+     * Fetches the RDF asynchronously, then extracts the format URLs and
+     * the meta-information on the executor.
+     *
+     * @param executor where the RDF is parsed when it arrived
+     * @return completes with true if the RDF was fetched and is
+     * well-formed, never exceptionally
+     */
+    public CompletableFuture<Boolean> loadRDFAsync(Executor executor) {
+        if (this.rdfURL == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final BookEvent event = new BookEvent(this.fileID, BookEvent.RDF);
+        return HTTPClient.getShared().getAsync(this.rdfURL).handleAsync((res, e) -> {
+            if (e != null) {
+                this.failure = e.getCause() != null ? e.getCause() : e;
+                Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, this.failure);
+                event.finish(BookEvent.FAILED);
+                return false;
+            }
+            event.bytesIn = res.body.length;
+            boolean ok = this.loadRDF(res.body, this.rdfURL.toString());
+            event.finish(ok ? BookEvent.OK : BookEvent.FAILED);
+            return ok;
+        }, executor);
+    }
+
+    /**
+     * Reads the RDF from a stream and extracts the format URLs and the
+     * meta-information.
+     *
+     * @param in
+     * @param systemId
+     */
+    public void loadRDF(InputStream in, String systemId) {
+        BookEvent event = new BookEvent(this.fileID, BookEvent.RDF);
+        try {
+            byte[] body = in.readAllBytes();
+            event.bytesIn = body.length;
+            event.finish(this.loadRDF(body, systemId) ? BookEvent.OK : BookEvent.FAILED);
         } catch (IOException e) {
             Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, e);
+            event.finish(BookEvent.FAILED);
         }
+    }
 
-        // parse the XML now into a DOM
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        dbFactory.setNamespaceAware(true);
-        DocumentBuilder dBuilder;
+    /**
+     * @return true if the RDF is well-formed
+     */
+    private boolean loadRDF(byte[] body, String systemId) {
+        this.systemId = systemId;
         try {
-            dBuilder = dbFactory.newDocumentBuilder();
-            this.mydoc = dBuilder.parse(new InputSource(new StringReader(strb.toString())));
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            this.extract(body);
+            this.rdfBytes = body;
+            return true;
+        } catch (XMLStreamException e) {
             Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the RDF in a single pass. For every pgterms:file the rdf:about
+     * URL and the mimetype and encoding from its rdf:value texts go into
+     * myHM, and the text of the first dcterms:language, publisher, rights,
+     * title and issued elements into the fields.
+     */
+    private void extract(byte[] body) throws XMLStreamException {
+        XMLStreamReader r = XMLToolkit.createXMLStreamReader(new ByteArrayInputStream(body), this.systemId);
+        // the pgterms:file being read
+        String fileURL = null;
+        String mimetype = "";
+        String encoding = "";
+        boolean typeDone = false;
+        boolean inValue = false;
+        // the meta-information element being read, and its depth
+        String field = null;
+        int fieldDepth = 0;
+        StringBuilder text = new StringBuilder();
+        int depth = 0;
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String qName = qName(r.getPrefix(), r.getLocalName());
+                    if (qName.equals("dcterms:hasFormat")) {
+                        this.hasFormats = true;
+                    }
+                    if (field != null) {
+                        // nested markup, the text content is collected
+                    } else if (qName.equals("pgterms:file")) {
+                        String about = r.getAttributeValue(RDF_NS, "about");
+                        fileURL = about != null ? about : "";
+                        mimetype = "";
+                        encoding = "";
+                        typeDone = false;
+                    } else if (this.isField(qName)) {
+                        field = qName;
+                        fieldDepth = depth;
+                        text.setLength(0);
+                    }
+                    if (fileURL != null && qName.equals("rdf:value")) {
+                        inValue = true;
+                        text.setLength(0);
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                        || event == XMLStreamConstants.SPACE) {
+                    if (field != null || inValue) {
+                        text.append(r.getText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String qName = qName(r.getPrefix(), r.getLocalName());
+                    if (field != null && depth == fieldDepth) {
+                        this.setField(field, text.toString());
+                        field = null;
+                    } else if (inValue && qName.equals("rdf:value")) {
+                        inValue = false;
+                        String val = text.toString();
+                        if (!typeDone && val.length() > 0) {
+                            if (val.contains("; ")) {
+                                String[] parts = val.split(";\\s+");
+                                mimetype = parts[0];
+                                encoding = parts[1].replace("charset=", "");
+                                typeDone = true;
+                            } else {
+                                mimetype = val.trim();
+                            }
+                        }
+                    } else if (fileURL != null && qName.equals("pgterms:file")) {
+                        this.addFormat(fileURL, mimetype, encoding);
+                        fileURL = null;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    private static String qName(String prefix, String localName) {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
         }
-        if (this.mydoc != null) {
-            this.mydoc.getDocumentElement().normalize();
+        return prefix + ":" + localName;
+    }
+
+    /**
+     * True for the meta-information elements not seen yet.
+     */
+    private boolean isField(String qName) {
+        switch (qName) {
+            case "dcterms:language":
+                return this.language == null;
+            case "dcterms:publisher":
+                return this.publisher == null;
+            case "dcterms:rights":
+                return this.rights == null;
+            case "dcterms:title":
+                return this.title == null;
+            case "dcterms:issued":
+                return this.issued == null;
+            default:
+                return false;
+        }
+    }
+
+    private void setField(String qName, String val) {
+        switch (qName) {
+            case "dcterms:language":
+                this.language = val;
+                break;
+            case "dcterms:publisher":
+                this.publisher = val;
+                break;
+            case "dcterms:rights":
+                this.rights = val;
+                break;
+            case "dcterms:title":
+                this.title = val;
+                break;
+            case "dcterms:issued":
+                this.issued = val;
+                break;
+            default:
+                break;
         }
     }
 
     /**
-     *
+     * Keeps the URL of the formats we can handle.
+     */
+    private void addFormat(String fileURL, String mimetype, String encoding) {
+        String[] res = {fileURL, mimetype, encoding};
+        if (fileURL.endsWith("-h.htm") && mimetype.equals("text/html")) {
+            this.myHM.put(BookRDF.HTML, res);
+        } else if (fileURL.endsWith("-h.zip") && mimetype.equals("text/html")) {
+            this.myHM.put(BookRDF.HTML_ZIP, res);
+        } else if (fileURL.endsWith("epub.images") && mimetype.equals("application/epub+zip")) {
+            this.myHM.put(BookRDF.EPUB, res);
+        } else if (fileURL.endsWith("epub.noimages") && mimetype.equals("application/epub+zip")) {
+            this.myHM.put(BookRDF.EPUB_NO_I, res);
+        }
+    }
+
+    /**
+     * Loads the RDF, extracts specific format URLs from it, and the
+     * meta-information.
      */
-    public void formatURLsFromDoc() {
-        // get the URLs for the relevant formats
-        // to be correct, one has to extract the pgterms:file attribute
-        // and check whether the contained rdf:value is of type text/html
-        // this hack here is faster.
+    public void process() {
+        this.loadRDF();
+    }
 
-        if (this.mydoc == null) {
+    /**
+     * Writes the RDF as UTF-8 to out. The original events are copied
+     * through; if addDocumentInfo was called, a dcterms:hasFormat for the
+     * TEI XML file goes before the first dcterms:hasFormat (or at the start
+     * of the pgterms:ebook if there is none), and its pgterms:file before the first
+     * pgterms:file (or at the end of the root).
+     *
+     * @param out
+     * @throws XMLStreamException
+     */
+    public void writeRDF(OutputStream out) throws XMLStreamException {
+        if (this.rdfBytes == null) {
             return;
         }
-        NamespaceContext nsctx = new NamespaceContext() {
-            @Override
-            public String getNamespaceURI(String prefix) {
-                String uri;
-                switch (prefix) {
-                    case "rdf":
-                        uri = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+        XMLStreamReader r = XMLToolkit.createXMLStreamReader(new ByteArrayInputStream(this.rdfBytes), this.systemId);
+        XMLStreamWriter w = XMLToolkit.createXMLStreamWriter(out, "UTF-8");
+        boolean addInfo = this.xmlURL != null;
+        boolean hasFormatDone = !addInfo;
+        boolean fileDone = !addInfo;
+        int depth = 0;
+        try {
+            w.writeStartDocument("utf-8", "1.0");
+            w.writeCharacters("\n");
+            int event = r.next();
+            while (true) {
+                int next = -1;
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String qName = qName(r.getPrefix(), r.getLocalName());
+                        if (!hasFormatDone && qName.equals("dcterms:hasFormat")) {
+                            this.writeHasFormat(w);
+                            w.writeCharacters("\n" + indent(depth));
+                            hasFormatDone = true;
+                        } else if (!fileDone && qName.equals("pgterms:file")) {
+                            this.writeFile(w, depth);
+                            w.writeCharacters("\n" + indent(depth));
+                            fileDone = true;
+                        }
+                        // look ahead, to write empty elements as such
+                        String[] element = {r.getPrefix(), r.getLocalName(), r.getNamespaceURI()};
+                        String[][] namespaces = new String[r.getNamespaceCount()][];
+                        for (int i = 0; i < namespaces.length; i++) {
+                            namespaces[i] = new String[]{r.getNamespacePrefix(i), r.getNamespaceURI(i)};
+                        }
+                        String[][] attributes = new String[r.getAttributeCount()][];
+                        for (int i = 0; i < attributes.length; i++) {
+                            attributes[i] = new String[]{r.getAttributePrefix(i), r.getAttributeNamespace(i),
+                                r.getAttributeLocalName(i), r.getAttributeValue(i)};
+                        }
+                        next = r.next();
+                        boolean empty = next == XMLStreamConstants.END_ELEMENT;
+                        copyStartElement(w, element, namespaces, attributes, empty);
+                        if (empty) {
+                            next = r.hasNext() ? r.next() : -1;
+                            break;
+                        }
+                        depth++;
+                        if (!hasFormatDone && !this.hasFormats && qName.equals("pgterms:ebook")) {
+                            w.writeCharacters("\n" + indent(depth));
+                            this.writeHasFormat(w);
+                            hasFormatDone = true;
+                        }
                         break;
-                    case "cc":
-                        uri = "http://web.resource.org/cc/";
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        if (depth == 0 && !fileDone) {
+                            this.writeFile(w, depth + 1);
+                            w.writeCharacters("\n");
+                            fileDone = true;
+                        }
+                        w.writeEndElement();
                         break;
-                    case "dcam":
-                        uri = "http://purl.org/dc/dcam/";
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        w.writeCharacters(r.getText());
                         break;
-                    case "dcterms":
-                        uri = "http://purl.org/dc/terms/";
+                    case XMLStreamConstants.CDATA:
+                        w.writeCData(r.getText());
                         break;
-                    case "marcrel":
-                        uri = "http://www.loc.gov/loc.terms/relators/";
+                    case XMLStreamConstants.COMMENT:
+                        w.writeComment(r.getText());
                         break;
-                    case "pgterms":
-                        uri = "http://www.gutenberg.org/2009/pgterms/";
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        w.writeProcessingInstruction(r.getPITarget(), r.getPIData());
                         break;
                     default:
-                        uri = null;
                         break;
                 }
-                return uri;
-            }
-
-            // Dummy implementation - not used!
-            @Override
-            public Iterator getPrefixes(String val) {
-                return null;
-            }
-
-            // Dummy implemenation - not used!
-            @Override
-            public String getPrefix(String uri) {
-                return null;
-            }
-        };
-
-        NodeList nodes;
-        // get the individual file-type URLs, and track file type and
-        // character encoding
-
-        XPathFactory factory = XPathFactory.newInstance();
-        XPath xpath = factory.newXPath();
-        xpath.setNamespaceContext(nsctx);
-        XPathExpression typeEncoding;
-        try {
-            typeEncoding = xpath.compile(".//rdf:value/text()");
-            nodes = this.mydoc.getElementsByTagName("pgterms:file");
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Node fileNode = nodes.item(i);
-                NamedNodeMap attrs = fileNode.getAttributes();
-                Node attr = attrs.getNamedItem("rdf:about");
-                String fileURL;
-                if (attr != null) {
-                    fileURL = attr.getNodeValue();
-                } else {
-                    fileURL = "";
-                }
-                Object result = typeEncoding.evaluate(fileNode, XPathConstants.NODESET);
-                NodeList valNodes = (NodeList) result;
-                String encoding = "";
-                String mimetype = "";
-                for (int t = 0; t < valNodes.getLength(); t++) {
-                    String val = valNodes.item(t).getNodeValue();
-                    if (val.contains("; ")) {
-                        String[] parts = val.split(";\\s+");
-                        mimetype = parts[0];
-                        encoding = parts[1].replace("charset=", "");
+                if (next == -1) {
+                    if (!r.hasNext()) {
                         break;
-                    } else {
-                        mimetype = val.trim();
                     }
+                    next = r.next();
                 }
-                //System.out.printf("URL: %s\nMime type: %s\nEncoding: %s\n", fileURL, mimetype, encoding);
-
-                String[] res = {fileURL, mimetype, encoding};
-                if (fileURL.endsWith("-h.htm") && mimetype.equals("text/html")) {
-                    this.myHM.put(BookRDF.HTML, res);
-                } else if (fileURL.endsWith("-h.zip") && mimetype.equals("text/html")) {
-                    this.myHM.put(BookRDF.HTML_ZIP, res);
-                } else if (fileURL.endsWith("epub.images") && mimetype.equals("application/epub+zip")) {
-                    this.myHM.put(BookRDF.EPUB, res);
-                } else if (fileURL.endsWith("epub.noimages") && mimetype.equals("application/epub+zip")) {
-                    this.myHM.put(BookRDF.EPUB_NO_I, res);
-                }
+                event = next;
             }
-        } catch (XPathExpressionException ex) {
-            Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, ex);
+            w.writeEndDocument();
+            w.writeCharacters("\n");
+            w.flush();
+        } finally {
+            r.close();
+            w.close();
         }
-
     }
 
-    /**
-     *
-     */
-    public void extractMetaInfo() {
-        if (this.mydoc == null) {
-            return;
-        }
-        NodeList nodes;
-        // find:
-        // dcterms:language
-        nodes = this.mydoc.getElementsByTagName("dcterms:language");
-        if (nodes.getLength() > 0) {
-            this.language = nodes.item(0).getTextContent();
-        }
-        // dcterms:publisher
-        nodes = this.mydoc.getElementsByTagName("dcterms:publisher");
-        if (nodes.getLength() > 0) {
-            this.publisher = nodes.item(0).getTextContent();
+    private static void copyStartElement(XMLStreamWriter w, String[] element, String[][] namespaces,
+            String[][] attributes, boolean empty) throws XMLStreamException {
+        String prefix = element[0] != null ? element[0] : "";
+        String ns = element[2] != null ? element[2] : "";
+        if (empty) {
+            w.writeEmptyElement(prefix, element[1], ns);
+        } else {
+            w.writeStartElement(prefix, element[1], ns);
         }
-        // dcterms:rights
-        nodes = this.mydoc.getElementsByTagName("dcterms:rights");
-        if (nodes.getLength() > 0) {
-            this.rights = nodes.item(0).getTextContent();
+        for (String[] n : namespaces) {
+            if (n[0] == null || n[0].isEmpty()) {
+                w.writeDefaultNamespace(n[1]);
+            } else {
+                w.writeNamespace(n[0], n[1]);
+            }
         }
-        // dcterms:title
-        nodes = this.mydoc.getElementsByTagName("dcterms:title");
-        if (nodes.getLength() > 0) {
-            this.title = nodes.item(0).getTextContent();
+        for (String[] a : attributes) {
+            if (a[1] == null || a[1].isEmpty()) {
+                w.writeAttribute(a[2], a[3]);
+            } else {
+                w.writeAttribute(a[0] != null ? a[0] : "", a[1], a[2], a[3]);
+            }
         }
-        // dcterms:issued
-        nodes = this.mydoc.getElementsByTagName("dcterms:issued");
-        if (nodes.getLength() > 0) {
-            this.issued = nodes.item(0).getTextContent();
+    }
+
+    private static String indent(int depth) {
+        StringBuilder strb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            strb.append("  ");
         }
+        return strb.toString();
     }
 
     /**
-     * Loads the RDF, extracts specific format URLs from it, and the
-     * meta-information.
+     * <dcterms:hasFormat rdf:resource="..."/>
      */
-    public void process() {
-        this.loadRDF();
-        this.formatURLsFromDoc();
-        this.extractMetaInfo();
+    private void writeHasFormat(XMLStreamWriter w) throws XMLStreamException {
+        w.writeEmptyElement("dcterms", "hasFormat", DCTERMS_NS);
+        w.writeAttribute("rdf", RDF_NS, "resource", this.xmlURL + this.xmlID + "/" + this.xmlID + ".xml");
     }
 
     /**
-     * Returns the linearized XML-representation of the RDF-DOM.
+     * The pgterms:file with the relevant information about the TEI XML.
+     */
+    private void writeFile(XMLStreamWriter w, int depth) throws XMLStreamException {
+        String in1 = "\n" + indent(depth + 1);
+        String in2 = "\n" + indent(depth + 2);
+        String in3 = "\n" + indent(depth + 3);
+        w.writeStartElement("pgterms", "file", PGTERMS_NS);
+        w.writeAttribute("rdf", RDF_NS, "about", this.xmlURL + this.xmlID + "/" + this.xmlID + ".xml");
+        // <dcterms:extent
+        w.writeCharacters(in1);
+        w.writeStartElement("dcterms", "extent", DCTERMS_NS);
+        w.writeAttribute("rdf", RDF_NS, "datatype", "http://www.w3.org/2001/XMLSchema#integer");
+        w.writeCharacters(String.valueOf(this.xmlSize));
+        w.writeEndElement();
+        // <dcterms:format>
+        w.writeCharacters(in1);
+        w.writeStartElement("dcterms", "format", DCTERMS_NS);
+        // <rdf:Description>
+        w.writeCharacters(in2);
+        w.writeStartElement("rdf", "Description", RDF_NS);
+        w.writeCharacters(in3);
+        w.writeEmptyElement("dcam", "memberOf", DCAM_NS);
+        w.writeAttribute("rdf", RDF_NS, "resource", "http://purl.org/dc/terms/IMT");
+        w.writeCharacters(in3);
+        w.writeStartElement("rdf", "value", RDF_NS);
+        w.writeAttribute("rdf", RDF_NS, "datatype", "http://purl.org/dc/terms/IMT");
+        w.writeCharacters("text/xml; charset=" + this.xmlCharSet);
+        w.writeEndElement();
+        w.writeCharacters(in2);
+        w.writeEndElement();
+        w.writeCharacters(in1);
+        w.writeEndElement();
+        // <dcterms:isFormatOf 
+        // get the resource descriptor!
+        w.writeCharacters(in1);
+        w.writeEmptyElement("dcterms", "isFormatOf", DCTERMS_NS);
+        w.writeAttribute("rdf", RDF_NS, "resource", "ebooks/" + this.xmlID);
+        w.writeCharacters(in1);
+        w.writeStartElement("dcterms", "modified", DCTERMS_NS);
+        w.writeAttribute("rdf", RDF_NS, "datatype", "http://www.w3.org/2001/XMLSchema#dateTime");
+        Date now = new Date(); // 2004-09-14T19:51:46
+        SimpleDateFormat dtf = new SimpleDateFormat("yyyyy-mm-dd");
+        SimpleDateFormat ttf = new SimpleDateFormat("hh:mm:ss");
+        w.writeCharacters(dtf.format(now) + "T" + ttf.format(now));
+        w.writeEndElement();
+        w.writeCharacters("\n" + indent(depth));
+        w.writeEndElement();
+    }
+
+    /**
+     * Returns the linearized XML-representation of the RDF.
      *
      * @return
      */
     public String linearize() {
-        TransformerFactory transfac = TransformerFactory.newInstance();
-        Transformer trans;
-        StringWriter strw = new StringWriter();
-        StreamResult result = new StreamResult(strw);
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
         try {
-            trans = transfac.newTransformer();
-            trans.setOutputProperty(OutputKeys.INDENT, "yes");
-            trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            DOMSource source = new DOMSource(this.mydoc);
-            trans.transform(source, result);
-        } catch (TransformerConfigurationException e) {
-            Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, e);
-        } catch (TransformerException e) {
+            this.writeRDF(bOut);
+        } catch (XMLStreamException e) {
             Logger.getLogger(BookRDF.class.getName()).log(Level.SEVERE, null, e);
         }
-        return strw.toString();
+        return new String(bOut.toByteArray(), StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,257 @@
+/*
+ * BookTrace.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Starts a flight recording of the BookEvents of a run, and summarizes a
+ * recording: the time per step over all books, the slowest books with
+ * their steps, and the slowest single steps.
+ *
+ *   java -cp pg2tei.jar me.cavar.pg2tei.BookTrace [-n 20] run.jfr
+ *
+ * Any recording with BookEvents will do, also one started with
+ * -XX:StartFlightRecording.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class BookTrace {
+
+    /**
+     * One step of one book, read from the recording.
+     */
+    static class Step {
+
+        int id;
+        String step;
+        long nanos;
+        long bytesIn;
+        long bytesOut;
+        String outcome;
+    }
+
+    /**
+     * The steps of one book.
+     */
+    static class Book {
+
+        int id;
+        long nanos;
+        long bytesIn;
+        ArrayList<Step> steps = new ArrayList<>();
+    }
+    private ArrayList<Step> steps;
+
+    public BookTrace() {
+        this.steps = new ArrayList<>();
+    }
+
+    /**
+     * Starts a recording with the default JFR settings and the BookEvents,
+     * dumped to file when it is stopped.
+     *
+     * @param file
+     * @return the running recording
+     * @throws IOException
+     */
+    public static Recording startRecording(File file) throws IOException {
+        Configuration config;
+        try {
+            config = Configuration.getConfiguration("default");
+        } catch (java.text.ParseException e) {
+            throw new IOException(e);
+        }
+        Recording recording = new Recording(config);
+        recording.enable(BookEvent.class).withoutStackTrace();
+        recording.setName("pg2tei");
+        recording.setToDisk(true);
+        recording.setDestination(file.toPath());
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * Stops a recording and writes it to its destination.
+     */
+    public static void stopRecording(Recording recording) {
+        recording.stop();
+        recording.close();
+    }
+
+    /**
+     * Reads the BookEvents of a recording.
+     */
+    public void read(File file) throws IOException {
+        try (RecordingFile in = new RecordingFile(file.toPath())) {
+            while (in.hasMoreEvents()) {
+                RecordedEvent e = in.readEvent();
+                if (!e.getEventType().getName().equals(BookEvent.NAME)) {
+                    continue;
+                }
+                Step s = new Step();
+                s.id = e.getInt("id");
+                s.step = e.getString("step");
+                s.nanos = e.getDuration().toNanos();
+                s.bytesIn = e.getLong("bytesIn");
+                s.bytesOut = e.getLong("bytesOut");
+                s.outcome = e.getString("outcome");
+                this.steps.add(s);
+            }
+        }
+    }
+
+    /**
+     * Prints the time per step, the n slowest books and the n slowest
+     * steps.
+     */
+    public void print(PrintStream out, int n) {
+        out.printf("%d steps of %d books%n%n", this.steps.size(), this.books().size());
+
+        // per step
+        TreeMap<String, ArrayList<Long>> byStep = new TreeMap<>();
+        TreeMap<String, Integer> failures = new TreeMap<>();
+        for (Step s : this.steps) {
+            byStep.computeIfAbsent(s.step, k -> new ArrayList<>()).add(s.nanos);
+            if (BookEvent.FAILED.equals(s.outcome)) {
+                failures.merge(s.step, 1, Integer::sum);
+            }
+        }
+        out.printf("%-10s %8s %12s %10s %10s %10s %10s %7s%n", "step", "count", "total s", "mean ms",
+                "p50 ms", "p99 ms", "max ms", "failed");
+        for (Map.Entry<String, ArrayList<Long>> e : byStep.entrySet()) {
+            ArrayList<Long> d = e.getValue();
+            Collections.sort(d);
+            long total = 0L;
+            for (long v : d) {
+                total += v;
+            }
+            out.printf(Locale.ROOT, "%-10s %8d %12.1f %10.1f %10.1f %10.1f %10.1f %7d%n", e.getKey(), d.size(),
+                    total / 1e9, total / 1e6 / d.size(), quantile(d, 0.5) / 1e6, quantile(d, 0.99) / 1e6,
+                    d.get(d.size() - 1) / 1e6, failures.getOrDefault(e.getKey(), 0));
+        }
+
+        // the slowest books
+        List<Book> books = this.books();
+        books.sort(Comparator.comparingLong((Book b) -> b.nanos).reversed());
+        out.printf("%nSlowest books:%n");
+        out.printf("%8s %10s %12s  %s%n", "book", "total s", "bytes in", "steps (ms)");
+        for (Book b : books.subList(0, Math.min(n, books.size()))) {
+            StringBuilder strb = new StringBuilder();
+            for (Step s : b.steps) {
+                strb.append(String.format(Locale.ROOT, " %s=%.0f", s.step, s.nanos / 1e6));
+                if (!BookEvent.OK.equals(s.outcome)) {
+                    strb.append('(').append(s.outcome).append(')');
+                }
+            }
+            out.printf(Locale.ROOT, "%8d %10.2f %12d %s%n", b.id, b.nanos / 1e9, b.bytesIn, strb);
+        }
+
+        // the slowest single steps
+        ArrayList<Step> slowest = new ArrayList<>(this.steps);
+        slowest.sort(Comparator.comparingLong((Step s) -> s.nanos).reversed());
+        out.printf("%nSlowest steps:%n");
+        out.printf("%8s %-10s %10s %12s %12s  %s%n", "book", "step", "ms", "bytes in", "bytes out", "outcome");
+        for (Step s : slowest.subList(0, Math.min(n, slowest.size()))) {
+            out.printf(Locale.ROOT, "%8d %-10s %10.1f %12d %12d  %s%n", s.id, s.step, s.nanos / 1e6,
+                    s.bytesIn, s.bytesOut, s.outcome);
+        }
+    }
+
+    private List<Book> books() {
+        HashMap<Integer, Book> books = new HashMap<>();
+        for (Step s : this.steps) {
+            Book b = books.computeIfAbsent(s.id, k -> new Book());
+            b.id = s.id;
+            b.nanos += s.nanos;
+            b.bytesIn += s.bytesIn;
+            b.steps.add(s);
+        }
+        return new ArrayList<>(books.values());
+    }
+
+    private static long quantile(List<Long> sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("n", true, "Number of slowest books and steps to list (default 20)");
+        options.addOption("h", false, "Help");
+        int n = 20;
+        String[] files;
+        CommandLineParser parser = new DefaultParser();
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            files = cmd.getArgs();
+            if (cmd.hasOption("h") || files.length == 0) {
+                System.out.println("Summarizes the book steps in a JFR recording: BookTrace [-n 20] run.jfr");
+                return;
+            }
+            if (cmd.hasOption("n")) {
+                n = Integer.parseInt(cmd.getOptionValue("n").trim());
+            }
+        } catch (ParseException | NumberFormatException ex) {
+            System.out.println("Command line argument error:" + ex.getMessage());
+            return;
+        }
+        BookTrace trace = new BookTrace();
+        try {
+            for (String f : files) {
+                trace.read(new File(f));
+            }
+        } catch (IOException e) {
+            Logger.getLogger(BookTrace.class.getName()).log(Level.SEVERE, null, e);
+            return;
+        }
+        trace.print(System.out, n);
+    }
+}
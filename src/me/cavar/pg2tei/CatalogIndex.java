@@ -0,0 +1,457 @@
+/*
+ * CatalogIndex.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * A binary index of catalog.rdf, for runs that convert single books or ID
+ * ranges without parsing the whole catalog. It is built once per catalog,
+ * next to it as catalog.rdf.idx, and read through a memory map:
+ *
+ *   header  "PG2TEIX1", catalog length and modification time, count
+ *   table   per book, sorted by ID: ID, byte offset and length of the
+ *           <pgterms:etext> entry in the catalog, offset and length of
+ *           the book's fields
+ *   data    the fields of every book as collected by the RDFParser (see
+ *           TEIDoc.write())
+ *
+ * A lookup is a binary search in the mapped table, so a run starts with
+ * the first book right away. The byte ranges point at the original
+ * entries, e.g. to look at them with
+ *
+ *   java -cp pg2tei.jar me.cavar.pg2tei.CatalogIndex catalog.rdf 11,1000-1010
+ *
+ * The index records the length and modification time of the catalog and
+ * is rebuilt when a new catalog is fetched.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class CatalogIndex implements Closeable {
+
+    private static final byte[] MAGIC = "PG2TEIX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER = 32;
+    /**
+     * ID, entry offset and length, data offset and length.
+     */
+    private static final int RECORD = 28;
+    private static final String ENTRY = "pgterms:etext";
+    private static final String END = "/pgterms:etext";
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int count;
+    private long catalogLength;
+    private long catalogModified;
+
+    private CatalogIndex(File indexFile) throws IOException {
+        this.channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+        long size = this.channel.size();
+        if (size > Integer.MAX_VALUE || size < HEADER) {
+            this.channel.close();
+            throw new IOException("Not a catalog index: " + indexFile);
+        }
+        this.map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (this.map.get(i) != MAGIC[i]) {
+                this.channel.close();
+                throw new IOException("Not a catalog index: " + indexFile);
+            }
+        }
+        this.catalogLength = this.map.getLong(8);
+        this.catalogModified = this.map.getLong(16);
+        this.count = this.map.getInt(24);
+    }
+
+    /**
+     * The index file of a catalog.
+     */
+    public static File indexFile(File catalog) {
+        return new File(catalog.getPath() + ".idx");
+    }
+
+    /**
+     * Maps an existing index.
+     *
+     * @throws IOException if it is missing or no index
+     */
+    public static CatalogIndex open(File indexFile) throws IOException {
+        return new CatalogIndex(indexFile);
+    }
+
+    /**
+     * Opens the index of the catalog, and builds it first if there is none
+     * or if it is for another version of the catalog.
+     */
+    public static CatalogIndex forCatalog(File catalog) throws IOException {
+        File indexFile = indexFile(catalog);
+        if (indexFile.exists()) {
+            try {
+                CatalogIndex index = open(indexFile);
+                if (index.isCurrent(catalog)) {
+                    return index;
+                }
+                index.close();
+            } catch (IOException e) {
+                Logger.getLogger(CatalogIndex.class.getName()).log(Level.WARNING, "Rebuilding " + indexFile, e);
+            }
+        }
+        System.out.println("Indexing " + catalog);
+        long start = System.nanoTime();
+        build(catalog, indexFile);
+        CatalogIndex index = open(indexFile);
+        System.out.printf("Indexed %d books in %.1f s%n", index.size(), (System.nanoTime() - start) / 1e9);
+        return index;
+    }
+
+    /**
+     * True if the index was built from this catalog, as far as length and
+     * modification time tell.
+     */
+    public boolean isCurrent(File catalog) {
+        return catalog.length() == this.catalogLength && catalog.lastModified() == this.catalogModified;
+    }
+
+    /**
+     * The number of books.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * The ID of the i-th book, by ID.
+     */
+    public int getID(int i) {
+        return this.map.getInt(HEADER + i * RECORD);
+    }
+
+    /**
+     * The byte offset of the entry of the i-th book in the catalog.
+     */
+    public long getStart(int i) {
+        return this.map.getLong(HEADER + i * RECORD + 4);
+    }
+
+    /**
+     * The byte length of the entry of the i-th book in the catalog.
+     */
+    public int getLength(int i) {
+        return this.map.getInt(HEADER + i * RECORD + 12);
+    }
+
+    /**
+     * The fields of the i-th book, as the RDFParser collected them.
+     */
+    public TEIDoc getDocument(int i) throws IOException {
+        int base = HEADER + i * RECORD;
+        long offset = this.map.getLong(base + 16);
+        byte[] data = new byte[this.map.getInt(base + 24)];
+        ByteBuffer buf = this.map.duplicate();
+        buf.position((int) offset);
+        buf.get(data);
+        return TEIDoc.read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Returns the position of the first book with an ID >= id, size() if
+     * there is none.
+     */
+    public int lowerBound(int id) {
+        int lo = 0;
+        int hi = this.count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.getID(mid) < id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the positions of the books in the ID ranges, in order of the
+     * ranges. IDs that are not in the catalog are left out.
+     *
+     * @param ranges from parseIDs()
+     */
+    public List<Integer> select(List<int[]> ranges) {
+        ArrayList<Integer> positions = new ArrayList<>();
+        for (int[] range : ranges) {
+            for (int i = this.lowerBound(range[0]); i < this.count && this.getID(i) <= range[1]; i++) {
+                positions.add(i);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Parses a list of IDs and ID ranges, e.g. "11,84,1000-1100".
+     *
+     * @return the ranges as {from, to}
+     * @throws IllegalArgumentException
+     */
+    public static List<int[]> parseIDs(String spec) {
+        ArrayList<int[]> ranges = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] bounds = part.trim().split("-", 2);
+            try {
+                int from = Integer.parseInt(bounds[0].trim());
+                int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+                if (to < from) {
+                    throw new IllegalArgumentException("Empty ID range: " + part);
+                }
+                ranges.add(new int[]{from, to});
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("IDs must be like 11,84,1000-1100: " + spec);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads the original entry of the i-th book from the catalog.
+     */
+    public byte[] readEntry(File catalog, int i) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(this.getLength(i));
+        try (FileChannel in = FileChannel.open(catalog.toPath(), StandardOpenOption.READ)) {
+            long pos = this.getStart(i);
+            while (buf.hasRemaining() && in.read(buf, pos + buf.position()) >= 0) {
+                // read the rest
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Closes the index file. The mapping stays valid until it is
+     * collected.
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Builds the index of a catalog: one pass over the bytes for the exact
+     * range of every entry, one RDFParser pass for the fields.
+     */
+    public static void build(File catalog, File indexFile) throws IOException {
+        long length = catalog.length();
+        long modified = catalog.lastModified();
+        TreeMap<Integer, long[]> ranges = scan(catalog);
+
+        // the fields of every entry, by ID
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final DataOutputStream dataOut = new DataOutputStream(data);
+        final HashMap<Integer, long[]> fields = new HashMap<>();
+        RDFParser parser = new RDFParser() {
+            @Override
+            protected boolean wanted(int id) {
+                return true;
+            }
+
+            @Override
+            protected void entry(TEIDoc doc) {
+                long offset = dataOut.size();
+                try {
+                    doc.write(dataOut);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                fields.put(doc.idN, new long[]{offset, dataOut.size() - offset});
+            }
+        };
+        try (InputStream in = new BufferedInputStream(new FileInputStream(catalog), 1 << 16)) {
+            parser.parseDocument(in, catalog.toURI().toString());
+        } catch (ParserConfigurationException | SAXNotRecognizedException | SAXNotSupportedException e) {
+            throw new IOException(e);
+        }
+        ranges.keySet().retainAll(fields.keySet());
+        if (ranges.size() < fields.size()) {
+            Logger.getLogger(CatalogIndex.class.getName()).log(Level.WARNING,
+                    "{0} parsed entries without a byte range", fields.size() - ranges.size());
+        }
+        dataOut.flush();
+
+        long dataBase = HEADER + (long) ranges.size() * RECORD;
+        ByteBuffer head = ByteBuffer.allocate((int) dataBase);
+        head.put(MAGIC).putLong(length).putLong(modified).putInt(ranges.size()).putInt(0);
+        for (Map.Entry<Integer, long[]> e : ranges.entrySet()) {
+            long[] range = e.getValue();
+            long[] field = fields.get(e.getKey());
+            head.putInt(e.getKey()).putLong(range[0]).putInt((int) (range[1] - range[0]))
+                    .putLong(dataBase + field[0]).putInt((int) field[1]);
+        }
+        head.flip();
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer body = ByteBuffer.wrap(data.toByteArray());
+            while (head.hasRemaining()) {
+                out.write(head);
+            }
+            while (body.hasRemaining()) {
+                out.write(body);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finds the byte range of every <pgterms:etext> entry of the catalog
+     * and the number at the end of its rdf:ID.
+     *
+     * @return {start, end} by ID
+     */
+    private static TreeMap<Integer, long[]> scan(File catalog) throws IOException {
+        TreeMap<Integer, long[]> ranges = new TreeMap<>();
+        StringBuilder tag = new StringBuilder();
+        long pos = 0L;
+        long start = -1L;
+        int id = -1;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(catalog), 1 << 16)) {
+            int b;
+            while ((b = in.read()) >= 0) {
+                pos += 1;
+                if (b != '<') {
+                    continue;
+                }
+                long tagStart = pos - 1;
+                // the name, up to white space or '>', only short names
+                // are of interest
+                tag.setLength(0);
+                while ((b = in.read()) >= 0) {
+                    pos += 1;
+                    if (b == '>' || b == ' ' || b == '\t' || b == '\r' || b == '\n' || tag.length() > END.length()) {
+                        break;
+                    }
+                    tag.append((char) b);
+                }
+                String name = tag.toString();
+                if (name.equals(ENTRY)) {
+                    // the rest of the start tag has the rdf:ID
+                    tag.setLength(0);
+                    while (b != '>' && (b = in.read()) >= 0) {
+                        pos += 1;
+                        tag.append((char) b);
+                    }
+                    start = tagStart;
+                    id = parseID(tag);
+                } else if (name.equals(END) && start >= 0) {
+                    while (b != '>' && (b = in.read()) >= 0) {
+                        pos += 1;
+                    }
+                    if (id >= 0) {
+                        ranges.put(id, new long[]{start, pos});
+                    }
+                    start = -1L;
+                    id = -1;
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * The number at the end of the rdf:ID="etext123" attribute, -1 if
+     * there is none.
+     */
+    private static int parseID(CharSequence attributes) {
+        String s = attributes.toString();
+        int i = s.indexOf("rdf:ID=");
+        if (i < 0) {
+            return -1;
+        }
+        char quote = s.charAt(i + 7);
+        int end = s.indexOf(quote, i + 8);
+        if (end < 0) {
+            return -1;
+        }
+        int digits = end;
+        while (digits > i + 8 && Character.isDigit(s.charAt(digits - 1))) {
+            digits -= 1;
+        }
+        return digits == end ? -1 : Integer.parseInt(s.substring(digits, end));
+    }
+
+    /**
+     * @param args catalog.rdf and the IDs, e.g. 11,1000-1010
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Prints the catalog entries of books, building the index if needed: "
+                    + "CatalogIndex catalog.rdf 11,1000-1010");
+            return;
+        }
+        File catalog = new File(args[0]);
+        List<int[]> ids;
+        try {
+            ids = parseIDs(args[1]);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Command line argument error:" + ex.getMessage());
+            return;
+        }
+        try (CatalogIndex index = forCatalog(catalog)) {
+            for (int i : index.select(ids)) {
+                System.out.printf("<!-- %d: bytes %d-%d -->%n", index.getID(i), index.getStart(i),
+                        index.getStart(i) + index.getLength(i));
+                System.out.println(new String(index.readEntry(catalog, i), StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            Logger.getLogger(CatalogIndex.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * CatalogStream.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The catalog.rdf bytes as seen by the RDFParser, with the byte offset of
+ * the parser in the original catalog. To resume a run in the middle of the
+ * catalog, the prolog up to and including the <rdf:RDF> start tag is read,
+ * the stream skips to the first <pgterms:etext> at or after the resume
+ * offset, and the parser gets the prolog followed by the rest of the
+ * catalog, which is again a well-formed document.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class CatalogStream extends FilterInputStream {
+
+    /**
+     * The parser reads ahead, offsets taken from this stream are upper
+     * bounds. A resume starts this many bytes earlier.
+     */
+    public static final long SLACK = 1024 * 1024;
+    /**
+     * Maximum size of the prolog, including the DTD.
+     */
+    private static final int MAX_PROLOG = 4 * 1024 * 1024;
+    private static final byte[] ROOT = "<rdf:RDF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ENTRY = "<pgterms:etext".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "</rdf:RDF".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Bytes read by the parser.
+     */
+    private long count;
+    /**
+     * Length of the spliced prolog, 0 if the catalog is read from the start.
+     */
+    private long prologLength;
+    /**
+     * Catalog offset of the first byte after the prolog.
+     */
+    private long base;
+
+    private CatalogStream(InputStream in, long prologLength, long base) {
+        super(in);
+        this.count = 0L;
+        this.prologLength = prologLength;
+        this.base = base;
+    }
+
+    /**
+     * Opens the catalog for parsing from the entry at or after
+     * resumeOffset - SLACK.
+     *
+     * @param in the catalog.rdf bytes from the start
+     * @param resumeOffset 0 to parse the whole catalog
+     * @return the stream for the parser
+     * @throws IOException
+     */
+    public static CatalogStream open(InputStream in, long resumeOffset) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in, 64 * 1024);
+        if (resumeOffset <= SLACK) {
+            return new CatalogStream(bin, 0L, 0L);
+        }
+        ByteArrayOutputStream prolog = new ByteArrayOutputStream();
+        long pos = copyTo(bin, prolog, ROOT, MAX_PROLOG);
+        int c = -1;
+        if (pos >= 0) {
+            // the rest of the root start tag
+            while ((c = bin.read()) != -1 && prolog.size() < MAX_PROLOG) {
+                prolog.write(c);
+                if (c == '>') {
+                    break;
+                }
+            }
+        }
+        if (pos < 0 || c != '>') {
+            // no recognizable root, parse everything
+            return new CatalogStream(new SequenceInputStream(
+                    new ByteArrayInputStream(prolog.toByteArray()), bin), 0L, 0L);
+        }
+        pos = prolog.size();
+        long start = Math.max(pos, resumeOffset - SLACK);
+        long skip = start - pos;
+        while (skip > 0) {
+            long n = bin.skip(skip);
+            if (n <= 0) {
+                break;
+            }
+            skip -= n;
+        }
+        pos = start - skip;
+        long found = scanTo(bin, ENTRY);
+        if (found < 0) {
+            // all entries done, just close the root
+            prolog.write(END);
+            prolog.write('>');
+            return new CatalogStream(new ByteArrayInputStream(prolog.toByteArray()), 0L, 0L);
+        }
+        byte[] head = prolog.toByteArray();
+        return new CatalogStream(new SequenceInputStream(new ByteArrayInputStream(head), bin),
+                head.length, pos + found);
+    }
+
+    /**
+     * Copies bytes to out until the pattern starts, the pattern is left in
+     * the stream, too.
+     *
+     * @return the number of bytes copied, or -1 if the pattern was not found
+     */
+    private static long copyTo(BufferedInputStream in, ByteArrayOutputStream out, byte[] pattern, int max)
+            throws IOException {
+        long n = 0;
+        while (n < max) {
+            in.mark(pattern.length);
+            int c = in.read();
+            if (c == -1) {
+                return -1;
+            }
+            if (c == pattern[0] && matches(in, pattern)) {
+                // keep the pattern
+                out.write(pattern, 0, pattern.length);
+                return n;
+            }
+            in.reset();
+            out.write(in.read());
+            n++;
+        }
+        return -1;
+    }
+
+    /**
+     * Skips bytes until the pattern starts; the stream is left at the
+     * pattern.
+     *
+     * @return the number of bytes skipped, or -1 at the end of the stream
+     */
+    private static long scanTo(BufferedInputStream in, byte[] pattern) throws IOException {
+        long n = 0;
+        while (true) {
+            in.mark(pattern.length);
+            int c = in.read();
+            if (c == -1) {
+                return -1;
+            }
+            if (c == pattern[0] && matches(in, pattern)) {
+                in.reset();
+                return n;
+            }
+            in.reset();
+            in.read();
+            n++;
+        }
+    }
+
+    /**
+     * Checks the bytes after pattern[0] against the rest of the pattern.
+     */
+    private static boolean matches(BufferedInputStream in, byte[] pattern) throws IOException {
+        for (int i = 1; i < pattern.length; i++) {
+            if (in.read() != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the byte offset of the parser in the original catalog, an
+     * upper bound because of the read-ahead of the parser.
+     */
+    public long position() {
+        if (this.count <= this.prologLength) {
+            return this.count;
+        }
+        return this.base + (this.count - this.prologLength);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = super.read();
+        if (c != -1) {
+            this.count++;
+        }
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            this.count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        this.count += skipped;
+        return skipped;
+    }
+}
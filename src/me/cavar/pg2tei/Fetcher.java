@@ -33,11 +33,28 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import org.apache.commons.io.input.TeeInputStream;
 
 /**
  * @author Damir Cavar
@@ -45,6 +62,16 @@ import java.util.zip.ZipInputStream;
  */
 public class Fetcher {
 
+    /**
+     * Size of the transfer buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Number of resume attempts after an interrupted download or a
+     * transient server error, with the backoff of the book retries.
+     */
+    private static final int MAX_RETRIES = 5;
+
     public String catalogRDFURL;
     public String outputFolder;
     public String rdfFileName;
@@ -60,51 +87,294 @@ public class Fetcher {
 
     /**
      * Downloads the ZIP-compressed catalog of the Project Gutenberg archive in
-     * RDF-format.
+     * RDF-format. The body is streamed into a ".part" file next to the
+     * output file, which is renamed when the transfer is complete. An
+     * interrupted transfer is resumed with an HTTP Range request, either on
+     * one of the retries here or in a later run. Only network errors, 408,
+     * 429 and 5xx responses are retried (see RetryQueue.isTransient()),
+     * after a backoff that doubles with every attempt. The SHA-256 checksum
+     * of the file is computed while the bytes arrive.
      *
-     * @param url
-     * @return
+     * @param u
+     * @param outputFile
+     * @return the hex-encoded SHA-256 checksum of the file
      * @throws MalformedURLException
      * @throws IOException
      */
-    public void getCatalog(URL u, File outputFile)
+    public String getCatalog(URL u, File outputFile)
             throws MalformedURLException, IOException {
-        URLConnection uc = u.openConnection();
-        String contentType = uc.getContentType();
-        int contentLength = uc.getContentLength();
-        if (contentType.startsWith("text/") || contentLength == -1) {
+        File partFile = new File(outputFile.getPath() + ".part");
+        File validatorFile = new File(outputFile.getPath() + ".part.validator");
+        for (int attempt = 0;; attempt++) {
+            try {
+                String checksum = this.transfer(u, partFile, validatorFile);
+                Files.move(partFile.toPath(), outputFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(validatorFile.toPath());
+                return checksum;
+            } catch (IOException e) {
+                if (!RetryQueue.isTransient(e) || attempt == MAX_RETRIES) {
+                    throw e;
+                }
+                long delay = RetryQueue.backoff(attempt + 1);
+                Logger.getLogger(Fetcher.class.getName()).log(Level.WARNING,
+                        "Catalog download interrupted at " + partFile.length() + " bytes, retrying in "
+                        + TimeUnit.NANOSECONDS.toMillis(delay) + " ms", e);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Catalog download interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Transfers the (remaining) body of the catalog into partFile.
+     *
+     * @return the hex-encoded SHA-256 checksum of the complete partFile
+     */
+    private String transfer(URL u, File partFile, File validatorFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        long offset = partFile.exists() ? partFile.length() : 0L;
+        String validator = null;
+        if (offset > 0 && validatorFile.exists()) {
+            validator = new String(Files.readAllBytes(validatorFile.toPath()), StandardCharsets.US_ASCII).trim();
+        }
+
+        HashMap<String, String> headers = new HashMap<>();
+        if (offset > 0) {
+            headers.put("Range", "bytes=" + offset + "-");
+            // only resume if the file on the server did not change
+            if (validator != null && validator.length() > 0) {
+                headers.put("If-Range", validator);
+            }
+        }
+        // no transfer encoding, the range addresses the raw bytes
+        HTTPClient.Response res = HTTPClient.getShared().open(u, headers, false);
+        int status = res.statusCode;
+        if (status == 416) {
+            res.stream.close();
+            // complete if the part file is as long as the file on the server
+            if (offset == completeLength(res.header("Content-Range"))) {
+                return this.digestFile(partFile, digest, offset);
+            }
+            if (offset == 0L) {
+                throw new HTTPClient.StatusException(status, u);
+            }
+            Logger.getLogger(Fetcher.class.getName()).log(Level.WARNING,
+                    "Partial catalog of " + offset + " bytes does not match the server ("
+                    + res.header("Content-Range") + "), downloading it again");
+            Files.deleteIfExists(partFile.toPath());
+            Files.deleteIfExists(validatorFile.toPath());
+            return this.transfer(u, partFile, validatorFile);
+        }
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            res.stream.close();
+            throw new HTTPClient.StatusException(status, u);
+        }
+        String contentType = res.header("Content-Type");
+        if (contentType != null && contentType.startsWith("text/")) {
+            res.stream.close();
             throw new IOException("This is not a binary file.");
         }
+        if (status == HttpURLConnection.HTTP_OK) {
+            // the server ignored the range, start from byte zero
+            offset = 0L;
+        }
+        // remember what we are downloading for a later resume
+        String newValidator = res.header("ETag");
+        if (newValidator == null) {
+            newValidator = res.header("Last-Modified");
+        }
+        if (newValidator != null) {
+            Files.write(validatorFile.toPath(), newValidator.getBytes(StandardCharsets.US_ASCII));
+        } else {
+            Files.deleteIfExists(validatorFile.toPath());
+        }
+        // -1 for chunked or unknown length
+        long contentLength = res.contentLength();
 
-        InputStream raw = uc.getInputStream();
-        byte[] data;
-        int offset;
-        try (InputStream in = new BufferedInputStream(raw)) {
-            data = new byte[contentLength];
-            int bytesRead;
-            offset = 0;
-            while (offset < contentLength) {
-                bytesRead = in.read(data, offset, data.length - offset);
-                if (bytesRead == -1) {
-                    break;
+        long total;
+        try (FileChannel out = FileChannel.open(partFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // the digest covers the bytes we already have
+            this.digestFile(partFile, digest, offset);
+            out.truncate(offset);
+            out.position(offset);
+            total = offset;
+            try (ReadableByteChannel in = Channels.newChannel(res.stream)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (in.read(buf) != -1) {
+                    buf.flip();
+                    // the buffer is read twice: by the digest and by the channel
+                    ByteBuffer view = buf.duplicate();
+                    digest.update(view);
+                    while (buf.hasRemaining()) {
+                        total += out.write(buf);
+                    }
+                    buf.clear();
                 }
-                offset += bytesRead;
             }
+            out.force(false);
+        } finally {
+            res.stream.close();
         }
 
-        if (offset != contentLength) {
-            throw new IOException("Only read " + offset + " bytes; Expected "
+        if (contentLength != -1 && total != offset + contentLength) {
+            throw new IOException("Only read " + (total - offset) + " bytes; Expected "
                     + contentLength + " bytes");
         }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the length of the whole file from the Content-Range header of
+     * a 416 response, the number after the slash, or -1 if it is missing or
+     * not understood.
+     */
+    static long completeLength(String contentRange) {
+        if (contentRange == null) {
+            return -1L;
+        }
+        String value = contentRange.trim();
+        int slash = value.lastIndexOf('/');
+        if (!value.startsWith("bytes") || slash < 0) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Feeds the first length bytes of a file into the digest.
+     *
+     * @return the hex-encoded digest if the whole file was read, or null
+     */
+    private String digestFile(File file, MessageDigest digest, long length) throws IOException {
+        if (length > 0) {
+            this.readInto(file, digest, length);
+        }
+        if (length == file.length()) {
+            // we need a copy, the digest of the partial file is still updated
+            try {
+                return toHex(((MessageDigest) digest.clone()).digest());
+            } catch (CloneNotSupportedException e) {
+                throw new IOException(e);
+            }
+        }
+        return null;
+    }
+
+    private void readInto(File file, MessageDigest digest, long length) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long remaining = length;
+            while (remaining > 0) {
+                buf.clear();
+                if (remaining < buf.capacity()) {
+                    buf.limit((int) remaining);
+                }
+                int n = in.read(buf);
+                if (n == -1) {
+                    throw new IOException("Partial file shorter than expected: " + file);
+                }
+                buf.flip();
+                digest.update(buf);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Hex-encodes a byte array.
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder strb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            strb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            strb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return strb.toString();
+    }
 
-        try (FileOutputStream fop = new FileOutputStream(outputFile)) {
-            if (!outputFile.exists()) {
-                outputFile.createNewFile();
+    /**
+     * Opens the catalog.rdf entry of a zip archive for reading. The
+     * returned stream ends with the entry, closing it closes zipStream.
+     *
+     * @param zipStream
+     * @return the stream positioned at the start of the catalog entry
+     * @throws IOException
+     */
+    public InputStream openCatalogEntry(InputStream zipStream) throws IOException {
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(zipStream, BUFFER_SIZE));
+        ZipEntry ze;
+        while ((ze = zis.getNextEntry()) != null) {
+            if (ze.getName().equals(this.rdfFileName)) {
+                return zis;
             }
-            fop.write(data);
-            fop.flush();
-            fop.close();
         }
+        zis.close();
+        throw new IOException("No " + this.rdfFileName + " in the catalog archive");
+    }
+
+    /**
+     * Downloads the catalog archive and returns its catalog.rdf entry as a
+     * stream, so that the catalog can be parsed while it arrives. The
+     * archive is written to zipFile on the way; closing the stream reads
+     * the remaining bytes of the archive, so that the copy on disk is
+     * complete for the next run. The copy goes through a ".stream" file,
+     * not the ".part" file of getCatalog(): it starts at byte zero and has
+     * no validator, a later getCatalog() must not resume onto it.
+     *
+     * @param u
+     * @param zipFile
+     * @return the stream positioned at the start of the catalog entry
+     * @throws IOException
+     */
+    public InputStream openCatalogStream(URL u, File zipFile) throws IOException {
+        HTTPClient.Response res = HTTPClient.getShared().open(u, new HashMap<String, String>(), true);
+        if (res.statusCode != HttpURLConnection.HTTP_OK) {
+            res.stream.close();
+            throw new IOException("Server returned HTTP " + res.statusCode + " for " + u);
+        }
+        final File streamFile = new File(zipFile.getPath() + ".stream");
+        final File target = zipFile;
+        InputStream tee = new TeeInputStream(res.stream, new FileOutputStream(streamFile), true) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    while (this.read(buffer) != -1) {
+                        // keep the local copy complete
+                    }
+                } finally {
+                    super.close();
+                }
+                Files.move(streamFile.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // an interrupted getCatalog() of an older archive is moot now
+                Files.deleteIfExists(Paths.get(target.getPath() + ".part"));
+                Files.deleteIfExists(Paths.get(target.getPath() + ".part.validator"));
+            }
+        };
+        return this.openCatalogEntry(tee);
     }
 
     /**
@@ -113,7 +383,7 @@ public class Fetcher {
      * @param outputFolder
      */
     public void unZip(File zipFile) throws IOException {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[BUFFER_SIZE];
         try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
             ZipEntry ze = zis.getNextEntry();
             while (ze != null) {
@@ -28,11 +28,19 @@
 package me.cavar.pg2tei;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerConfigurationException;
+import jdk.jfr.Recording;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.Options;
@@ -51,18 +59,170 @@ public class Gutenberg2TEI {
      *
      * @param outputFolder
      * @param catalogOutFN
+     * @param pipeline
      */
-    public static void processRDF(String outputFolder, String catalogOutFN, String ebookURLStr) {
+    public static void processRDF(String outputFolder, String catalogOutFN, BookPipeline pipeline) {
         System.out.println("Processing catalog.rdf");
         File rdfFile = new File(outputFolder, catalogOutFN);
-        RDFParser myRdfP = new RDFParser(ebookURLStr, outputFolder);
+        RDFParser myRdfP = new RDFParser(pipeline);
+        try {
+            pipeline.start();
+        } catch (IOException e) {
+            Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, e);
+            return;
+        }
         try {
             System.out.println(rdfFile.getAbsolutePath());
-            myRdfP.parseDocument(rdfFile.getAbsolutePath());
+            Metrics.getShared().gauge(Metrics.CATALOG_SIZE, rdfFile::length);
+            // continue an interrupted run near where it stopped
+            long offset = pipeline.getJournal().startCatalog(rdfFile.length() + ":" + rdfFile.lastModified());
+            if (offset > 0) {
+                System.out.println("Resuming catalog near byte " + offset);
+            }
+            try (CatalogStream in = CatalogStream.open(new FileInputStream(rdfFile), offset)) {
+                myRdfP.parseCatalog(in, rdfFile.toURI().toString());
+            }
+        } catch (IOException e) {
+            Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, e);
         } catch (ParserConfigurationException | SAXNotRecognizedException | SAXNotSupportedException e) {
             Logger.getLogger(Fetcher.class.getName()).log(Level.SEVERE, null, e);
         }
+        // wait for the books still in the pipeline
+        pipeline.shutdown();
+        System.out.printf("Number of entries: %d\n", myRdfP.getEntryCounter());
+        System.out.printf("Number of entries skipped: %d\n", myRdfP.getSkippedCounter());
+        if (myRdfP.getFilteredCounter() > 0) {
+            System.out.printf("Number of entries not selected: %d\n", myRdfP.getFilteredCounter());
+        }
+        if (pipeline.getShard() != null) {
+            System.out.printf("Number of entries of other shards: %d\n", myRdfP.getOtherShardCounter());
+        }
+        System.out.printf("Number of books written: %d\n", pipeline.getWrittenCounter());
+    }
+
+    /**
+     * Converts only the books with the given IDs, looked up in the index of
+     * the catalog instead of parsing all of it. The index is built first if
+     * there is none for this catalog.
+     *
+     * @param outputFolder
+     * @param catalogOutFN
+     * @param ids ID ranges, see CatalogIndex.parseIDs()
+     * @param pipeline
+     */
+    public static void processIndexed(String outputFolder, String catalogOutFN, List<int[]> ids,
+            BookPipeline pipeline) {
+        File rdfFile = new File(outputFolder, catalogOutFN);
+        Metrics metrics = Metrics.getShared();
+        int entries = 0;
+        int skipped = 0;
+        int filtered = 0;
+        try (CatalogIndex index = CatalogIndex.forCatalog(rdfFile)) {
+            pipeline.start();
+            // the offsets of the books are not those of a catalog parse, a
+            // run of the whole catalog must not resume from them
+            pipeline.getJournal().startCatalog("index@" + System.currentTimeMillis());
+            for (int i : index.select(ids)) {
+                TEIDoc doc = index.getDocument(i);
+                if (pipeline.getShard() != null && !pipeline.getShard().owns(doc.idN)) {
+                    continue;
+                }
+                entries += 1;
+                metrics.increment(Metrics.CATALOG_ENTRIES);
+                if (!pipeline.isSelected(doc)) {
+                    filtered += 1;
+                    metrics.increment(Metrics.CATALOG_FILTERED);
+                    continue;
+                }
+                String fingerprint = doc.fingerprint();
+                if (pipeline.isFinished(doc.idN, fingerprint)) {
+                    skipped += 1;
+                    metrics.increment(Metrics.BOOKS_SKIPPED);
+                    continue;
+                }
+                pipeline.submit(doc, index.getStart(i), fingerprint);
+            }
+        } catch (IOException e) {
+            Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, e);
+            if (pipeline.getJournal() == null) {
+                return;
+            }
+        }
+        // wait for the books still in the pipeline
+        pipeline.shutdown();
+        System.out.printf("Number of entries: %d\n", entries);
+        System.out.printf("Number of entries skipped: %d\n", skipped);
+        if (filtered > 0) {
+            System.out.printf("Number of entries not selected: %d\n", filtered);
+        }
+        System.out.printf("Number of books written: %d\n", pipeline.getWrittenCounter());
+    }
+
+    /**
+     * Parses catalog.rdf straight out of the zip archive, without unpacking
+     * it to disk. With fromDownload the archive is parsed while it is
+     * downloaded, unless a local copy exists already.
+     *
+     * @param catalogURLStr
+     * @param outputFolder
+     * @param catalogOutFN
+     * @param fromDownload
+     * @param pipeline
+     */
+    public static void processZippedRDF(String catalogURLStr, String outputFolder, String catalogOutFN,
+            boolean fromDownload, BookPipeline pipeline) {
+        System.out.println("Processing zipped catalog.rdf");
+        Fetcher myFetcher = new Fetcher(catalogURLStr, outputFolder, catalogOutFN);
+        RDFParser myRdfP = new RDFParser(pipeline);
+        try {
+            pipeline.start();
+        } catch (IOException e) {
+            Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, e);
+            return;
+        }
+        try {
+            URL catalogURL = new URL(catalogURLStr);
+            File zipFile = new File(outputFolder, new File(catalogURL.getFile()).getName());
+            InputStream in;
+            if (zipFile.exists()) {
+                in = myFetcher.openCatalogEntry(new FileInputStream(zipFile));
+            } else if (fromDownload) {
+                System.out.println("Streaming Gutenberg Catalog-file from " + catalogURL);
+                in = myFetcher.openCatalogStream(catalogURL, zipFile);
+            } else {
+                System.out.print("Fetching Gutenberg Catalog-file as RDF-Zip... writing to ");
+                System.out.println(zipFile);
+                String checksum = myFetcher.getCatalog(catalogURL, zipFile);
+                System.out.println("Done, SHA-256: " + checksum);
+                in = myFetcher.openCatalogEntry(new FileInputStream(zipFile));
+            }
+            // a catalog still being downloaded is new, nothing to resume
+            String identity = fromDownload && !zipFile.exists()
+                    ? catalogURLStr + "@" + System.currentTimeMillis()
+                    : zipFile.length() + ":" + zipFile.lastModified();
+            long offset = pipeline.getJournal().startCatalog(identity);
+            if (offset > 0) {
+                System.out.println("Resuming catalog near byte " + offset);
+            }
+            try (CatalogStream cin = CatalogStream.open(in, offset)) {
+                myRdfP.parseCatalog(cin, zipFile.getName() + "!/" + catalogOutFN);
+            }
+        } catch (IOException e) {
+            Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, e);
+        } catch (ParserConfigurationException | SAXNotRecognizedException | SAXNotSupportedException e) {
+            Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, e);
+        }
+        // wait for the books still in the pipeline
+        pipeline.shutdown();
         System.out.printf("Number of entries: %d\n", myRdfP.getEntryCounter());
+        System.out.printf("Number of entries skipped: %d\n", myRdfP.getSkippedCounter());
+        if (myRdfP.getFilteredCounter() > 0) {
+            System.out.printf("Number of entries not selected: %d\n", myRdfP.getFilteredCounter());
+        }
+        if (pipeline.getShard() != null) {
+            System.out.printf("Number of entries of other shards: %d\n", myRdfP.getOtherShardCounter());
+        }
+        System.out.printf("Number of books written: %d\n", pipeline.getWrittenCounter());
     }
 
     /**
@@ -84,8 +244,8 @@ public class Gutenberg2TEI {
                     // get the catalog.rdf.zip file
                     System.out.print("Fetching Gutenberg Catalog-file as RDF-Zip... writing to ");
                     System.out.println(zipFile);
-                    myFetcher.getCatalog(catalogURL, zipFile);
-                    System.out.println("Done");
+                    String checksum = myFetcher.getCatalog(catalogURL, zipFile);
+                    System.out.println("Done, SHA-256: " + checksum);
                 }
                 // unzip the catalog.rdf.zip file to catalog.rdf
                 System.out.print("Unzipping the Catalog-file... ");
@@ -107,6 +267,43 @@ public class Gutenberg2TEI {
         options.addOption("c", true, "Catalogue URL");
         options.addOption("o", true, "Output folder");
         // options.addOption("f", true, "Resulting output catalogue file name");
+        options.addOption("s", true, "Pipeline stage as name=workers:queue, repeatable "
+                + "(stages: rdf, html, convert, merge, write)");
+        options.addOption("z", true, "Parse catalog.rdf inside the zip without unpacking: "
+                + "'file' (download first) or 'stream' (parse while downloading)");
+        options.addOption("e", true, "Conversion engine: 'java' (in-process, default), "
+                + "'odt' (textutil and odttotei) or 'xslt' (textutil and the odttotei stylesheets in-process)");
+        options.addOption("x", true, "Stylesheet for the 'xslt' engine, repeatable, applied in order "
+                + "(default: " + HTMLBook.DEFAULT_ODT_STYLESHEET + ")");
+        options.addOption("a", true, "Maximum number of books with an RDF or HTML request in flight "
+                + "(default 64)");
+        options.addOption("t", true, "HTTP connect and read timeouts in ms as connect:read");
+        options.addOption("T", true, "Seconds a book has from its RDF request until its HTML-file is "
+                + "on disk, then it is retried (default 600)");
+        options.addOption("r", true, "Ceilings per host of requests per second and requests in flight "
+                + "as rate:max, rate 0 for none (default 20:32)");
+        options.addOption("L", true, "Local mirror of Project Gutenberg, the catalog, RDF and HTML "
+                + "are read from it without network");
+        options.addOption("R", true, "Retries of a book that failed for a transient reason, "
+                + "after the catalog (default 3)");
+        options.addOption("N", true, "Days books the server does not have are skipped (default 7, 0 for never)");
+        options.addOption("k", true, "Cache folder for the per-book RDF and HTML responses");
+        options.addOption("K", true, "Seconds a cached response is used without revalidation (default 0)");
+        options.addOption("d", false, "Delta mode: fetch a fresh catalog and only convert books "
+                + "that are new or whose catalog entry changed");
+        options.addOption("H", true, "TEI header template file with <?pg2tei name?> slots "
+                + "(default: the built-in template)");
+        options.addOption("m", true, "Metrics file, rewritten while running: Prometheus text format "
+                + "if the name ends in .prom, JSON otherwise");
+        options.addOption("M", true, "Seconds between progress lines and metrics exports (default 10)");
+        options.addOption("j", true, "Record a Java Flight Recorder file of the run, with the steps "
+                + "of every book (summarize it with me.cavar.pg2tei.BookTrace)");
+        options.addOption("i", true, "Only convert the books with these IDs, e.g. 11,84,1000-1100, "
+                + "looked up in an index of the catalog (built on first use)");
+        options.addOption("F", "filter", true, "Only convert the books selected by an expression over "
+                + "their catalog entry, e.g. 'lang in (en,de) and lcc startsWith \"PR\"'");
+        options.addOption("S", "shard", true, "Only convert shard i of N of the catalog, given as i/N "
+                + "with 0 <= i < N, into the folder shard-i-of-N of the output folder");
         options.addOption("h", false, "Help");
 
         // the individual RDF-files are at this URL:
@@ -117,6 +314,21 @@ public class Gutenberg2TEI {
         String catalogURLStr = "http://www.gutenberg.org/feeds/catalog.rdf.zip";
         String outputFolder = ".";
         String catalogOutFN = "catalog.rdf";
+        String[] stageSpecs = new String[0];
+        int maxFetches = 64;
+        int maxRetries = RetryQueue.DEFAULT_RETRIES;
+        long fetchDeadline = BookPipeline.DEFAULT_FETCH_DEADLINE;
+        long negativeTTL = NegativeCache.DEFAULT_TTL;
+        String zipMode = null;
+        int engine = HTMLBook.ENGINE_JAVA;
+        ArrayList<File> stylesheets = null;
+        boolean delta = false;
+        String jfrFile = null;
+        Shard shard = null;
+        List<int[]> ids = null;
+        BookFilter filter = null;
+        File metricsFile = null;
+        int metricsInterval = 10;
 
         CommandLineParser parser;
         parser = new PosixParser();
@@ -133,6 +345,169 @@ public class Gutenberg2TEI {
             if (cmd.hasOption("o")) {
                 outputFolder = cmd.getOptionValue("o");
             }
+            if (cmd.hasOption("d")) {
+                delta = true;
+            }
+            if (cmd.hasOption("j")) {
+                jfrFile = cmd.getOptionValue("j");
+            }
+            if (cmd.hasOption("i")) {
+                try {
+                    ids = CatalogIndex.parseIDs(cmd.getOptionValue("i"));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Command line argument error: -i " + ex.getMessage());
+                    return;
+                }
+            }
+            if (cmd.hasOption("F")) {
+                try {
+                    filter = BookFilter.compile(cmd.getOptionValue("F"));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Command line argument error: -F " + ex.getMessage());
+                    return;
+                }
+            }
+            if (cmd.hasOption("S")) {
+                try {
+                    shard = Shard.parse(cmd.getOptionValue("S"));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Command line argument error: -S " + ex.getMessage());
+                    return;
+                }
+            }
+            if (cmd.hasOption("s")) {
+                stageSpecs = cmd.getOptionValues("s");
+            }
+            if (cmd.hasOption("z")) {
+                zipMode = cmd.getOptionValue("z");
+                if (!zipMode.equals("file") && !zipMode.equals("stream")) {
+                    System.out.println("Command line argument error: -z must be 'file' or 'stream'");
+                    return;
+                }
+            }
+            if (cmd.hasOption("e")) {
+                String val = cmd.getOptionValue("e");
+                if (val.equals("odt")) {
+                    engine = HTMLBook.ENGINE_ODT;
+                } else if (val.equals("xslt")) {
+                    engine = HTMLBook.ENGINE_XSLT;
+                } else if (!val.equals("java")) {
+                    System.out.println("Command line argument error: -e must be 'java', 'odt' or 'xslt'");
+                    return;
+                }
+            }
+            if (engine == HTMLBook.ENGINE_XSLT) {
+                stylesheets = new ArrayList<>();
+                if (cmd.hasOption("x")) {
+                    for (String val : cmd.getOptionValues("x")) {
+                        stylesheets.add(new File(val));
+                    }
+                } else {
+                    stylesheets.add(new File(HTMLBook.DEFAULT_ODT_STYLESHEET));
+                }
+                // compile them once now, the workers share the Templates
+                try {
+                    for (File stylesheet : stylesheets) {
+                        XMLToolkit.templates(stylesheet);
+                    }
+                } catch (TransformerConfigurationException ex) {
+                    System.out.println("Command line argument error: -x stylesheet: " + ex.getMessage());
+                    return;
+                }
+            }
+            if (cmd.hasOption("a")) {
+                try {
+                    maxFetches = Integer.parseInt(cmd.getOptionValue("a").trim());
+                } catch (NumberFormatException ex) {
+                    System.out.println("Command line argument error: -a must be a number of requests");
+                    return;
+                }
+            }
+            if (cmd.hasOption("R") || cmd.hasOption("N")) {
+                try {
+                    if (cmd.hasOption("R")) {
+                        maxRetries = Integer.parseInt(cmd.getOptionValue("R").trim());
+                    }
+                    if (cmd.hasOption("N")) {
+                        negativeTTL = Math.round(Double.parseDouble(cmd.getOptionValue("N").trim()) * 86400.0);
+                    }
+                } catch (NumberFormatException ex) {
+                    System.out.println("Command line argument error: -R must be a number of retries, -N of days");
+                    return;
+                }
+            }
+            if (cmd.hasOption("T")) {
+                try {
+                    fetchDeadline = Long.parseLong(cmd.getOptionValue("T").trim());
+                } catch (NumberFormatException ex) {
+                    System.out.println("Command line argument error: -T must be a number of seconds");
+                    return;
+                }
+            }
+            if (cmd.hasOption("t")) {
+                String[] parts = cmd.getOptionValue("t").split(":", 2);
+                try {
+                    int connectTimeout = Integer.parseInt(parts[0].trim());
+                    int readTimeout = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : connectTimeout;
+                    HTTPClient.configure(connectTimeout, readTimeout);
+                } catch (NumberFormatException ex) {
+                    System.out.println("Command line argument error: -t must be connect:read in ms");
+                    return;
+                }
+            }
+            if (cmd.hasOption("r")) {
+                String[] parts = cmd.getOptionValue("r").split(":", 2);
+                try {
+                    double rate = Double.parseDouble(parts[0].trim());
+                    int max = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : HostLimiter.DEFAULT_MAX;
+                    HTTPClient.getShared().setLimiter(new HostLimiter(rate, max));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Command line argument error: -r must be rate:max, e.g. 20:32");
+                    return;
+                }
+            }
+            if (cmd.hasOption("L")) {
+                File mirrorDir = new File(cmd.getOptionValue("L"));
+                if (!mirrorDir.isDirectory()) {
+                    System.out.println("Command line argument error: -L " + mirrorDir + " is not a folder");
+                    return;
+                }
+                HTTPClient.getShared().setMirror(new Mirror(mirrorDir));
+            }
+            if (cmd.hasOption("k")) {
+                long ttl = 0L;
+                try {
+                    if (cmd.hasOption("K")) {
+                        ttl = Long.parseLong(cmd.getOptionValue("K").trim());
+                    }
+                } catch (NumberFormatException ex) {
+                    System.out.println("Command line argument error: -K must be a number of seconds");
+                    return;
+                }
+                HTTPClient.getShared().setCache(new HTTPCache(new File(cmd.getOptionValue("k")), ttl));
+            }
+            if (cmd.hasOption("H")) {
+                try {
+                    TEIHeaderTemplate.configure(new File(cmd.getOptionValue("H")));
+                } catch (IOException | XMLStreamException ex) {
+                    System.out.println("Command line argument error: -H template: " + ex.getMessage());
+                    return;
+                }
+            }
+            if (cmd.hasOption("m") || cmd.hasOption("M")) {
+                try {
+                    if (cmd.hasOption("M")) {
+                        metricsInterval = Integer.parseInt(cmd.getOptionValue("M").trim());
+                    }
+                } catch (NumberFormatException ex) {
+                    System.out.println("Command line argument error: -M must be a number of seconds");
+                    return;
+                }
+                if (cmd.hasOption("m")) {
+                    metricsFile = new File(cmd.getOptionValue("m"));
+                }
+                Metrics.configure(metricsFile, metricsInterval);
+            }
             //if (cmd.hasOption("f")) {
             //    catalogOutFN = cmd.getOptionValue("f");
             //}
@@ -142,10 +517,90 @@ public class Gutenberg2TEI {
         }
 
 
-        // Do the fetching of the RDF catalog
-        fetchRDF(catalogURLStr, outputFolder, catalogOutFN);
+        // the catalog is in the output folder, unless it is a shard
+        String catalogFolder = outputFolder;
+        if (shard != null) {
+            // every shard has its own output folder, journal, metrics and
+            // recording, the shards share nothing but a catalog that is
+            // already there (in delta mode each fetches a fresh one)
+            outputFolder = new File(outputFolder, shard.getName()).getPath();
+            new File(outputFolder).mkdirs();
+            String zipName = catalogURLStr.substring(catalogURLStr.lastIndexOf('/') + 1);
+            if (delta || !new File(catalogFolder, zipMode == null || ids != null ? catalogOutFN : zipName).exists()) {
+                catalogFolder = outputFolder;
+            }
+            if (metricsFile != null) {
+                Metrics.configure(shard.file(metricsFile), metricsInterval);
+            }
+            if (jfrFile != null) {
+                jfrFile = shard.file(new File(jfrFile)).getPath();
+            }
+            System.out.println("Converting shard " + shard + " into " + outputFolder);
+        }
+
+        BookPipeline pipeline = new BookPipeline(ebookURLStr, outputFolder);
+        pipeline.setShard(shard);
+        pipeline.setFilter(filter);
+        pipeline.setEngine(engine);
+        pipeline.setStylesheets(stylesheets);
+        pipeline.setDelta(delta);
+        try {
+            for (String spec : stageSpecs) {
+                pipeline.configure(spec);
+            }
+            pipeline.setMaxFetches(maxFetches);
+            pipeline.setRetries(maxRetries);
+            pipeline.setFetchDeadline(fetchDeadline);
+            pipeline.setNegativeTTL(negativeTTL);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Command line argument error:" + ex.getMessage());
+            return;
+        }
 
-        // process the RDF file
-        processRDF(outputFolder, catalogOutFN, ebookURLStr);
+        if (delta) {
+            // the local catalog is from an earlier run, get the current one
+            try {
+                URL catalogURL = new URL(catalogURLStr);
+                Files.deleteIfExists(new File(catalogFolder, new File(catalogURL.getFile()).getName()).toPath());
+                Files.deleteIfExists(new File(catalogFolder, catalogOutFN).toPath());
+            } catch (IOException ex) {
+                Logger.getLogger(Gutenberg2TEI.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
+
+        Recording recording = null;
+        if (jfrFile != null) {
+            try {
+                recording = BookTrace.startRecording(new File(jfrFile));
+            } catch (IOException ex) {
+                System.out.println("Command line argument error: -j recording: " + ex.getMessage());
+                return;
+            }
+        }
+        try {
+            if (ids != null) {
+                // the index is of the unpacked catalog
+                fetchRDF(catalogURLStr, catalogFolder, catalogOutFN);
+                processIndexed(catalogFolder, catalogOutFN, ids, pipeline);
+                return;
+            }
+            if (zipMode != null) {
+                // parse the catalog inside the zip, no unpacking
+                processZippedRDF(catalogURLStr, catalogFolder, catalogOutFN, zipMode.equals("stream"), pipeline);
+                return;
+            }
+
+            // Do the fetching of the RDF catalog
+            fetchRDF(catalogURLStr, catalogFolder, catalogOutFN);
+
+            // process the RDF file
+            processRDF(catalogFolder, catalogOutFN, pipeline);
+        } finally {
+            if (recording != null) {
+                BookTrace.stopRecording(recording);
+                System.out.println("Flight recording written to " + jfrFile);
+            }
+        }
     }
 }
@@ -28,33 +28,41 @@
  */
 package me.cavar.pg2tei;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringWriter;
+import java.io.Reader;
 import java.io.Writer;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -63,14 +71,42 @@ import org.xml.sax.SAXException;
  */
 public class HTMLBook {
 
+    /**
+     * Conversion in-process with HTMLToTEI.
+     */
+    public static final int ENGINE_JAVA = 0;
+    /**
+     * Conversion with textutil and the odttotei script (Mac OS X only).
+     */
+    public static final int ENGINE_ODT = 1;
+    /**
+     * Conversion with textutil and the odttotei stylesheets, compiled once
+     * and run in-process.
+     */
+    public static final int ENGINE_XSLT = 2;
+    /**
+     * The odttotei stylesheet of the TEI Stylesheets installation the
+     * odttotei script uses.
+     */
+    public static final String DEFAULT_ODT_STYLESHEET = "/usr/local/share/TEI/Stylesheets/odt/odttotei.xsl";
+
     /**
      * The local DOM of the HTML-file
      */
     public Document mydoc;
+    /**
+     * The TEI XML the ODT and XSLT engines convert to, on disk. The merge
+     * streams its <text>-element into the output without a DOM.
+     */
+    public File convertedFile;
     /**
      * The URL-string of the HTML-document
      */
     public URL docURL;
+    /**
+     * Why the HTML-file could not be fetched, or null.
+     */
+    public Throwable failure;
     /**
      * The individual pre-paragraphs extracted from the DOM
      */
@@ -84,12 +120,35 @@ public class HTMLBook {
      */
     private String outputFolder;
     private String encoding;
+    /**
+     * The conversion engine, ENGINE_JAVA, ENGINE_ODT or ENGINE_XSLT.
+     */
+    public int engine;
+    /**
+     * The stylesheets ENGINE_XSLT applies to the ODT content, in order.
+     */
+    public List<File> stylesheets;
+    /**
+     * Nanoseconds extractPre() waited for its input.
+     */
+    private long readNanos;
+    /**
+     * The Content-Encoding of the file downloadHTML() fetched.
+     */
+    private String downloadEncoding;
+    /**
+     * The file downloadHTML() fetched to, one per attempt, so that a late
+     * download of an attempt given up does not meet that of its retry.
+     */
+    private volatile File downloadFile;
 
     /**
      * Constructor.
      */
     public HTMLBook(String someurl, String outputFolder, int id, String encoding) {
         this.preParagraphs = new ArrayList<>();
+        this.engine = HTMLBook.ENGINE_JAVA;
+        this.stylesheets = Collections.singletonList(new File(HTMLBook.DEFAULT_ODT_STYLESHEET));
         this.outputFolder = outputFolder;
         if (encoding.length() > 0) {
             this.encoding = encoding;
@@ -98,6 +157,7 @@ public class HTMLBook {
             this.docURL = new URL(someurl);
         } catch (MalformedURLException ex) {
             Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, ex);
+            this.failure = ex;
         }
         this.idN = Integer.toString(id);
     }
@@ -110,125 +170,311 @@ public class HTMLBook {
     //    this.loadHTML();
     //}
     /**
-     *
-     * @throws MalformedURLException
-     * @throws IOException
-     * @throws ParserConfigurationException
-     * @throws SAXException
+     * Fetches the HTML, extracts the <pre>-texts and converts the result to
+     * a TEI XML DOM.
      */
     public void loadHTML() {
+        if (this.fetchHTML()) {
+            this.convert();
+        }
+    }
+
+    /**
+     * Downloads the HTML-file, moves the <pre>-texts to preParagraphs and
+     * stores the cleaned HTML in the output folder of the book.
+     *
+     * @return true if the cleaned HTML-file was written
+     */
+    public boolean fetchHTML() {
         if (this.docURL == null) {
-            return;
+            return false;
         }
-        StringBuilder strb = new StringBuilder();
-        String line;
+        // read the HTML from the server and store it, without the <pre>-texts
+        long start = System.nanoTime();
+        BookEvent event = new BookEvent(this.idN, BookEvent.HTML);
+        long preprocess;
+        try (HTTPClient.CountingInputStream body = new HTTPClient.CountingInputStream(
+                HTTPClient.getShared().getStream(this.docURL), null)) {
+            preprocess = this.writeHTML(body);
+            event.bytesIn = body.count;
+        } catch (IOException e) {
+            Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+            this.failure = e;
+            event.finish(BookEvent.FAILED);
+            return false;
+        }
+        event.bytesOut = this.htmlFile().length();
+        event.finish(BookEvent.OK);
+        // the download is the time waited for the server, the rest is ours
+        Metrics.getShared().recordNanos(Metrics.HTML_FETCH, System.nanoTime() - start - preprocess);
+        Metrics.getShared().recordNanos(Metrics.PREPROCESS, preprocess);
+        return true;
+    }
 
-        // to circumvent issues with redirection and 403 error
-        // we need to set redirects and set the request property ??
-        //read the RDF from the server
+    /**
+     * Downloads the HTML-file asynchronously into the output folder of the
+     * book, as it comes from the server; preprocessHTML() cleans it.
+     *
+     * @return completes with true if the file was downloaded, never
+     * exceptionally
+     */
+    public CompletableFuture<Boolean> downloadHTML() {
+        if (this.docURL == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final long start = System.nanoTime();
+        final BookEvent event = new BookEvent(this.idN, BookEvent.HTML);
+        final File file;
         try {
-            HttpURLConnection con = (HttpURLConnection) this.docURL.openConnection();
-            con.setInstanceFollowRedirects(true);
-            HttpURLConnection.setFollowRedirects(true);
-            con.setRequestMethod("GET");
-            con.setDoOutput(true);
-            con.setReadTimeout(10000);
-            con.setRequestProperty("User-Agent",
-                    "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:10.0.2) Gecko/20100101 Firefox/10.0.2");
-            con.connect();
-            BufferedReader readb;
-            if (this.encoding != null) {
-                readb = new BufferedReader(new InputStreamReader(con.getInputStream(), this.encoding));
-            } else {
-                readb = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            }
-            while ((line = readb.readLine()) != null) {
-                strb.append(line).append('\n');
-            }
-            con.disconnect();
-        } catch (MalformedURLException e) {
+            File folder = new File(this.outputFolder + File.separator + this.idN);
+            folder.mkdirs();
+            file = File.createTempFile(this.idN + ".html.", ".download", folder);
+        } catch (IOException e) {
+            this.failure = e;
             Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+            event.finish(BookEvent.FAILED);
+            return CompletableFuture.completedFuture(false);
+        }
+        this.downloadFile = file;
+        return HTTPClient.getShared().downloadAsync(this.docURL, file.toPath()).handle((res, e) -> {
+            if (e != null) {
+                this.failure = e.getCause() != null ? e.getCause() : e;
+                Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, this.failure);
+                file.delete();
+                event.finish(BookEvent.FAILED);
+                return false;
+            }
+            this.downloadEncoding = res.header("Content-Encoding");
+            event.bytesIn = file.length();
+            event.finish(BookEvent.OK);
+            Metrics.getShared().record(Metrics.HTML_FETCH, start);
+            return true;
+        });
+    }
+
+    /**
+     * Moves the <pre>-texts of the file downloadHTML() fetched to
+     * preParagraphs, stores the cleaned HTML in the output folder of the
+     * book and deletes the download.
+     *
+     * @return true if the cleaned HTML-file was written
+     */
+    public boolean preprocessHTML() {
+        File file = this.downloadFile;
+        try (InputStream body = HTTPClient.decode(new FileInputStream(file), this.downloadEncoding)) {
+            Metrics.getShared().recordNanos(Metrics.PREPROCESS, this.writeHTML(body));
         } catch (IOException e) {
             Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+            this.failure = e;
+            return false;
+        } finally {
+            file.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the HTML without the <pre>-texts to the output folder of the
+     * book.
+     *
+     * @return the nanoseconds spent on it, not waiting for body
+     */
+    private long writeHTML(InputStream body) throws IOException {
+        File file = this.htmlFile();
+        // create the output path of the book
+        file.getParentFile().mkdirs();
+        Reader in;
+        Writer out;
+        if (this.encoding != null) {
+            in = new InputStreamReader(body, this.encoding);
+            out = new OutputStreamWriter(new FileOutputStream(file), this.encoding);
+        } else {
+            in = new InputStreamReader(body);
+            out = new OutputStreamWriter(new FileOutputStream(file));
         }
-        String clean = strb.toString();
+        try (Writer bout = new BufferedWriter(out, 64 * 1024)) {
+            long extract = System.nanoTime();
+            this.extractPre(in, bout);
+            return System.nanoTime() - extract - this.readNanos;
+        }
+    }
 
-        strb = new StringBuilder();
-        // reluctant quantifier .*?
-        Pattern p = Pattern.compile("(?<left><pre>)(?<content>.*?)(?<right></pre>)",
-                Pattern.DOTALL
-                | Pattern.CASE_INSENSITIVE
-                | Pattern.MULTILINE
-                | Pattern.UNICODE_CHARACTER_CLASS);
-        Matcher matcher = p.matcher(clean);
-        // Check all occurance
-        int pos = 0;
-        while (matcher.find(pos)) {
-            strb.append(clean.substring(pos, matcher.start()));
-            strb.append("\n");
-            pos = matcher.end();
-            for (String par : matcher.group("content").trim().split("\n\n")) {
-                String tmp = par.trim();
-                if (tmp.length() > 0) {
-                    this.preParagraphs.add(tmp);
+    private File htmlFile() {
+        return new File(this.outputFolder + File.separator + this.idN + File.separator + this.idN + ".html");
+    }
+
+    /**
+     * Deletes the file downloadHTML() fetched, e.g. for a book given up
+     * while it was downloading.
+     */
+    public void discardDownload() {
+        if (this.downloadFile != null) {
+            this.downloadFile.delete();
+        }
+    }
+
+    /**
+     * Copies the HTML from in to out in a single pass, with line ends
+     * normalized to \n. Every <pre>...</pre> block is replaced by a line
+     * end, and its paragraphs are added to preParagraphs. Only the blocks
+     * are kept in memory, not the book.
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    void extractPre(Reader in, Writer out) throws IOException {
+        final String open = "<pre>";
+        final String close = "</pre>";
+        char[] buf = new char[8192];
+        // the number of characters of open and close matched so far
+        int matched = 0;
+        int closeMatched = 0;
+        // the content of the current block, null outside of blocks
+        StringBuilder block = null;
+        boolean afterCR = false;
+        int n;
+        this.readNanos = 0L;
+        while (true) {
+            long t = System.nanoTime();
+            n = in.read(buf);
+            this.readNanos += System.nanoTime() - t;
+            if (n == -1) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                // normalize \r\n and \r
+                if (c == '\r') {
+                    c = '\n';
+                    afterCR = true;
+                } else if (c == '\n' && afterCR) {
+                    afterCR = false;
+                    continue;
+                } else {
+                    afterCR = false;
                 }
+                if (block != null) {
+                    block.append(c);
+                    if (Character.toLowerCase(c) == close.charAt(closeMatched)) {
+                        closeMatched++;
+                    } else {
+                        closeMatched = c == '<' ? 1 : 0;
+                    }
+                    if (closeMatched == close.length()) {
+                        block.setLength(block.length() - close.length());
+                        this.addPreParagraphs(block);
+                        block = null;
+                        closeMatched = 0;
+                    }
+                    continue;
+                }
+                if (Character.toLowerCase(c) == open.charAt(matched)) {
+                    matched++;
+                    if (matched == open.length()) {
+                        out.write('\n');
+                        block = new StringBuilder();
+                        matched = 0;
+                    }
+                    continue;
+                }
+                if (matched > 0) {
+                    // not a <pre>, write out what was held back
+                    out.write(open, 0, matched);
+                    matched = c == '<' ? 1 : 0;
+                    if (matched == 1) {
+                        continue;
+                    }
+                }
+                out.write(c);
             }
         }
-        // append the rest of the HTML to buffer
-        strb.append(clean.substring(pos));
-        // get the new clean
-        clean = strb.toString();
-        // send buffer to Nirvana (do we have to do that?)
-        strb = null;
-
-        // create the outputPath for the HTML file
-        String outputPath = this.outputFolder + File.separator + this.idN + File.separator;
-        // create paths
-        boolean status;
-        status = new File(outputPath).mkdirs();
+        if (block != null) {
+            // no end tag, leave the text as it is
+            out.write(open);
+            out.append(block);
+        } else if (matched > 0) {
+            out.write(open, 0, matched);
+        }
+    }
 
-        // store HTML
-        System.out.println("Saving HTML-file: " + outputPath + this.idN + ".html");
-        File file = new File(outputPath + this.idN + ".html");
-        try {
-            FileOutputStream fop = new FileOutputStream(file);
-            Writer out;
-            if (this.encoding != null) {
-                out = new OutputStreamWriter(fop, this.encoding);
-            } else {
-                out = new OutputStreamWriter(fop);
+    /**
+     * Adds the paragraphs of a <pre>-text, separated by empty lines, to
+     * preParagraphs.
+     */
+    private void addPreParagraphs(CharSequence content) {
+        for (String par : content.toString().trim().split("\n\n")) {
+            String tmp = par.trim();
+            if (tmp.length() > 0) {
+                this.preParagraphs.add(tmp);
             }
-            out.write(clean);
+        }
+    }
+
+    /**
+     * Converts the stored HTML-file with the selected engine: to the TEI
+     * XML DOM (ENGINE_JAVA), or to convertedFile.
+     */
+    public void convert() {
+        if (this.engine == HTMLBook.ENGINE_ODT) {
+            this.convertODT();
+        } else if (this.engine == HTMLBook.ENGINE_XSLT) {
+            this.convertODTInProcess();
+        } else {
+            this.convertInProcess();
+        }
+    }
+
+    /**
+     * Converts the stored HTML-file with HTMLToTEI, straight into the DOM.
+     */
+    public void convertInProcess() {
+        BookEvent event = new BookEvent(this.idN, BookEvent.CONVERT);
+        try (Reader in = this.openHTML()) {
+            Document doc = XMLToolkit.newDocument();
+            XMLStreamWriter out = XMLToolkit.createXMLStreamWriter(new DOMResult(doc));
+            out.writeStartDocument();
+            new HTMLToTEI().convert(in, out);
+            out.writeEndDocument();
             out.close();
-        } catch (IOException e) {
+            this.mydoc = doc;
+        } catch (ParserConfigurationException | XMLStreamException | IOException e) {
             Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
         }
-        System.out.println("Done");
+        event.finish(this.mydoc != null ? BookEvent.OK : BookEvent.FAILED);
+    }
 
-        // convert HTML to ODT
-        try {
-            String fullPath = this.outputFolder + File.separator + this.idN
-                    + File.separator + this.idN;
-            // one should be able to use soffice (from the OpenOffice or LibreOffice
-            // distro. For some reason LibreOffice does not want to do the job.
-            // tried on a Mac:
-            // /Applications/LibreOffice.app/Contents/MacOS/soffice --invisible --convert-to odt --outdir 10513 10513/10513.html
-            // pandoc wants the complete archive, the HTML-file and all the images
-            // and other parts that go with it, which is too much to add here now.
-            // Instead:
-            // on Mac OS X use textutil on the command line
-            // (it is in the system's default path, no need for full path)
-            Process proc = Runtime.getRuntime().exec("textutil -convert odt -baseurl '' -output "
-                    + fullPath + ".odt "
-                    + fullPath + ".html ");
-            // Why ODT?
-            // I tried all kinds of other formats, there was always some problem.
-            // Direct HTML to TEI XML did not work, for various reasons.
-            // Via ODT it basically works, i.e. I get what I want.
-            proc.waitFor();
-        } catch (IOException | InterruptedException e) {
-            Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+    /**
+     * Converts the stored HTML-file with HTMLToTEI straight to out, e.g. a
+     * TEIWriter, without building a DOM.
+     *
+     * @param out
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void convertTo(XMLStreamWriter out) throws IOException, XMLStreamException {
+        try (Reader in = this.openHTML()) {
+            new HTMLToTEI().convert(in, out);
         }
+    }
+
+    /**
+     * Opens the stored HTML-file with its encoding.
+     */
+    private Reader openHTML() throws IOException {
+        File htmlFile = new File(this.outputFolder + File.separator + this.idN
+                + File.separator + this.idN + ".html");
+        if (this.encoding != null) {
+            return new InputStreamReader(new FileInputStream(htmlFile), this.encoding);
+        }
+        return new InputStreamReader(new FileInputStream(htmlFile));
+    }
+
+    /**
+     * Converts the stored HTML-file via ODT to TEI XML, convertedFile.
+     */
+    public void convertODT() {
+        this.convertToODT();
 
         // convert ODT to TEI XML
         // this gets a little bit complicated:
@@ -237,35 +483,148 @@ public class HTMLBook {
         // I had to set up some paths in odttotei, check it out yourself, in
         // particular the path to Saxon.
         // Set the paths below to point to your TEI-folder and Saxon-Jar.
+        String odtPath = this.outputFolder + File.separator + this.idN + File.separator + this.idN + ".odt";
+        File xmlFile = new File(this.outputFolder + File.separator + this.idN + File.separator + this.idN + ".xml");
+        BookEvent event = new BookEvent(this.idN, BookEvent.ODTTOTEI);
+        event.bytesIn = new File(odtPath).length();
         try {
             // String line;
+            long start = System.nanoTime();
             Process proc = Runtime.getRuntime().exec("/usr/local/share/TEI/Stylesheets/odttotei "
                     + "--apphome=/usr/local/share/TEI/Stylesheets "
                     + "--profiledir=/usr/local/share/TEI/Stylesheets/profiles "
-                    + "--oxygenlib=/Applications/oxygen/lib "
                     + "--saxonjar=/usr/local/share/saxon/saxon9he.jar "
-                    + this.outputFolder + File.separator + this.idN + File.separator + this.idN + ".odt ");
-            proc.waitFor();
+                    + odtPath + " ");
+            int exit = proc.waitFor();
+            Metrics.getShared().record(Metrics.SUBPROCESS, start);
+            event.bytesOut = xmlFile.length();
+            if (exit == 0 && xmlFile.isFile()) {
+                // no DOM, the merge streams it
+                this.convertedFile = xmlFile;
+            }
+            event.finish(this.convertedFile != null ? BookEvent.OK : BookEvent.FAILED);
         } catch (IOException | InterruptedException e) {
             Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+            event.finish(BookEvent.FAILED);
         }
+    }
 
-        // parse the XML now into a DOM
+    /**
+     * Returns the converted TEI XML as DOM, parsing convertedFile if
+     * needed. The pipeline does not need it.
+     */
+    public Document getDocument() {
+        if (this.mydoc != null || this.convertedFile == null) {
+            return this.mydoc;
+        }
+        BookEvent event = new BookEvent(this.idN, BookEvent.DOM_PARSE);
+        event.bytesIn = this.convertedFile.length();
         try {
-            DocumentBuilderFactory dbFac = DocumentBuilderFactory.newInstance();
-            dbFac.setValidating(false);
-            dbFac.setNamespaceAware(true);
-            dbFac.setIgnoringComments(false);
-            dbFac.setIgnoringElementContentWhitespace(false);
-            dbFac.setExpandEntityReferences(false);
-            DocumentBuilder dBuilder = dbFac.newDocumentBuilder();
-            this.mydoc = dBuilder.parse(this.outputFolder + File.separator + this.idN + File.separator + this.idN + ".xml");
+            this.mydoc = XMLToolkit.parse(new InputSource(this.convertedFile.toURI().toString()));
             if (this.mydoc != null) {
                 this.mydoc.getDocumentElement().normalize();
             }
         } catch (ParserConfigurationException | SAXException | IOException e) {
             Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
         }
+        event.finish(this.mydoc != null ? BookEvent.OK : BookEvent.FAILED);
+        return this.mydoc;
+    }
+
+    /**
+     * True if convert() produced a DOM or a convertedFile.
+     */
+    public boolean isConverted() {
+        return this.mydoc != null || this.convertedFile != null;
+    }
+
+    /**
+     * Converts the stored HTML-file via ODT to TEI XML like convertODT(),
+     * but runs the stylesheets in this thread instead of a new JVM per
+     * book: the content.xml of the ODT is streamed out of the archive
+     * through the compiled stylesheets, chained with SAX, each the input of
+     * the next, and the last one writes convertedFile. The stylesheets read
+     * styles.xml and meta.xml from the ODT through the jar: URL passed as
+     * parameter dir.
+     */
+    public void convertODTInProcess() {
+        this.convertToODT();
+
+        String fullPath = this.outputFolder + File.separator + this.idN + File.separator + this.idN;
+        File odtFile = new File(fullPath + ".odt");
+        File xmlFile = new File(fullPath + ".xslt.xml");
+        String dir = "jar:" + odtFile.toURI().toString() + "!";
+        BookEvent event = new BookEvent(this.idN, BookEvent.XSLT);
+        try (ZipFile odt = new ZipFile(odtFile);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(xmlFile), 64 * 1024)) {
+            ZipEntry entry = odt.getEntry("content.xml");
+            if (entry == null) {
+                Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, "No content.xml in " + odtFile);
+                event.finish(BookEvent.FAILED);
+                return;
+            }
+            event.bytesIn = entry.getSize();
+            // chain from the last stylesheet back, a Transformer per book,
+            // the Templates are shared
+            Result result = new StreamResult(out);
+            for (int i = this.stylesheets.size() - 1; i > 0; i--) {
+                TransformerHandler handler = XMLToolkit.transformerHandler(
+                        XMLToolkit.templates(this.stylesheets.get(i)));
+                handler.getTransformer().setParameter("dir", dir);
+                handler.setResult(result);
+                result = new SAXResult(handler);
+            }
+            Transformer trans = XMLToolkit.templates(this.stylesheets.get(0)).newTransformer();
+            trans.setParameter("dir", dir);
+            try (InputStream in = odt.getInputStream(entry)) {
+                trans.transform(new StreamSource(in, dir + "/content.xml"), result);
+            }
+        } catch (IOException | TransformerException e) {
+            Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+            xmlFile.delete();
+            event.finish(BookEvent.FAILED);
+            return;
+        }
+        event.bytesOut = xmlFile.length();
+        this.convertedFile = xmlFile;
+        event.finish(BookEvent.OK);
+    }
+
+    /**
+     * Converts the stored HTML-file to ODT next to it.
+     */
+    private void convertToODT() {
+        // convert HTML to ODT
+        String fullPath = this.outputFolder + File.separator + this.idN
+                + File.separator + this.idN;
+        BookEvent event = new BookEvent(this.idN, BookEvent.TEXTUTIL);
+        event.bytesIn = new File(fullPath + ".html").length();
+        try {
+            // one should be able to use soffice (from the OpenOffice or LibreOffice
+            // distro. For some reason LibreOffice does not want to do the job.
+            // tried on a Mac:
+            // /Applications/LibreOffice.app/Contents/MacOS/soffice --invisible --convert-to odt --outdir 10513 10513/10513.html
+            // pandoc wants the complete archive, the HTML-file and all the images
+            // and other parts that go with it, which is too much to add here now.
+            // Instead:
+            // on Mac OS X use textutil on the command line
+            // (it is in the system's default path, no need for full path)
+            long start = System.nanoTime();
+            Process proc = Runtime.getRuntime().exec("textutil -convert odt -baseurl '' -output "
+                    + fullPath + ".odt "
+                    + fullPath + ".html ");
+            // Why ODT?
+            // I tried all kinds of other formats, there was always some problem.
+            // Direct HTML to TEI XML did not work, for various reasons.
+            // Via ODT it basically works, i.e. I get what I want.
+            int exit = proc.waitFor();
+            Metrics.getShared().record(Metrics.SUBPROCESS, start);
+            event.bytesOut = new File(fullPath + ".odt").length();
+            event.finish(exit == 0 ? BookEvent.OK : BookEvent.FAILED);
+        } catch (IOException | InterruptedException e) {
+            Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
+            event.finish(BookEvent.FAILED);
+        }
     }
 
     /**
@@ -274,24 +633,11 @@ public class HTMLBook {
      * @return String
      */
     public String linearize() {
-        TransformerFactory transfac = TransformerFactory.newInstance();
-        Transformer trans;
-        StringWriter strw = new StringWriter();
-        StreamResult result = new StreamResult(strw);
         try {
-            trans = transfac.newTransformer();
-            trans.setOutputProperty(OutputKeys.INDENT, "yes");
-            trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            // create string from xml tree
-            DOMSource source = new DOMSource(this.mydoc);
-            trans.transform(source, result);
-        } catch (TransformerConfigurationException e) {
-            Logger.getLogger(TEIDoc.class.getName()).log(Level.SEVERE, null, e);
+            return XMLToolkit.serialize(this.getDocument());
         } catch (TransformerException e) {
-            Logger.getLogger(TEIDoc.class.getName()).log(Level.SEVERE, null, e);
+            Logger.getLogger(HTMLBook.class.getName()).log(Level.SEVERE, null, e);
         }
-        return strw.toString();
+        return "";
     }
 }
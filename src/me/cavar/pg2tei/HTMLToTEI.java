@@ -0,0 +1,893 @@
+/*
+ * HTMLToTEI.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * In-process conversion of the Project Gutenberg HTML-files to the TEI Lite
+ * <text>-element. The HTML is read in one pass as a stream of tags, text and
+ * entities, and written as StAX events. Headings open nested <div>s,
+ * paragraphs, lists, tables, quotes and figures are mapped to their TEI
+ * counterparts, and the formatting elements to <hi> with a rend attribute.
+ * Unclosed and misnested HTML is repaired on the fly, in the way browsers
+ * close open paragraphs.
+ *
+ * This replaces the textutil (HTML to ODT) and odttotei (ODT to TEI XML)
+ * subprocesses.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class HTMLToTEI {
+
+    /**
+     * The TEI namespace.
+     */
+    public static final String TEI_NS = "http://www.tei-c.org/ns/1.0";
+    /**
+     * Element kinds on the open element stack.
+     */
+    private static final int CONTAINER = 0;  // body, div, quote: no text
+    private static final int MIXED = 1;      // item, cell: text and blocks
+    private static final int PARA = 2;       // p, head, ab: text only
+    private static final int INLINE = 3;     // hi, ref
+    private static final int LIST = 4;       // only items
+    private static final int TABLE = 5;      // only rows
+    private static final int ROW = 6;        // only cells
+    /**
+     * HTML entity names, mapped to code points.
+     */
+    private static final HashMap<String, Integer> ENTITIES = new HashMap<>();
+    /**
+     * HTML formatting elements and their rend values.
+     */
+    private static final HashMap<String, String> REND = new HashMap<>();
+
+    static {
+        // the Latin-1 entities are in code point order from 160 to 255
+        String[] latin1 = {"nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect",
+            "uml", "copy", "ordf", "laquo", "not", "shy", "reg", "macr", "deg", "plusmn", "sup2",
+            "sup3", "acute", "micro", "para", "middot", "cedil", "sup1", "ordm", "raquo", "frac14",
+            "frac12", "frac34", "iquest", "Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring",
+            "AElig", "Ccedil", "Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc",
+            "Iuml", "ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times",
+            "Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig", "agrave",
+            "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil", "egrave", "eacute",
+            "ecirc", "euml", "igrave", "iacute", "icirc", "iuml", "eth", "ntilde", "ograve",
+            "oacute", "ocirc", "otilde", "ouml", "divide", "oslash", "ugrave", "uacute", "ucirc",
+            "uuml", "yacute", "thorn", "yuml"};
+        for (int i = 0; i < latin1.length; i++) {
+            ENTITIES.put(latin1[i], 160 + i);
+        }
+        // the Greek letters, capitals from 913 and small letters from 945
+        String[] greek = {"lpha", "eta", "amma", "elta", "psilon", "eta", "ta", "heta", "ota",
+            "appa", "ambda", "u", "u", "i", "micron", "i", "ho", null, "igma", "au", "psilon",
+            "hi", "hi", "si", "mega"};
+        String[] initial = {"a", "b", "g", "d", "e", "z", "e", "t", "i", "k", "l", "m", "n", "x",
+            "o", "p", "r", null, "s", "t", "u", "p", "c", "p", "o"};
+        for (int i = 0; i < greek.length; i++) {
+            if (greek[i] != null) {
+                ENTITIES.put(initial[i].toUpperCase(Locale.ROOT) + greek[i], 913 + i);
+                ENTITIES.put(initial[i] + greek[i], 945 + i);
+            }
+        }
+        ENTITIES.put("sigmaf", 962);
+        String[] names = {"quot", "amp", "apos", "lt", "gt", "OElig", "oelig", "Scaron", "scaron",
+            "Yuml", "fnof", "circ", "tilde", "ensp", "emsp", "thinsp", "zwnj", "zwj", "lrm", "rlm",
+            "ndash", "mdash", "lsquo", "rsquo", "sbquo", "ldquo", "rdquo", "bdquo", "dagger",
+            "Dagger", "bull", "hellip", "permil", "prime", "Prime", "lsaquo", "rsaquo", "oline",
+            "frasl", "euro", "trade", "larr", "uarr", "rarr", "darr", "harr", "minus", "infin",
+            "ne", "le", "ge", "sup", "sub", "deg"};
+        int[] points = {34, 38, 39, 60, 62, 338, 339, 352, 353,
+            376, 402, 710, 732, 8194, 8195, 8201, 8204, 8205, 8206, 8207,
+            8211, 8212, 8216, 8217, 8218, 8220, 8221, 8222, 8224,
+            8225, 8226, 8230, 8240, 8242, 8243, 8249, 8250, 8254,
+            8260, 8364, 8482, 8592, 8593, 8594, 8595, 8596, 8722, 8734,
+            8800, 8804, 8805, 8835, 8834, 176};
+        for (int i = 0; i < names.length; i++) {
+            ENTITIES.put(names[i], points[i]);
+        }
+
+        REND.put("i", "italic");
+        REND.put("em", "italic");
+        REND.put("cite", "italic");
+        REND.put("var", "italic");
+        REND.put("b", "bold");
+        REND.put("strong", "bold");
+        REND.put("u", "underline");
+        REND.put("ins", "underline");
+        REND.put("sup", "sup");
+        REND.put("sub", "sub");
+        REND.put("small", "small");
+        REND.put("big", "large");
+        REND.put("tt", "monospace");
+        REND.put("code", "monospace");
+        REND.put("kbd", "monospace");
+        REND.put("s", "strikethrough");
+        REND.put("strike", "strikethrough");
+        REND.put("del", "strikethrough");
+    }
+
+    /**
+     * An element on the open element stack.
+     */
+    private static class Open {
+
+        final String html;
+        final int kind;
+        final int level;
+
+        Open(String html, int kind, int level) {
+            this.html = html;
+            this.kind = kind;
+            this.level = level;
+        }
+    }
+    private Reader in;
+    private char[] buf;
+    private int pos;
+    private int len;
+    private XMLStreamWriter out;
+    private ArrayList<Open> stack;
+    private StringBuilder text;
+    private HashSet<String> ids;
+    private boolean inPre;
+    private boolean skipHead;
+    private boolean bodyHasContent;
+    private boolean lastSpace;
+
+    /**
+     * Converts the HTML read from in to a TEI <text>-element with a single
+     * <body>, written to out. The caller writes the document start and end,
+     * if needed.
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void convert(Reader in, XMLStreamWriter out) throws IOException, XMLStreamException {
+        this.in = in;
+        this.buf = new char[8192];
+        this.pos = 0;
+        this.len = 0;
+        this.out = out;
+        this.stack = new ArrayList<>();
+        this.text = new StringBuilder();
+        this.ids = new HashSet<>();
+        this.inPre = false;
+        this.skipHead = false;
+        this.bodyHasContent = false;
+        this.lastSpace = true;
+
+        out.writeStartElement("", "text", TEI_NS);
+        out.writeDefaultNamespace(TEI_NS);
+        this.push("", "body", CONTAINER, 0);
+
+        int c;
+        while ((c = this.read()) != -1) {
+            if (c == '<') {
+                int n = this.peek();
+                if (n == '!') {
+                    this.read();
+                    this.markup();
+                } else if (n == '?') {
+                    this.skipPast(">");
+                } else if (n == '/') {
+                    this.read();
+                    String name = this.readName();
+                    this.skipPast(">");
+                    if (name.length() > 0) {
+                        this.flushText();
+                        this.endTag(name);
+                    }
+                } else if (Character.isLetter(n)) {
+                    this.startTag();
+                } else {
+                    this.text.append('<');
+                }
+            } else if (c == '&') {
+                this.entity(this.text);
+            } else {
+                this.text.append((char) c);
+            }
+        }
+        this.flushText();
+        while (this.stack.size() > 1) {
+            this.pop();
+        }
+        if (!this.bodyHasContent) {
+            // a TEI body must not be empty
+            out.writeEmptyElement("", "p", TEI_NS);
+        }
+        // </body></text>
+        this.pop();
+        out.writeEndElement();
+        out.flush();
+    }
+
+    // ------------------------------------------------------------------
+    // reading
+
+    private int read() throws IOException {
+        if (this.pos == this.len) {
+            this.len = this.in.read(this.buf, 0, this.buf.length);
+            this.pos = 0;
+            if (this.len <= 0) {
+                this.len = 0;
+                return -1;
+            }
+        }
+        return this.buf[this.pos++];
+    }
+
+    private int peek() throws IOException {
+        if (this.pos == this.len) {
+            this.len = this.in.read(this.buf, 0, this.buf.length);
+            this.pos = 0;
+            if (this.len <= 0) {
+                this.len = 0;
+                return -1;
+            }
+        }
+        return this.buf[this.pos];
+    }
+
+    /**
+     * Skips everything up to and including the terminator.
+     */
+    private void skipPast(String terminator) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = this.read()) != -1) {
+            if (c == terminator.charAt(matched)) {
+                matched++;
+                if (matched == terminator.length()) {
+                    return;
+                }
+            } else {
+                matched = (c == terminator.charAt(0)) ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Skips the content of a raw text element like script or style.
+     */
+    private void skipRawText(String name) throws IOException {
+        String end = "</" + name;
+        int matched = 0;
+        int c;
+        while ((c = this.read()) != -1) {
+            if (Character.toLowerCase(c) == end.charAt(matched)) {
+                matched++;
+                if (matched == end.length()) {
+                    this.skipPast(">");
+                    return;
+                }
+            } else {
+                matched = (c == '<') ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Handles comments, CDATA sections and the DOCTYPE after "<!".
+     */
+    private void markup() throws IOException {
+        if (this.peek() == '-') {
+            this.read();
+            if (this.peek() == '-') {
+                this.read();
+                this.skipPast("-->");
+                return;
+            }
+        } else if (this.peek() == '[') {
+            String marker = "[CDATA[";
+            int i = 0;
+            while (i < marker.length() && this.peek() == marker.charAt(i)) {
+                this.read();
+                i++;
+            }
+            if (i == marker.length()) {
+                int c;
+                while ((c = this.read()) != -1) {
+                    this.text.append((char) c);
+                    int n = this.text.length();
+                    if (c == '>' && n >= 3 && this.text.charAt(n - 2) == ']' && this.text.charAt(n - 3) == ']') {
+                        this.text.setLength(n - 3);
+                        return;
+                    }
+                }
+                return;
+            }
+        }
+        this.skipPast(">");
+    }
+
+    private String readName() throws IOException {
+        StringBuilder strb = new StringBuilder();
+        int c;
+        while ((c = this.peek()) != -1
+                && (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':' || c == '.')) {
+            strb.append((char) Character.toLowerCase(c));
+            this.read();
+        }
+        return strb.toString();
+    }
+
+    private void skipSpace() throws IOException {
+        int c;
+        while ((c = this.peek()) != -1 && Character.isWhitespace(c)) {
+            this.read();
+        }
+    }
+
+    /**
+     * Reads a start tag with its attributes, after "<".
+     */
+    private void startTag() throws IOException, XMLStreamException {
+        String name = this.readName();
+        HashMap<String, String> attrs = new HashMap<>();
+        boolean selfClosing = false;
+        int c;
+        while (true) {
+            this.skipSpace();
+            c = this.peek();
+            if (c == -1) {
+                break;
+            }
+            if (c == '>') {
+                this.read();
+                break;
+            }
+            if (c == '/') {
+                this.read();
+                if (this.peek() == '>') {
+                    this.read();
+                    selfClosing = true;
+                    break;
+                }
+                continue;
+            }
+            String attr = this.readName();
+            if (attr.length() == 0) {
+                // garbage in the tag
+                this.read();
+                continue;
+            }
+            this.skipSpace();
+            String value = "";
+            if (this.peek() == '=') {
+                this.read();
+                this.skipSpace();
+                StringBuilder strb = new StringBuilder();
+                int quote = this.peek();
+                if (quote == '"' || quote == '\'') {
+                    this.read();
+                    while ((c = this.read()) != -1 && c != quote) {
+                        if (c == '&') {
+                            this.entity(strb);
+                        } else {
+                            strb.append((char) c);
+                        }
+                    }
+                } else {
+                    while ((c = this.peek()) != -1 && !Character.isWhitespace(c) && c != '>') {
+                        this.read();
+                        if (c == '&') {
+                            this.entity(strb);
+                        } else {
+                            strb.append((char) c);
+                        }
+                    }
+                }
+                value = strb.toString();
+            }
+            if (!attrs.containsKey(attr)) {
+                attrs.put(attr, value);
+            }
+        }
+        if (name.equals("script") || name.equals("style")) {
+            if (!selfClosing) {
+                this.skipRawText(name);
+            }
+            return;
+        }
+        this.flushText();
+        this.startElement(name, attrs, selfClosing);
+    }
+
+    /**
+     * Decodes an entity reference after "&" into strb. Unknown or
+     * unterminated references are kept as text.
+     */
+    private void entity(StringBuilder strb) throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c;
+        while (name.length() < 32 && (c = this.peek()) != -1
+                && (Character.isLetterOrDigit(c) || (c == '#' && name.length() == 0))) {
+            name.append((char) c);
+            this.read();
+        }
+        if (this.peek() != ';' || name.length() == 0) {
+            strb.append('&').append(name);
+            return;
+        }
+        this.read();
+        int cp = -1;
+        if (name.charAt(0) == '#') {
+            try {
+                if (name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')) {
+                    cp = Integer.parseInt(name.substring(2), 16);
+                } else {
+                    cp = Integer.parseInt(name.substring(1));
+                }
+            } catch (NumberFormatException e) {
+                cp = -1;
+            }
+        } else {
+            Integer val = ENTITIES.get(name.toString());
+            if (val != null) {
+                cp = val;
+            }
+        }
+        if (cp > 0 && Character.isValidCodePoint(cp)) {
+            strb.appendCodePoint(cp);
+        } else {
+            strb.append('&').append(name).append(';');
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // writing
+
+    private Open top() {
+        return this.stack.get(this.stack.size() - 1);
+    }
+
+    private void push(String html, String tei, int kind, int level) throws XMLStreamException {
+        this.out.writeStartElement("", tei, TEI_NS);
+        this.stack.add(new Open(html, kind, level));
+        if (kind != INLINE) {
+            // no leading space in a new block
+            this.lastSpace = true;
+        }
+        if (this.stack.size() > 1) {
+            this.bodyHasContent = true;
+        }
+    }
+
+    private void pop() throws XMLStreamException {
+        Open o = this.stack.remove(this.stack.size() - 1);
+        this.out.writeEndElement();
+        if (o.html.equals("pre")) {
+            this.inPre = false;
+        }
+        if (o.kind != INLINE) {
+            this.lastSpace = true;
+        }
+    }
+
+    /**
+     * Closes open paragraphs and inline elements, as a block starts.
+     */
+    private void closeParagraph() throws XMLStreamException {
+        while (this.stack.size() > 1 && (this.top().kind == PARA || this.top().kind == INLINE)) {
+            this.pop();
+        }
+    }
+
+    /**
+     * Opens the implicit elements needed to write text or inline elements.
+     */
+    private void ensureText() throws XMLStreamException {
+        switch (this.top().kind) {
+            case CONTAINER:
+                this.push("", "p", PARA, 0);
+                break;
+            case LIST:
+                this.push("", "item", MIXED, 0);
+                break;
+            case TABLE:
+                this.push("", "row", ROW, 0);
+                this.push("", "cell", MIXED, 0);
+                break;
+            case ROW:
+                this.push("", "cell", MIXED, 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Opens the implicit elements needed to start a block, like a <p> inside
+     * a table.
+     */
+    private void ensureBlock() throws XMLStreamException {
+        this.closeParagraph();
+        switch (this.top().kind) {
+            case LIST:
+                this.push("", "item", MIXED, 0);
+                break;
+            case TABLE:
+                this.push("", "row", ROW, 0);
+                this.push("", "cell", MIXED, 0);
+                break;
+            case ROW:
+                this.push("", "cell", MIXED, 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Pops the stack down to the innermost element of the given kind, which
+     * stays open. The search does not leave the current division or quote.
+     *
+     * @return true if such an element was open
+     */
+    private boolean closeInside(int kind) throws XMLStreamException {
+        for (int i = this.stack.size() - 1; i > 0; i--) {
+            Open o = this.stack.get(i);
+            if (o.kind == kind) {
+                while (this.stack.size() > i + 1) {
+                    this.pop();
+                }
+                return true;
+            }
+            if (o.kind == CONTAINER) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if text and inline elements can be written without opening an
+     * implicit element.
+     */
+    private boolean textContext() {
+        int kind = this.top().kind;
+        return kind == PARA || kind == INLINE || kind == MIXED;
+    }
+
+    private void flushText() throws XMLStreamException {
+        if (this.text.length() == 0) {
+            return;
+        }
+        if (this.skipHead) {
+            this.text.setLength(0);
+            return;
+        }
+        StringBuilder clean = new StringBuilder(this.text.length());
+        for (int i = 0; i < this.text.length(); i++) {
+            char c = this.text.charAt(i);
+            if (this.inPre && c == '\n') {
+                if (this.textContext()) {
+                    this.writeText(clean);
+                    this.out.writeEmptyElement("", "lb", TEI_NS);
+                    this.lastSpace = true;
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                // collapse white space, and drop it where no text may go
+                if (!this.lastSpace && this.textContext()) {
+                    clean.append(' ');
+                    this.lastSpace = true;
+                }
+                continue;
+            }
+            if (c < 0x20 || c >= 0xFFFE || (c >= 0xD800 && c <= 0xDFFF && !this.validSurrogate(i))) {
+                // not allowed in XML
+                continue;
+            }
+            if (!this.textContext()) {
+                this.ensureText();
+            }
+            clean.append(c);
+            this.lastSpace = false;
+        }
+        this.writeText(clean);
+        this.text.setLength(0);
+    }
+
+    private boolean validSurrogate(int i) {
+        char c = this.text.charAt(i);
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 < this.text.length() && Character.isLowSurrogate(this.text.charAt(i + 1));
+        }
+        return i > 0 && Character.isHighSurrogate(this.text.charAt(i - 1));
+    }
+
+    private void writeText(StringBuilder clean) throws XMLStreamException {
+        if (clean.length() > 0) {
+            this.out.writeCharacters(clean.toString());
+            this.bodyHasContent = true;
+            clean.setLength(0);
+        }
+    }
+
+    /**
+     * Turns an HTML id or name into a unique xml:id.
+     */
+    private String xmlId(String val) {
+        StringBuilder strb = new StringBuilder();
+        for (int i = 0; i < val.length(); i++) {
+            char c = val.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.') {
+                strb.append(c);
+            } else {
+                strb.append('_');
+            }
+        }
+        if (strb.length() == 0 || !(Character.isLetter(strb.charAt(0)) || strb.charAt(0) == '_')) {
+            strb.insert(0, "id_");
+        }
+        return strb.toString();
+    }
+
+    private void startElement(String name, HashMap<String, String> attrs, boolean selfClosing)
+            throws XMLStreamException, IOException {
+        if (name.equals("head")) {
+            this.skipHead = true;
+            return;
+        }
+        if (name.equals("body")) {
+            this.skipHead = false;
+            return;
+        }
+        if (this.skipHead) {
+            return;
+        }
+        String rend = REND.get(name);
+        if (rend != null) {
+            if (!selfClosing) {
+                this.ensureText();
+                this.push(name, "hi", INLINE, 0);
+                this.out.writeAttribute("rend", rend);
+            }
+            return;
+        }
+        if (name.length() == 2 && name.charAt(0) == 'h' && name.charAt(1) >= '1' && name.charAt(1) <= '6') {
+            int level = name.charAt(1) - '0';
+            // close everything up to the enclosing division
+            while (this.stack.size() > 1) {
+                Open o = this.top();
+                if (o.html.startsWith("h") && o.kind == CONTAINER && o.level < level) {
+                    break;
+                }
+                this.pop();
+            }
+            this.push(name, "div", CONTAINER, level);
+            this.push(name, "head", PARA, level);
+            return;
+        }
+        switch (name) {
+            case "p":
+                this.ensureBlock();
+                this.push(name, "p", PARA, 0);
+                this.rendAlign(attrs);
+                break;
+            case "pre":
+                this.ensureBlock();
+                this.push(name, "ab", PARA, 0);
+                this.inPre = true;
+                break;
+            case "blockquote":
+                this.ensureBlock();
+                this.push(name, "quote", CONTAINER, 0);
+                break;
+            case "ul":
+            case "ol":
+            case "dl":
+                this.ensureBlock();
+                this.push(name, "list", LIST, 0);
+                if (name.equals("ol")) {
+                    this.out.writeAttribute("rend", "numbered");
+                } else if (name.equals("dl")) {
+                    this.out.writeAttribute("type", "gloss");
+                } else {
+                    this.out.writeAttribute("rend", "bulleted");
+                }
+                break;
+            case "li":
+            case "dd":
+            case "dt":
+                if (!this.closeInside(LIST)) {
+                    this.ensureBlock();
+                    this.push("", "list", LIST, 0);
+                }
+                this.push(name, name.equals("dt") ? "label" : "item", MIXED, 0);
+                break;
+            case "table":
+                this.ensureBlock();
+                this.push(name, "table", TABLE, 0);
+                break;
+            case "caption":
+                if (this.top().kind == TABLE) {
+                    this.push(name, "head", PARA, 0);
+                }
+                break;
+            case "tr":
+                if (!this.closeInside(TABLE)) {
+                    this.ensureBlock();
+                    this.push("", "table", TABLE, 0);
+                }
+                this.push(name, "row", ROW, 0);
+                break;
+            case "td":
+            case "th":
+                if (!this.closeInside(ROW)) {
+                    if (!this.closeInside(TABLE)) {
+                        this.ensureBlock();
+                        this.push("", "table", TABLE, 0);
+                    }
+                    this.push("", "row", ROW, 0);
+                }
+                this.push(name, "cell", MIXED, 0);
+                if (name.equals("th")) {
+                    this.out.writeAttribute("role", "label");
+                }
+                break;
+            case "br":
+                if (this.textContext()) {
+                    this.out.writeEmptyElement("", "lb", TEI_NS);
+                    this.lastSpace = true;
+                }
+                break;
+            case "img":
+                String src = attrs.get("src");
+                if (src != null && src.length() > 0) {
+                    if (this.top().kind == LIST || this.top().kind == TABLE || this.top().kind == ROW) {
+                        this.ensureText();
+                    }
+                    this.out.writeStartElement("", "figure", TEI_NS);
+                    // no writeEmptyElement with attributes, the DOM writer
+                    // puts them on the parent
+                    this.out.writeStartElement("", "graphic", TEI_NS);
+                    this.out.writeAttribute("url", src);
+                    this.out.writeEndElement();
+                    String alt = attrs.get("alt");
+                    if (alt != null && alt.trim().length() > 0) {
+                        this.out.writeStartElement("", "figDesc", TEI_NS);
+                        this.out.writeCharacters(alt.trim());
+                        this.out.writeEndElement();
+                    }
+                    this.out.writeEndElement();
+                    this.bodyHasContent = true;
+                }
+                break;
+            case "a":
+                String id = attrs.get("id");
+                if (id == null) {
+                    id = attrs.get("name");
+                }
+                if (id != null && id.length() > 0) {
+                    String xid = this.xmlId(id);
+                    if (this.ids.add(xid)) {
+                        this.ensureText();
+                        this.out.writeStartElement("", "anchor", TEI_NS);
+                        this.out.writeAttribute("xml", XMLConstants.XML_NS_URI, "id", xid);
+                        this.out.writeEndElement();
+                    }
+                }
+                String href = attrs.get("href");
+                if (href != null && !selfClosing) {
+                    this.ensureText();
+                    this.push(name, "ref", INLINE, 0);
+                    if (href.startsWith("#")) {
+                        href = "#" + this.xmlId(href.substring(1));
+                    }
+                    this.out.writeAttribute("target", href);
+                }
+                break;
+            case "div":
+            case "center":
+            case "hr":
+            case "address":
+                // structural breaks without a TEI element of their own
+                this.closeParagraph();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Copies a center or right alignment of a paragraph as rend.
+     */
+    private void rendAlign(HashMap<String, String> attrs) throws XMLStreamException {
+        String align = attrs.get("align");
+        String cls = attrs.get("class");
+        if (align != null && (align.equalsIgnoreCase("center") || align.equalsIgnoreCase("right"))) {
+            this.out.writeAttribute("rend", align.toLowerCase(Locale.ROOT));
+        } else if (cls != null && cls.contains("center")) {
+            this.out.writeAttribute("rend", "center");
+        }
+    }
+
+    private void endTag(String name) throws XMLStreamException {
+        if (name.equals("head")) {
+            this.skipHead = false;
+            return;
+        }
+        if (this.skipHead) {
+            return;
+        }
+        if (name.equals("div") || name.equals("center") || name.equals("address")) {
+            this.closeParagraph();
+            return;
+        }
+        if (name.length() == 2 && name.charAt(0) == 'h' && name.charAt(1) >= '1' && name.charAt(1) <= '6') {
+            // close the <head>, the <div> stays open for the section content
+            for (int i = this.stack.size() - 1; i > 0; i--) {
+                Open o = this.stack.get(i);
+                if (o.kind == PARA && o.html.equals(name)) {
+                    while (this.stack.size() > i) {
+                        this.pop();
+                    }
+                    return;
+                }
+                if (o.kind != INLINE) {
+                    return;
+                }
+            }
+            return;
+        }
+        boolean phrase = REND.containsKey(name) || name.equals("a") || name.equals("p")
+                || name.equals("pre") || name.equals("caption");
+        for (int i = this.stack.size() - 1; i > 0; i--) {
+            Open o = this.stack.get(i);
+            if (o.html.equals(name) || (name.equals("ul") || name.equals("ol") || name.equals("dl"))
+                    && o.kind == LIST) {
+                while (this.stack.size() > i) {
+                    this.pop();
+                }
+                return;
+            }
+            if (phrase && o.kind != INLINE && o.kind != PARA) {
+                // never close beyond the current block
+                return;
+            }
+            if (o.kind == CONTAINER && o.level > 0) {
+                // never close a division
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * HTTPCache.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * A local cache for the per-book RDF and HTML responses. For every URL a
+ * small properties file records the SHA-256 of the decoded body, the ETag
+ * and Last-Modified validators and the time of the last check, and the
+ * body is stored next to it under the URL and its hash. Within the TTL a
+ * cached body is returned without touching the network; after it the
+ * entry is revalidated with a conditional GET, and a 304 costs no
+ * transfer. A changed body replaces the old one, which is deleted.
+ *
+ * Bodies go to and from disk as streams: a response is written to a
+ * temporary file as it arrives, decoded and hashed into the body file,
+ * and read back through a stream, so only get() and getAsync(), which
+ * return the bytes, hold a body in memory.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class HTTPCache {
+
+    /**
+     * Root folder of the cache.
+     */
+    private File cacheFolder;
+    /**
+     * Time in ms within which a cached entry is used without revalidation.
+     */
+    private long ttl;
+
+    /**
+     * Constructor.
+     *
+     * @param cacheFolder
+     * @param ttlSeconds 0 to revalidate on every use
+     */
+    public HTTPCache(File cacheFolder, long ttlSeconds) {
+        this.cacheFolder = cacheFolder;
+        this.ttl = ttlSeconds * 1000L;
+        this.cacheFolder.mkdirs();
+    }
+
+    /**
+     * What the cache knows about a URL before the request.
+     */
+    private static class Lookup {
+
+        /**
+         * The hash of the URL.
+         */
+        String key;
+        File metaFile;
+        Properties meta;
+        /**
+         * The body file of the entry, null if there is none.
+         */
+        File bodyFile;
+        /**
+         * The conditional request headers.
+         */
+        HashMap<String, String> headers = new HashMap<>();
+        /**
+         * True if the entry is within the TTL.
+         */
+        boolean fresh;
+    }
+
+    /**
+     * Returns the body of a URL from the cache, revalidating or fetching
+     * it with client as needed.
+     *
+     * @param client
+     * @param url
+     * @return the response, body set
+     * @throws IOException
+     */
+    public HTTPClient.Response get(HTTPClient client, URL url) throws IOException {
+        return HTTPClient.await(this.getAsync(client, url));
+    }
+
+    /**
+     * Like get(), but the request, if one is needed, is sent
+     * asynchronously.
+     *
+     * @param client
+     * @param url
+     * @return the response, body set
+     */
+    public CompletableFuture<HTTPClient.Response> getAsync(HTTPClient client, final URL url) {
+        return this.openAsync(client, url).thenApply(res -> {
+            try (InputStream in = res.stream) {
+                res.body = in.readAllBytes();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            res.stream = null;
+            return res;
+        });
+    }
+
+    /**
+     * Returns the body of a URL as a stream from the cache file,
+     * revalidating or fetching it with client as needed. The caller has to
+     * close the stream.
+     *
+     * @param client
+     * @param url
+     * @return the response, stream set
+     */
+    public CompletableFuture<HTTPClient.Response> openAsync(HTTPClient client, final URL url) {
+        final Lookup lookup;
+        try {
+            lookup = this.lookup(url);
+            if (lookup.fresh) {
+                return CompletableFuture.completedFuture(this.cached(lookup.bodyFile));
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final File raw;
+        try {
+            raw = this.tempFile(lookup.key, ".download");
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return client.fetchFileAsync(url, lookup.headers, raw.toPath()).thenApply(res -> {
+            try {
+                return this.update(url, lookup, res, raw);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((res, e) -> raw.delete());
+    }
+
+    private Lookup lookup(URL url) throws IOException {
+        Lookup lookup = new Lookup();
+        lookup.key = sha256(url.toString().getBytes(StandardCharsets.UTF_8));
+        lookup.metaFile = this.file(lookup.key, ".meta");
+        Properties meta = this.readMeta(lookup.metaFile);
+        if (meta != null) {
+            lookup.bodyFile = this.bodyFile(lookup.key, meta.getProperty("body", ""));
+            if (!lookup.bodyFile.exists()) {
+                meta = null;
+            }
+        }
+        lookup.meta = meta;
+        if (meta != null) {
+            long checked = Long.parseLong(meta.getProperty("checked", "0"));
+            if (System.currentTimeMillis() - checked < this.ttl) {
+                lookup.fresh = true;
+                return lookup;
+            }
+            if (meta.getProperty("etag") != null) {
+                lookup.headers.put("If-None-Match", meta.getProperty("etag"));
+            }
+            if (meta.getProperty("lastModified") != null) {
+                lookup.headers.put("If-Modified-Since", meta.getProperty("lastModified"));
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Stores a new response from the raw body file, or returns the cached
+     * body after a 304.
+     */
+    private HTTPClient.Response update(URL url, Lookup lookup, HTTPClient.Response res, File raw)
+            throws IOException {
+        Properties meta = lookup.meta;
+        if (res.statusCode == 304 && meta != null) {
+            meta.setProperty("checked", Long.toString(System.currentTimeMillis()));
+            this.writeMeta(lookup.metaFile, meta);
+            return this.cached(lookup.bodyFile);
+        }
+        if (res.statusCode < 200 || res.statusCode > 299) {
+            throw new HTTPClient.StatusException(res.statusCode, url);
+        }
+
+        // decode the body into the cache, hashing it on the way
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File tmp = this.tempFile(lookup.key, ".tmp");
+        File bodyFile;
+        String bodyKey;
+        try {
+            try (InputStream in = HTTPClient.decode(new FileInputStream(raw), res.header("Content-Encoding"));
+                    OutputStream out = new DigestOutputStream(new FileOutputStream(tmp), digest)) {
+                in.transferTo(out);
+            }
+            bodyKey = Fetcher.toHex(digest.digest());
+            bodyFile = this.bodyFile(lookup.key, bodyKey);
+            Files.move(tmp.toPath(), bodyFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        meta = new Properties();
+        meta.setProperty("url", url.toString());
+        meta.setProperty("body", bodyKey);
+        meta.setProperty("checked", Long.toString(System.currentTimeMillis()));
+        if (res.header("ETag") != null) {
+            meta.setProperty("etag", res.header("ETag"));
+        }
+        if (res.header("Last-Modified") != null) {
+            meta.setProperty("lastModified", res.header("Last-Modified"));
+        }
+        this.writeMeta(lookup.metaFile, meta);
+        // no other entry refers to the body this one replaced
+        if (lookup.bodyFile != null && !lookup.bodyFile.equals(bodyFile)) {
+            Files.deleteIfExists(lookup.bodyFile.toPath());
+        }
+        HTTPClient.Response stored = this.cached(bodyFile);
+        stored.headers = res.headers;
+        stored.fromCache = false;
+        return stored;
+    }
+
+    private HTTPClient.Response cached(File bodyFile) throws IOException {
+        HTTPClient.Response res = new HTTPClient.Response();
+        res.statusCode = 200;
+        res.stream = new FileInputStream(bodyFile);
+        res.fromCache = true;
+        return res;
+    }
+
+    /**
+     * Files are spread over 256 sub-folders by the first two hex digits.
+     */
+    private File file(String key, String suffix) {
+        if (key.length() < 2) {
+            return new File(this.cacheFolder, "invalid" + suffix);
+        }
+        return new File(new File(this.cacheFolder, key.substring(0, 2)), key + suffix);
+    }
+
+    /**
+     * The body of a URL is next to its properties file, named by the URL
+     * and the body hash.
+     */
+    private File bodyFile(String key, String bodyKey) {
+        return this.file(key + "-" + bodyKey, ".body");
+    }
+
+    private File tempFile(String key, String suffix) throws IOException {
+        File folder = this.file(key, suffix).getParentFile();
+        folder.mkdirs();
+        return File.createTempFile(key, suffix, folder);
+    }
+
+    private Properties readMeta(File metaFile) {
+        if (!metaFile.exists()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.getLogger(HTTPCache.class.getName()).log(Level.WARNING, "Ignoring cache entry " + metaFile, e);
+            return null;
+        }
+        return meta;
+    }
+
+    private void writeMeta(File metaFile, Properties meta) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        meta.store(bOut, null);
+        this.writeAtomic(metaFile, bOut.toByteArray());
+    }
+
+    /**
+     * Writes through a temporary file, so that concurrent readers and
+     * crashes never see half an entry.
+     */
+    private void writeAtomic(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            return Fetcher.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
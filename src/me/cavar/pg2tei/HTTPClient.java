@@ -0,0 +1,824 @@
+/*
+ * HTTPClient.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The HTTP client shared by all fetches: the catalog, the per-book RDF and
+ * the HTML-files. Connections are kept alive and pooled, HTTP/2 is used
+ * where an https server offers it, gzip and deflate transfer encodings are
+ * requested and decoded, and bodies are handled as bytes. The bytes
+ * received are counted in Metrics.BYTES_IN.
+ *
+ * The read timeout applies twice, like the read timeout of a socket: to
+ * the wait for the response headers, and to every wait for the next bytes
+ * of a body. A body that stalls fails with an HttpTimeoutException.
+ *
+ * The async methods return at once with a CompletableFuture, so that many
+ * requests of different books can be in flight without a thread waiting
+ * for each: the JDK client multiplexes them on its selector thread, and a
+ * few threads handle the responses, however many there are.
+ *
+ * The requests of the books, not the catalog download, go through a
+ * HostLimiter, which adapts the number of requests in flight to each host
+ * to how the host copes, and keeps them under a rate.
+ *
+ * With a Mirror nothing is sent at all: every URL is read from the local
+ * copy of Project Gutenberg, and a file it does not have fails with a
+ * NoSuchFileException.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class HTTPClient {
+
+    /**
+     * The User-Agent sent with every request.
+     */
+    public static final String USER_AGENT =
+            "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:10.0.2) Gecko/20100101 Firefox/10.0.2";
+    /**
+     * The instance used by BookRDF, HTMLBook and Fetcher.
+     */
+    private static HTTPClient shared;
+    /**
+     * Fails the bodies that stall.
+     */
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pg2tei-http-timeout");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * A response with a status code other than 2xx.
+     */
+    public static class StatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        /**
+         * The HTTP status code.
+         */
+        public final int statusCode;
+
+        public StatusException(int statusCode, URL url) {
+            super("Server returned HTTP " + statusCode + " for " + url);
+            this.statusCode = statusCode;
+        }
+    }
+
+    /**
+     * A response with its body as a stream, or as bytes after get().
+     */
+    public static class Response {
+
+        /**
+         * The HTTP status code.
+         */
+        public int statusCode;
+        /**
+         * The response headers.
+         */
+        public HttpHeaders headers;
+        /**
+         * The decoded body stream, null after get().
+         */
+        public InputStream stream;
+        /**
+         * The decoded body, set by get().
+         */
+        public byte[] body;
+        /**
+         * True if the body came from the HTTPCache without a transfer.
+         */
+        public boolean fromCache;
+
+        /**
+         * Returns the first value of a header, or null.
+         */
+        public String header(String name) {
+            if (this.headers == null) {
+                return null;
+            }
+            return this.headers.firstValue(name).orElse(null);
+        }
+
+        /**
+         * Returns the Content-Length, or -1 if unknown.
+         */
+        public long contentLength() {
+            if (this.headers == null) {
+                return -1L;
+            }
+            return this.headers.firstValueAsLong("Content-Length").orElse(-1L);
+        }
+    }
+    /**
+     * The underlying JDK client, thread-safe and pooling.
+     */
+    private final HttpClient client;
+    /**
+     * Time to wait for the response headers, and for the next bytes of a
+     * body.
+     */
+    private final Duration readTimeout;
+    /**
+     * The response cache used by get(), or null.
+     */
+    private HTTPCache cache;
+    /**
+     * Paces the requests of the books per host, or null.
+     */
+    private HostLimiter limiter;
+    /**
+     * The local copy all URLs are read from, or null for the network.
+     */
+    private Mirror mirror;
+
+    /**
+     * Constructor.
+     *
+     * @param connectTimeoutMs
+     * @param readTimeoutMs
+     */
+    public HTTPClient(int connectTimeoutMs, int readTimeoutMs) {
+        // a few threads for the responses, whatever the number of requests
+        final AtomicInteger threadNum = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pg2tei-http-" + threadNum.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // HTTP/2 is asked for per request, for https only
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .executor(executor)
+                .build();
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.limiter = new HostLimiter(HostLimiter.DEFAULT_RATE, HostLimiter.DEFAULT_MAX);
+    }
+
+    /**
+     * Returns the shared client, created with default timeouts on first use.
+     */
+    public static synchronized HTTPClient getShared() {
+        if (HTTPClient.shared == null) {
+            HTTPClient.shared = new HTTPClient(10000, 30000);
+        }
+        return HTTPClient.shared;
+    }
+
+    /**
+     * Replaces the shared client with one using the given timeouts.
+     */
+    public static synchronized void configure(int connectTimeoutMs, int readTimeoutMs) {
+        HTTPClient.shared = new HTTPClient(connectTimeoutMs, readTimeoutMs);
+    }
+
+    /**
+     * Sets the response cache used by get(), null to switch it off.
+     */
+    public void setCache(HTTPCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the limiter of the requests per host, null to send them all at
+     * once.
+     */
+    public void setLimiter(HostLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Reads all URLs from a local mirror instead of the network, null to
+     * use the network.
+     */
+    public void setMirror(Mirror mirror) {
+        this.mirror = mirror;
+    }
+
+    public Mirror getMirror() {
+        return this.mirror;
+    }
+
+    /**
+     * Fetches a URL and reads the decoded body into memory, through the
+     * cache if there is one.
+     *
+     * @param url
+     * @return the response, body set
+     * @throws IOException on network errors and non-2xx status codes
+     */
+    public Response get(URL url) throws IOException {
+        if (this.mirror != null) {
+            return this.readMirror(url);
+        }
+        if (this.cache != null) {
+            return this.cache.get(this, url);
+        }
+        Response res = this.fetch(url, Collections.<String, String>emptyMap());
+        if (res.statusCode < 200 || res.statusCode > 299) {
+            throw new StatusException(res.statusCode, url);
+        }
+        return res;
+    }
+
+    /**
+     * Fetches a URL and returns the decoded body as a stream. Without a
+     * cache the body is not held in memory. The caller has to close the
+     * stream.
+     *
+     * @param url
+     * @return the body
+     * @throws IOException on network errors and non-2xx status codes
+     */
+    public InputStream getStream(URL url) throws IOException {
+        if (this.mirror != null) {
+            return this.openMirror(url).stream;
+        }
+        if (this.cache != null) {
+            return await(this.cache.openAsync(this, url)).stream;
+        }
+        final HostLimiter.Permit permit = this.limiter != null ? await(this.limiter.acquire(url)) : null;
+        Response res;
+        try {
+            res = this.open(url, Collections.<String, String>emptyMap(), true);
+        } catch (IOException e) {
+            if (permit != null) {
+                permit.failed(e);
+            }
+            throw e;
+        }
+        if (permit != null) {
+            permit.responded(res.statusCode, res.header("Retry-After"));
+        }
+        if (res.statusCode < 200 || res.statusCode > 299) {
+            res.stream.close();
+            throw new StatusException(res.statusCode, url);
+        }
+        return res.stream;
+    }
+
+    /**
+     * Fetches a URL asynchronously, through the cache if there is one.
+     *
+     * @param url
+     * @return the response with the decoded body; completes exceptionally
+     * with an IOException on network errors and non-2xx status codes
+     */
+    public CompletableFuture<Response> getAsync(final URL url) {
+        if (this.mirror != null) {
+            try {
+                return CompletableFuture.completedFuture(this.readMirror(url));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        if (this.cache != null) {
+            return this.cache.getAsync(this, url);
+        }
+        return this.fetchAsync(url, Collections.<String, String>emptyMap()).thenApply(res -> {
+            if (res.statusCode < 200 || res.statusCode > 299) {
+                throw new CompletionException(new StatusException(res.statusCode, url));
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Downloads a URL asynchronously into a file, through the cache if
+     * there is one. Without a cache the body is written to the file as it
+     * arrives, not held in memory; it is still encoded as the header
+     * Content-Encoding of the response says, see decode().
+     *
+     * @param url
+     * @param file
+     * @return the response, neither body nor stream set; completes
+     * exceptionally with an IOException on network errors and non-2xx
+     * status codes, and the file is deleted
+     */
+    public CompletableFuture<Response> downloadAsync(final URL url, final Path file) {
+        if (this.mirror != null) {
+            try {
+                Metrics.getShared().add(Metrics.BYTES_IN, Mirror.copy(this.mirror.resolve(url), file));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            Response res = new Response();
+            res.statusCode = 200;
+            return CompletableFuture.completedFuture(res);
+        }
+        if (this.cache != null) {
+            return this.cache.openAsync(this, url).thenApply(res -> {
+                try (InputStream in = res.stream) {
+                    Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                res.stream = null;
+                // the cache holds the decoded body
+                res.headers = null;
+                return res;
+            });
+        }
+        return this.fetchFileAsync(url, Collections.<String, String>emptyMap(), file).thenApply(res -> {
+            if (res.statusCode < 200 || res.statusCode > 299) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                throw new CompletionException(new StatusException(res.statusCode, url));
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Sends a request asynchronously and writes the body into a file as it
+     * arrives, still encoded as the Content-Encoding header says. The
+     * status is not checked.
+     *
+     * @param url
+     * @param headers additional request headers, e.g. conditional ones
+     * @param file
+     * @return the response, status and headers set
+     */
+    public CompletableFuture<Response> fetchFileAsync(URL url, Map<String, String> headers, final Path file) {
+        HttpRequest request;
+        try {
+            request = this.request(url, headers, true);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return this.sendAsync(url, request, HttpResponse.BodyHandlers.ofFile(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+                .thenApply(hres -> {
+                    Response res = new Response();
+                    res.statusCode = hres.statusCode();
+                    res.headers = hres.headers();
+                    try {
+                        Metrics.getShared().add(Metrics.BYTES_IN, Files.size(file));
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    return res;
+                });
+    }
+
+    /**
+     * Sends a GET request asynchronously and decodes the body into memory,
+     * whatever the status code.
+     *
+     * @param url
+     * @param headers additional request headers
+     * @return the response, body set
+     */
+    public CompletableFuture<Response> fetchAsync(URL url, Map<String, String> headers) {
+        HttpRequest request;
+        try {
+            request = this.request(url, headers, true);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return this.sendAsync(url, request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(hres -> {
+            Response res = new Response();
+            res.statusCode = hres.statusCode();
+            res.headers = hres.headers();
+            Metrics.getShared().add(Metrics.BYTES_IN, hres.body().length);
+            try (InputStream in = decode(new ByteArrayInputStream(hres.body()), res.header("Content-Encoding"))) {
+                res.body = in.readAllBytes();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Sends a request when the limiter lets it, and tells the limiter how
+     * long the response took and what it was.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(final URL url, final HttpRequest request,
+            final HttpResponse.BodyHandler<T> handler) {
+        final HttpResponse.BodyHandler<T> timed = info -> new TimedSubscriber<>(handler.apply(info),
+                this.readTimeout, url);
+        if (this.limiter == null) {
+            return this.client.sendAsync(request, timed);
+        }
+        return this.limiter.acquire(url).thenCompose(permit -> {
+            CompletableFuture<HttpResponse<T>> sent;
+            try {
+                sent = this.client.sendAsync(request, info -> {
+                    permit.responded(info.statusCode(), info.headers().firstValue("Retry-After").orElse(null));
+                    return timed.apply(info);
+                });
+            } catch (RuntimeException e) {
+                // e.g. the client was shut down, nothing was sent
+                permit.failed(e);
+                return CompletableFuture.failedFuture(e);
+            }
+            return sent.whenComplete((hres, e) -> {
+                if (e != null) {
+                    permit.failed(e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Returns the result of a future, with the IOException it failed with
+     * thrown as such.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends a GET request and reads the decoded body into memory, whatever
+     * the status code.
+     *
+     * @param url
+     * @param headers additional request headers
+     * @return the response, body set
+     * @throws IOException
+     */
+    public Response fetch(URL url, Map<String, String> headers) throws IOException {
+        return await(this.fetchAsync(url, headers));
+    }
+
+    /**
+     * Sends a GET request and returns the response with the body as a
+     * stream, whatever the status code, right away, not paced by the
+     * limiter. The caller has to close the stream.
+     *
+     * @param url
+     * @param headers additional request headers
+     * @param compressed request gzip or deflate encoding; use false for
+     * range requests, which address the unencoded bytes
+     * @return the response, stream set
+     * @throws IOException
+     */
+    public Response open(URL url, Map<String, String> headers, boolean compressed) throws IOException {
+        if (this.mirror != null) {
+            return this.openMirror(url);
+        }
+        HttpResponse<InputStream> hres;
+        try {
+            hres = this.client.send(this.request(url, headers, compressed), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + url);
+        }
+        Response res = new Response();
+        res.statusCode = hres.statusCode();
+        res.headers = hres.headers();
+        // count the bytes on the wire, before decoding
+        res.stream = decode(new CountingInputStream(new TimedInputStream(hres.body(), this.readTimeout, url),
+                Metrics.getShared()), res.header("Content-Encoding"));
+        return res;
+    }
+
+    /**
+     * Reads the file of a URL from the mirror into memory.
+     */
+    private Response readMirror(URL url) throws IOException {
+        Response res = new Response();
+        res.statusCode = 200;
+        res.body = Mirror.read(this.mirror.resolve(url));
+        Metrics.getShared().add(Metrics.BYTES_IN, res.body.length);
+        return res;
+    }
+
+    /**
+     * Opens the file of a URL in the mirror as the stream of a 200
+     * response, with its Content-Length; range and conditional headers are
+     * ignored, the whole file is always returned.
+     */
+    private Response openMirror(URL url) throws IOException {
+        File file = this.mirror.resolve(url);
+        Response res = new Response();
+        res.statusCode = 200;
+        res.headers = HttpHeaders.of(Collections.singletonMap("Content-Length",
+                Collections.singletonList(Long.toString(file.length()))), (name, value) -> true);
+        res.stream = new CountingInputStream(Channels.newInputStream(
+                FileChannel.open(file.toPath(), StandardOpenOption.READ)), Metrics.getShared());
+        return res;
+    }
+
+    private HttpRequest request(URL url, Map<String, String> headers, boolean compressed) throws IOException {
+        HttpRequest.Builder rb;
+        try {
+            rb = HttpRequest.newBuilder(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        rb.GET().timeout(this.readTimeout).header("User-Agent", USER_AGENT);
+        // over plain http the client would try an h2c upgrade, which
+        // servers and proxies handle badly
+        if ("https".equalsIgnoreCase(url.getProtocol())) {
+            rb.version(HttpClient.Version.HTTP_2);
+        }
+        if (compressed) {
+            rb.header("Accept-Encoding", "gzip, deflate");
+        }
+        for (Map.Entry<String, String> h : headers.entrySet()) {
+            rb.header(h.getKey(), h.getValue());
+        }
+        return rb.build();
+    }
+
+    /**
+     * Decodes a body with the Content-Encoding of its response.
+     *
+     * @param in
+     * @param encoding the Content-Encoding, or null
+     */
+    public static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding != null) {
+            if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+                return new GZIPInputStream(in, 64 * 1024);
+            } else if (encoding.equalsIgnoreCase("deflate")) {
+                return new InflaterInputStream(in);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Fails a read that waits longer than the timeout for the next bytes
+     * of a body. Only the time blocked in read() counts, not the time the
+     * caller spends between reads, e.g. the catalog parser waiting for the
+     * pipeline.
+     */
+    static class TimedInputStream extends FilterInputStream {
+
+        private final long timeoutNanos;
+        private final URL url;
+        private volatile boolean timedOut;
+
+        TimedInputStream(InputStream in, Duration timeout, URL url) {
+            super(in);
+            this.timeoutNanos = timeout.toNanos();
+            this.url = url;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ScheduledFuture<?> expiry = TIMEOUTS.schedule(this::expire, this.timeoutNanos, TimeUnit.NANOSECONDS);
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (IOException e) {
+                if (this.timedOut) {
+                    throw this.timeout();
+                }
+                throw e;
+            } finally {
+                expiry.cancel(false);
+            }
+            // a closed JDK body stream reads as the end, not as an error
+            if (this.timedOut) {
+                throw this.timeout();
+            }
+            return n;
+        }
+
+        private void expire() {
+            this.timedOut = true;
+            try {
+                this.in.close();
+            } catch (IOException e) {
+                // the read fails anyway
+            }
+        }
+
+        private HttpTimeoutException timeout() {
+            return new HttpTimeoutException("No data for " + TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos)
+                    + " ms from " + this.url);
+        }
+    }
+
+    /**
+     * Fails a body that gets no new bytes within the timeout: the
+     * subscription is cancelled, and the body completes with an
+     * HttpTimeoutException.
+     */
+    static final class TimedSubscriber<T> implements HttpResponse.BodySubscriber<T>, Runnable {
+
+        private final HttpResponse.BodySubscriber<T> subscriber;
+        private final CompletableFuture<T> body;
+        private final long timeoutNanos;
+        private final URL url;
+        private Flow.Subscription subscription;
+        private ScheduledFuture<?> expiry;
+        private long last;
+        private boolean done;
+
+        TimedSubscriber(HttpResponse.BodySubscriber<T> subscriber, Duration timeout, URL url) {
+            this.subscriber = subscriber;
+            this.timeoutNanos = timeout.toNanos();
+            this.url = url;
+            this.body = new CompletableFuture<>();
+            subscriber.getBody().whenComplete((t, e) -> {
+                if (e != null) {
+                    this.body.completeExceptionally(e);
+                } else {
+                    this.body.complete(t);
+                }
+            });
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return this.body;
+        }
+
+        @Override
+        public synchronized void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            this.last = System.nanoTime();
+            this.expiry = TIMEOUTS.schedule(this, this.timeoutNanos, TimeUnit.NANOSECONDS);
+            this.subscriber.onSubscribe(subscription);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> item) {
+            if (!this.done) {
+                this.last = System.nanoTime();
+                this.subscriber.onNext(item);
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            if (!this.done) {
+                this.stop();
+                this.subscriber.onError(throwable);
+            }
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            if (!this.done) {
+                this.stop();
+                this.subscriber.onComplete();
+            }
+        }
+
+        private void stop() {
+            this.done = true;
+            this.expiry.cancel(false);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (this.done) {
+                return;
+            }
+            long idle = System.nanoTime() - this.last;
+            if (idle < this.timeoutNanos) {
+                this.expiry = TIMEOUTS.schedule(this, this.timeoutNanos - idle, TimeUnit.NANOSECONDS);
+                return;
+            }
+            this.done = true;
+            HttpTimeoutException e = new HttpTimeoutException("No data for "
+                    + TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos) + " ms from " + this.url);
+            this.body.completeExceptionally(e);
+            this.subscription.cancel();
+            // lets the subscriber close what it opened, e.g. the file
+            this.subscriber.onError(e);
+        }
+    }
+
+    /**
+     * Counts the bytes read, and adds them to Metrics.BYTES_IN if there
+     * are metrics.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        private final Metrics metrics;
+        long count;
+
+        CountingInputStream(InputStream in, Metrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                this.count(1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                this.count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) {
+            this.count += n;
+            if (this.metrics != null) {
+                this.metrics.add(Metrics.BYTES_IN, n);
+            }
+        }
+    }
+}
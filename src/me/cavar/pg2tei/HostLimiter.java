@@ -0,0 +1,390 @@
+/*
+ * HostLimiter.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Decides when a request to a host may be sent, so that a run is as fast
+ * as the server lets it be without being throttled.
+ *
+ * Every host has a limit of requests in flight, adjusted like a TCP
+ * congestion window (AIMD): it starts at 4 and doubles per round trip
+ * until the first sign of overload, then grows by one per round trip, and
+ * is halved on overload, at most once per round trip. Overload is a 429 or
+ * 503 response, a timeout, or latency (to the response headers) rising to
+ * twice the lowest of the last 30 seconds and at least 50 ms above it,
+ * once 10 responses came back; the jitter of a fast host is not overload.
+ * A Retry-After header, or a 429 or 503 without one, pauses the host
+ * altogether. On top of that a token bucket keeps the requests per second
+ * to a host under a ceiling.
+ *
+ * A request is in flight until its response headers arrive or it fails,
+ * not until its body is read: the host answered, and the bodies are
+ * bounded by the books fetching at once (BookPipeline.setMaxFetches()).
+ *
+ * Requests wait in a queue per host, without a thread; acquire() returns a
+ * future that completes when the request may go.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.net.ConnectException;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class HostLimiter {
+
+    /**
+     * The default ceiling of requests per second to one host.
+     */
+    public static final double DEFAULT_RATE = 20.0;
+    /**
+     * The default ceiling of requests in flight to one host.
+     */
+    public static final int DEFAULT_MAX = 32;
+    static final int INITIAL_LIMIT = 4;
+    // overload if the latency is this many times the lowest
+    static final double LATENCY_FACTOR = 2.0;
+    // and at least this much above it, after this many responses
+    static final long LATENCY_MARGIN = TimeUnit.MILLISECONDS.toNanos(50);
+    static final int LATENCY_SAMPLES = 10;
+    // the lowest latency is that of the last window
+    static final long LATENCY_WINDOW = TimeUnit.SECONDS.toNanos(30);
+    // pause after a 429 or 503 without Retry-After, and the longest pause
+    static final long DEFAULT_PAUSE = TimeUnit.SECONDS.toNanos(1);
+    static final long MAX_PAUSE = TimeUnit.MINUTES.toNanos(10);
+    /**
+     * Requests per second to one host, 0 for no ceiling.
+     */
+    private final double rate;
+    /**
+     * The highest limit of requests in flight to one host.
+     */
+    private final int maxLimit;
+    private final ConcurrentHashMap<String, Host> hosts;
+    /**
+     * Dispatches the requests waiting for a token or the end of a pause.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * A request that may be sent. The client reports the response headers,
+     * which releases it, or the failure.
+     */
+    public static final class Permit {
+
+        private final Host host;
+        private final long start;
+        private final AtomicBoolean released;
+
+        private Permit(Host host) {
+            this.host = host;
+            this.start = System.nanoTime();
+            this.released = new AtomicBoolean(false);
+        }
+
+        /**
+         * The status and headers of the response arrived, the permit is
+         * released.
+         *
+         * @param statusCode
+         * @param retryAfter the Retry-After header, or null
+         */
+        public void responded(int statusCode, String retryAfter) {
+            this.host.responded(statusCode, retryAfter, System.nanoTime() - this.start);
+            this.release();
+        }
+
+        /**
+         * The request failed, also while the body was read; the permit is
+         * released if it was not yet.
+         */
+        public void failed(Throwable e) {
+            this.host.failed(e);
+            this.release();
+        }
+
+        /**
+         * The request is done. Releasing twice does no harm.
+         */
+        public void release() {
+            if (this.released.compareAndSet(false, true)) {
+                this.host.release();
+            }
+        }
+    }
+
+    /**
+     * The state of one host.
+     */
+    private final class Host {
+
+        private final ArrayDeque<CompletableFuture<Permit>> waiting;
+        // the AIMD limit of requests in flight
+        private double limit;
+        private boolean slowStart;
+        private int inFlight;
+        private long lastDecrease;
+        // the token bucket
+        private double tokens;
+        private long refilled;
+        private long pausedUntil;
+        // latencies in nanos: smoothed, lowest, lowest of the current window
+        private double latency;
+        private long lowest;
+        private long windowLowest;
+        private long windowStart;
+        private int samples;
+        private boolean scheduled;
+
+        Host() {
+            this.waiting = new ArrayDeque<>();
+            this.limit = Math.min(INITIAL_LIMIT, HostLimiter.this.maxLimit);
+            this.slowStart = true;
+            this.tokens = 1.0;
+            this.refilled = System.nanoTime();
+            this.pausedUntil = this.refilled;
+            this.windowStart = this.refilled;
+        }
+
+        /**
+         * Hands out permits to waiting requests while the limit, the
+         * tokens and a pause allow, and sets the timer if they wait for a
+         * token or the end of a pause.
+         */
+        void dispatch() {
+            ArrayList<CompletableFuture<Permit>> ready = new ArrayList<>();
+            synchronized (this) {
+                long now = System.nanoTime();
+                this.refill(now);
+                long wait = 0L;
+                while (!this.waiting.isEmpty() && this.inFlight < (int) this.limit) {
+                    if (now < this.pausedUntil) {
+                        wait = this.pausedUntil - now;
+                        break;
+                    }
+                    if (HostLimiter.this.rate > 0.0) {
+                        if (this.tokens < 1.0) {
+                            wait = (long) ((1.0 - this.tokens) / HostLimiter.this.rate * 1e9) + 1L;
+                            break;
+                        }
+                        this.tokens -= 1.0;
+                    }
+                    this.inFlight += 1;
+                    ready.add(this.waiting.poll());
+                }
+                if (wait > 0L && !this.scheduled) {
+                    this.scheduled = true;
+                    HostLimiter.this.timer.schedule(() -> {
+                        synchronized (this) {
+                            this.scheduled = false;
+                        }
+                        this.dispatch();
+                    }, wait, TimeUnit.NANOSECONDS);
+                }
+            }
+            // outside the lock, the request is sent by the completion
+            for (CompletableFuture<Permit> f : ready) {
+                f.complete(new Permit(this));
+            }
+        }
+
+        private void refill(long now) {
+            double rate = HostLimiter.this.rate;
+            if (rate > 0.0) {
+                this.tokens = Math.min(Math.max(1.0, rate), this.tokens + (now - this.refilled) * rate / 1e9);
+            }
+            this.refilled = now;
+        }
+
+        synchronized void responded(int statusCode, String retryAfter, long nanos) {
+            long now = System.nanoTime();
+            long pause = parseRetryAfter(retryAfter);
+            if (statusCode == 429 || statusCode == 503) {
+                this.decrease(now, Integer.toString(statusCode));
+                if (pause < 0L) {
+                    pause = Math.max(DEFAULT_PAUSE, (long) this.latency);
+                }
+            }
+            if (pause > 0L) {
+                this.pausedUntil = Math.max(this.pausedUntil, now + Math.min(pause, MAX_PAUSE));
+            }
+            if (statusCode == 429 || statusCode == 503) {
+                return;
+            }
+            // the lowest latency of the last window is the baseline
+            if (now - this.windowStart > LATENCY_WINDOW) {
+                this.lowest = this.windowLowest;
+                this.windowLowest = nanos;
+                this.windowStart = now;
+            } else if (this.windowLowest == 0L || nanos < this.windowLowest) {
+                this.windowLowest = nanos;
+            }
+            if (this.lowest == 0L || nanos < this.lowest) {
+                this.lowest = nanos;
+            }
+            this.latency = this.latency == 0.0 ? nanos : 0.8 * this.latency + 0.2 * nanos;
+            this.samples += 1;
+            if (overloaded(this.latency, this.lowest, this.samples)) {
+                this.decrease(now, "latency");
+            } else if (this.inFlight >= (int) this.limit) {
+                // only grow if the limit is what holds the requests back
+                this.limit = Math.min(HostLimiter.this.maxLimit,
+                        this.limit + (this.slowStart ? 1.0 : 1.0 / this.limit));
+            }
+        }
+
+        synchronized void failed(Throwable e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof HttpTimeoutException || cause instanceof ConnectException) {
+                this.decrease(System.nanoTime(), "timeout");
+            }
+        }
+
+        void release() {
+            synchronized (this) {
+                this.inFlight -= 1;
+            }
+            this.dispatch();
+        }
+
+        /**
+         * Halves the limit, unless it was halved less than a round trip
+         * ago, for the same overload.
+         */
+        private void decrease(long now, String reason) {
+            this.slowStart = false;
+            if (now - this.lastDecrease < Math.max((long) this.latency, TimeUnit.MILLISECONDS.toNanos(100))) {
+                return;
+            }
+            this.lastDecrease = now;
+            this.limit = Math.max(1.0, this.limit / 2.0);
+            Metrics.getShared().add(Metrics.HOST_BACKOFFS, reason, 1L);
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rate requests per second to one host, 0 for no ceiling
+     * @param maxLimit the highest number of requests in flight to one host
+     */
+    public HostLimiter(double rate, int maxLimit) {
+        if (rate < 0.0 || maxLimit < 1) {
+            throw new IllegalArgumentException("The request rate must not be negative, the requests in flight positive");
+        }
+        this.rate = rate;
+        this.maxLimit = maxLimit;
+        this.hosts = new ConcurrentHashMap<>();
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pg2tei-limiter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Waits for the host of the URL to take another request.
+     *
+     * @return completes with the permit to send the request
+     */
+    public CompletableFuture<Permit> acquire(URL url) {
+        String name = url.getAuthority() == null ? "" : url.getAuthority().toLowerCase(Locale.ROOT);
+        Host host = this.hosts.computeIfAbsent(name, k -> {
+            Host h = new Host();
+            Metrics.getShared().gauge(Metrics.HOST_LIMIT, k, () -> {
+                synchronized (h) {
+                    return (long) h.limit;
+                }
+            });
+            Metrics.getShared().gauge(Metrics.HOST_IN_FLIGHT, k, () -> {
+                synchronized (h) {
+                    return h.inFlight;
+                }
+            });
+            return h;
+        });
+        CompletableFuture<Permit> permit = new CompletableFuture<>();
+        synchronized (host) {
+            host.waiting.add(permit);
+        }
+        host.dispatch();
+        return permit;
+    }
+
+    /**
+     * True if the latency of a host rose so far above the lowest that the
+     * host is overloaded: to LATENCY_FACTOR times the lowest and at least
+     * LATENCY_MARGIN above it, after LATENCY_SAMPLES responses.
+     *
+     * @param latency smoothed latency in nanos
+     * @param lowest lowest latency in nanos
+     * @param samples responses so far
+     */
+    static boolean overloaded(double latency, long lowest, int samples) {
+        return samples >= LATENCY_SAMPLES && latency > LATENCY_FACTOR * lowest
+                && latency - lowest > LATENCY_MARGIN;
+    }
+
+    /**
+     * Parses a Retry-After header, seconds or an HTTP date.
+     *
+     * @return the nanos to wait, -1 if there is no header or it is not
+     * understood
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1L;
+        }
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0L, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // a date
+        }
+        try {
+            long millis = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                    - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0L, millis));
+        } catch (DateTimeParseException e) {
+            return -1L;
+        }
+    }
+}
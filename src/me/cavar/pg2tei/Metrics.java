@@ -0,0 +1,582 @@
+/*
+ * Metrics.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Counters, gauges and latency histograms of a run: the time every book
+ * spends in each step (catalog parse, RDF fetch, HTML fetch, preprocess,
+ * conversion, header, serialization, write), the busy and CPU time of the
+ * pipeline stages, bytes in and out, and failures by cause. A stage with
+ * far less CPU than busy time waits for the network or a subprocess.
+ *
+ * The histograms are log-linear like HdrHistogram: exact below 64
+ * microseconds, and within 1/32 (about 3%) above, lock-free and of fixed
+ * size. While the pipeline runs a progress line with books per second and
+ * the estimated time left is printed every few seconds, and the metrics are
+ * written to a JSON or, for files ending in .prom, a Prometheus text file.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class Metrics {
+
+    // the steps of a book, histograms
+    public static final String CATALOG_PARSE = "catalog_parse";
+    public static final String CATALOG_WAIT = "catalog_wait";
+    public static final String RDF_FETCH = "rdf_fetch";
+    public static final String HTML_FETCH = "html_fetch";
+    public static final String PREPROCESS = "preprocess";
+    public static final String CONVERT = "convert";
+    public static final String SUBPROCESS = "subprocess";
+    public static final String HEADER = "header";
+    public static final String SERIALIZE = "serialize";
+    public static final String WRITE = "write";
+    // counters
+    public static final String CATALOG_ENTRIES = "catalog_entries";
+    public static final String CATALOG_OTHER_SHARD = "catalog_other_shard";
+    public static final String CATALOG_FILTERED = "catalog_filtered";
+    public static final String BOOKS_WRITTEN = "books_written";
+    public static final String BOOKS_SKIPPED = "books_skipped";
+    public static final String BOOKS_FAILED = "books_failed";
+    public static final String BYTES_IN = "bytes_in";
+    public static final String BYTES_OUT = "bytes_out";
+    public static final String HOST_BACKOFFS = "host_backoffs";
+    public static final String RETRIES = "retries";
+    public static final String STAGE_BUSY = "stage_busy_ns";
+    public static final String STAGE_CPU = "stage_cpu_ns";
+    // gauges
+    public static final String CATALOG_POSITION = "catalog_position";
+    public static final String CATALOG_SIZE = "catalog_size";
+    public static final String STAGE_QUEUED = "stage_queued";
+    public static final String STAGE_ACTIVE = "stage_active";
+    public static final String FETCHES = "fetches_in_flight";
+    public static final String HOST_LIMIT = "host_limit";
+    public static final String HOST_IN_FLIGHT = "host_in_flight";
+    public static final String RETRIES_QUEUED = "retries_queued";
+    /**
+     * The instance all classes record to.
+     */
+    private static Metrics shared;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * A latency histogram in microseconds.
+     */
+    public static class Histogram {
+
+        /**
+         * 2^SUB_BITS buckets per power of two.
+         */
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        /**
+         * Values below this have a bucket of their own.
+         */
+        private static final int LINEAR = SUB_COUNT << 1;
+        private final AtomicLongArray buckets;
+        private final LongAdder count;
+        private final LongAdder sum;
+        private final AtomicLong max;
+
+        Histogram() {
+            this.buckets = new AtomicLongArray(LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT);
+            this.count = new LongAdder();
+            this.sum = new LongAdder();
+            this.max = new AtomicLong();
+        }
+
+        private static int index(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exp - SUB_BITS;
+            return LINEAR + (exp - SUB_BITS - 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+        }
+
+        /**
+         * The largest value of a bucket.
+         */
+        private static long highest(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int exp = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+            int shift = exp - SUB_BITS;
+            long sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        /**
+         * Records a value in microseconds.
+         */
+        public void record(long micros) {
+            long v = Math.max(0L, micros);
+            this.buckets.incrementAndGet(index(v));
+            this.count.increment();
+            this.sum.add(v);
+            long m = this.max.get();
+            while (v > m && !this.max.compareAndSet(m, v)) {
+                m = this.max.get();
+            }
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public long getSum() {
+            return this.sum.sum();
+        }
+
+        public long getMax() {
+            return this.max.get();
+        }
+
+        /**
+         * Returns the value below which the given fraction of the recorded
+         * values lie, within the bucket precision.
+         *
+         * @param quantile between 0 and 1
+         */
+        public long getQuantile(double quantile) {
+            long total = this.getCount();
+            if (total == 0) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+            long seen = 0L;
+            for (int i = 0; i < this.buckets.length(); i++) {
+                seen += this.buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), this.getMax());
+                }
+            }
+            return this.getMax();
+        }
+    }
+    /**
+     * The quantiles exported per histogram.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    /**
+     * Counters by name and label value, "" for counters without label.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> counters;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongSupplier>> gauges;
+    /**
+     * The label name of the counters and gauges with a label.
+     */
+    private final ConcurrentHashMap<String, String> labels;
+    private final ConcurrentHashMap<String, Histogram> histograms;
+    /**
+     * JSON or Prometheus (.prom) file the metrics are written to, or null.
+     */
+    private File exportFile;
+    /**
+     * Seconds between two progress lines and exports.
+     */
+    private int interval;
+    private long startNanos;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Constructor.
+     *
+     * @param exportFile the file to export to, null for none
+     * @param interval seconds between progress lines and exports
+     */
+    public Metrics(File exportFile, int interval) {
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.labels = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+        this.exportFile = exportFile;
+        this.interval = Math.max(1, interval);
+        this.startNanos = System.nanoTime();
+        this.labels.put(BOOKS_FAILED, "cause");
+        this.labels.put(STAGE_BUSY, "stage");
+        this.labels.put(STAGE_CPU, "stage");
+        this.labels.put(STAGE_QUEUED, "stage");
+        this.labels.put(STAGE_ACTIVE, "stage");
+        this.labels.put(HOST_BACKOFFS, "reason");
+        this.labels.put(RETRIES, "cause");
+        this.labels.put(HOST_LIMIT, "host");
+        this.labels.put(HOST_IN_FLIGHT, "host");
+    }
+
+    /**
+     * Returns the shared registry, created without export on first use.
+     */
+    public static synchronized Metrics getShared() {
+        if (Metrics.shared == null) {
+            Metrics.shared = new Metrics(null, 10);
+        }
+        return Metrics.shared;
+    }
+
+    /**
+     * Replaces the shared registry with one exporting to a file.
+     */
+    public static synchronized void configure(File exportFile, int interval) {
+        Metrics.shared = new Metrics(exportFile, interval);
+    }
+
+    /**
+     * Returns the current CPU time of this thread in nanoseconds, 0 if the
+     * JVM does not measure it.
+     */
+    public static long threadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0L;
+    }
+
+    public void increment(String name) {
+        this.add(name, "", 1L);
+    }
+
+    public void add(String name, long n) {
+        this.add(name, "", n);
+    }
+
+    /**
+     * Adds to a counter with a label, e.g. BOOKS_FAILED by cause.
+     */
+    public void add(String name, String label, long n) {
+        this.counters.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(label, k -> new LongAdder()).add(n);
+    }
+
+    /**
+     * Counts a failed book.
+     */
+    public void failure(String cause) {
+        this.add(BOOKS_FAILED, cause, 1L);
+    }
+
+    /**
+     * Returns a counter, summed over its labels.
+     */
+    public long getCount(String name) {
+        Map<String, LongAdder> values = this.counters.get(name);
+        long n = 0L;
+        if (values != null) {
+            for (LongAdder a : values.values()) {
+                n += a.sum();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Registers a gauge, read whenever the metrics are exported.
+     */
+    public void gauge(String name, LongSupplier value) {
+        this.gauge(name, "", value);
+    }
+
+    public void gauge(String name, String label, LongSupplier value) {
+        this.gauges.computeIfAbsent(name, k -> new ConcurrentHashMap<>()).put(label, value);
+    }
+
+    /**
+     * Returns the value of a gauge, -1 if it is not registered.
+     */
+    public long getGauge(String name) {
+        Map<String, LongSupplier> values = this.gauges.get(name);
+        LongSupplier value = values != null ? values.get("") : null;
+        return value != null ? value.getAsLong() : -1L;
+    }
+
+    public Histogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Records the time since startNanos (from System.nanoTime()).
+     */
+    public void record(String name, long startNanos) {
+        this.recordNanos(name, System.nanoTime() - startNanos);
+    }
+
+    public void recordNanos(String name, long nanos) {
+        this.histogram(name).record(nanos / 1000L);
+    }
+
+    /**
+     * Starts printing the progress line, and exporting if there is a file.
+     */
+    public synchronized void start() {
+        if (this.reporter != null) {
+            return;
+        }
+        this.startNanos = System.nanoTime();
+        ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pg2tei-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ex.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, this.interval, this.interval, TimeUnit.SECONDS);
+        this.reporter = ex;
+    }
+
+    /**
+     * Stops the reporting, with a last progress line and export.
+     */
+    public synchronized void stop() {
+        if (this.reporter == null) {
+            return;
+        }
+        this.reporter.shutdownNow();
+        this.reporter = null;
+        this.report();
+    }
+
+    private void report() {
+        System.out.println(this.progressLine());
+        if (this.exportFile != null) {
+            try {
+                this.export(this.exportFile);
+            } catch (IOException | RuntimeException e) {
+                Logger.getLogger(Metrics.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    /**
+     * Returns e.g. "Progress: 5200 entries, 410 written, 3 failed, 4780
+     * skipped, 2.1 books/s, catalog 13%, ETA 4:48:12".
+     */
+    public String progressLine() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - this.startNanos) / 1e9);
+        long entries = this.getCount(CATALOG_ENTRIES);
+        long written = this.getCount(BOOKS_WRITTEN);
+        long failed = this.getCount(BOOKS_FAILED);
+        long skipped = this.getCount(BOOKS_SKIPPED);
+        // skipped books take no time, they would make the rate meaningless
+        double rate = (written + failed) / seconds;
+        StringBuilder strb = new StringBuilder();
+        strb.append(String.format(Locale.ROOT, "Progress: %d entries, %d written, %d failed, %d skipped, %.1f books/s",
+                entries, written, failed, skipped, rate));
+        long size = this.getGauge(CATALOG_SIZE);
+        long position = this.getGauge(CATALOG_POSITION);
+        String eta = "?";
+        if (size > 0 && position > 0) {
+            double fraction = Math.min(1.0, (double) position / size);
+            strb.append(String.format(Locale.ROOT, ", catalog %d%%", (int) (fraction * 100)));
+            long remaining = Math.round(entries / fraction) - written - failed - skipped
+                    - this.getCount(CATALOG_OTHER_SHARD) - this.getCount(CATALOG_FILTERED);
+            if (rate > 0 && remaining >= 0) {
+                long s = Math.round(remaining / rate);
+                eta = String.format(Locale.ROOT, "%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+            }
+        }
+        strb.append(", ETA ").append(eta);
+        return strb.toString();
+    }
+
+    /**
+     * Writes the metrics to a file, replacing it atomically: Prometheus
+     * text format if the name ends in .prom, JSON otherwise.
+     */
+    public void export(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+            if (file.getName().endsWith(".prom")) {
+                this.writePrometheus(out);
+            } else {
+                this.writeJSON(out);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the metrics as one JSON object. Labeled counters and gauges
+     * are objects by label value, histogram values are in microseconds.
+     */
+    public void writeJSON(Writer out) throws IOException {
+        out.write("{\n  \"timestamp\": " + System.currentTimeMillis());
+        out.write(String.format(Locale.ROOT, ",\n  \"uptime_s\": %.3f", (System.nanoTime() - this.startNanos) / 1e9));
+        out.write(",\n  \"progress\": " + quote(this.progressLine()));
+        out.write(",\n  \"counters\": {");
+        String sep = "\n    ";
+        for (Map.Entry<String, TreeMap<String, Long>> e : this.snapshotCounters().entrySet()) {
+            out.write(sep + quote(e.getKey()) + ": " + jsonValues(e.getKey(), e.getValue()));
+            sep = ",\n    ";
+        }
+        out.write("\n  },\n  \"gauges\": {");
+        sep = "\n    ";
+        for (Map.Entry<String, TreeMap<String, Long>> e : this.snapshotGauges().entrySet()) {
+            out.write(sep + quote(e.getKey()) + ": " + jsonValues(e.getKey(), e.getValue()));
+            sep = ",\n    ";
+        }
+        out.write("\n  },\n  \"histograms\": {");
+        sep = "\n    ";
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(this.histograms).entrySet()) {
+            Histogram h = e.getValue();
+            out.write(sep + quote(e.getKey()) + ": {\"count\": " + h.getCount() + ", \"sum_us\": " + h.getSum()
+                    + ", \"max_us\": " + h.getMax());
+            for (double q : QUANTILES) {
+                out.write(", \"p" + quantileName(q) + "_us\": " + h.getQuantile(q));
+            }
+            out.write("}");
+            sep = ",\n    ";
+        }
+        out.write("\n  }\n}\n");
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format, e.g. for the
+     * textfile collector of the node exporter. Histograms are summaries in
+     * seconds.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        for (Map.Entry<String, TreeMap<String, Long>> e : this.snapshotCounters().entrySet()) {
+            String name = "pg2tei_" + e.getKey() + "_total";
+            out.write("# TYPE " + name + " counter\n");
+            this.writeSamples(out, name, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, TreeMap<String, Long>> e : this.snapshotGauges().entrySet()) {
+            String name = "pg2tei_" + e.getKey();
+            out.write("# TYPE " + name + " gauge\n");
+            this.writeSamples(out, name, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(this.histograms).entrySet()) {
+            String name = "pg2tei_" + e.getKey() + "_seconds";
+            Histogram h = e.getValue();
+            out.write("# TYPE " + name + " summary\n");
+            for (double q : QUANTILES) {
+                out.write(String.format(Locale.ROOT, "%s{quantile=\"%s\"} %.6f\n", name, Double.toString(q),
+                        h.getQuantile(q) / 1e6));
+            }
+            out.write(String.format(Locale.ROOT, "%s_sum %.6f\n", name, h.getSum() / 1e6));
+            out.write(name + "_count " + h.getCount() + "\n");
+        }
+    }
+
+    private void writeSamples(Writer out, String name, String key, TreeMap<String, Long> values) throws IOException {
+        String label = this.labels.get(key);
+        for (Map.Entry<String, Long> v : values.entrySet()) {
+            if (label == null || v.getKey().isEmpty()) {
+                out.write(name + " " + v.getValue() + "\n");
+            } else {
+                out.write(name + "{" + label + "=\"" + v.getKey().replace("\\", "\\\\").replace("\"", "\\\"")
+                        .replace("\n", "\\n") + "\"} " + v.getValue() + "\n");
+            }
+        }
+    }
+
+    private String jsonValues(String key, TreeMap<String, Long> values) {
+        if (!this.labels.containsKey(key)) {
+            return Long.toString(values.getOrDefault("", 0L));
+        }
+        StringBuilder strb = new StringBuilder("{");
+        String sep = "";
+        for (Map.Entry<String, Long> v : values.entrySet()) {
+            strb.append(sep).append(quote(v.getKey())).append(": ").append(v.getValue());
+            sep = ", ";
+        }
+        return strb.append('}').toString();
+    }
+
+    private TreeMap<String, TreeMap<String, Long>> snapshotCounters() {
+        TreeMap<String, TreeMap<String, Long>> snapshot = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> e : this.counters.entrySet()) {
+            TreeMap<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> v : e.getValue().entrySet()) {
+                values.put(v.getKey(), v.getValue().sum());
+            }
+            snapshot.put(e.getKey(), values);
+        }
+        return snapshot;
+    }
+
+    private TreeMap<String, TreeMap<String, Long>> snapshotGauges() {
+        TreeMap<String, TreeMap<String, Long>> snapshot = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LongSupplier>> e : this.gauges.entrySet()) {
+            TreeMap<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, LongSupplier> v : e.getValue().entrySet()) {
+                values.put(v.getKey(), v.getValue().getAsLong());
+            }
+            snapshot.put(e.getKey(), values);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 0.5 to "50", 0.999 to "999".
+     */
+    private static String quantileName(double q) {
+        String s = Double.toString(q).substring(2);
+        return s.length() == 1 ? s + "0" : s;
+    }
+
+    private static String quote(String s) {
+        StringBuilder strb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                strb.append('\\').append(c);
+            } else if (c < 0x20) {
+                strb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                strb.append(c);
+            }
+        }
+        return strb.append('"').toString();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Mirror.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * A local copy of Project Gutenberg, e.g. made with rsync, that stands in
+ * for the server: the URLs of the catalog, the per-book RDF and the
+ * HTML-files are mapped onto files in the mirror, and a conversion needs
+ * no network at all. A URL is looked up, in this order, as
+ *
+ *   the path of the URL:  ebooks/11.rdf, files/11/11-h/11-h.htm, ...
+ *   the RDF-files:        cache/epub/11/pg11.rdf for ebooks/11.rdf
+ *   the HTML-files:       cache/epub/11/pg11-images.html for
+ *                         ebooks/11.html.images, pg11.html for
+ *                         ebooks/11.html.noimages
+ *   the rsync layout:     1/11/11-h/11-h.htm for files/11/11-h/11-h.htm,
+ *                         one folder per digit but the last, 0/7/ for 7;
+ *                         also below dirs/, and without the dirs/ of a
+ *                         URL like dirs/1/11/11-h/11-h.htm
+ *
+ * The files are read through their FileChannel, and copied into the output
+ * tree with transferTo(), which leaves the copying to the kernel.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class Mirror {
+
+    private static final Pattern EBOOK = Pattern.compile("/ebooks/(\\d+)(\\.rdf|\\.html\\.images|\\.html\\.noimages)");
+    private static final Pattern FILES = Pattern.compile("/files/(\\d+)(/.*)");
+    /**
+     * The root folder of the mirror.
+     */
+    private final File root;
+
+    /**
+     * Constructor.
+     *
+     * @param root the root folder of the mirror
+     */
+    public Mirror(File root) {
+        this.root = root;
+    }
+
+    public File getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Returns the file of a URL in the mirror.
+     *
+     * @throws NoSuchFileException if the mirror does not have it
+     */
+    public File resolve(URL url) throws NoSuchFileException {
+        for (String path : candidates(url.getPath())) {
+            File file = new File(this.root, path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new NoSuchFileException(new File(this.root, url.getPath()).getPath(), null,
+                "Not in the mirror: " + url);
+    }
+
+    /**
+     * The paths a URL path may have in the mirror, in the order they are
+     * tried.
+     */
+    static List<String> candidates(String path) {
+        ArrayList<String> paths = new ArrayList<>();
+        paths.add(path);
+        if (path.startsWith("/dirs/")) {
+            paths.add(path.substring("/dirs".length()));
+        }
+        Matcher m = EBOOK.matcher(path);
+        if (m.matches()) {
+            String id = m.group(1);
+            switch (m.group(2)) {
+                case ".rdf":
+                    paths.add("/cache/epub/" + id + "/pg" + id + ".rdf");
+                    break;
+                case ".html.images":
+                    paths.add("/cache/epub/" + id + "/pg" + id + "-images.html");
+                    break;
+                default:
+                    paths.add("/cache/epub/" + id + "/pg" + id + ".html");
+                    break;
+            }
+        }
+        m = FILES.matcher(path);
+        if (m.matches()) {
+            String rsync = "/" + folder(m.group(1)) + m.group(2);
+            paths.add(rsync);
+            paths.add("/dirs" + rsync);
+        }
+        return paths;
+    }
+
+    /**
+     * The folder of a book in the rsync layout: 1/2/3/4/12345 for 12345,
+     * 0/7 for 7.
+     */
+    static String folder(String id) {
+        if (id.length() == 1) {
+            return "0/" + id;
+        }
+        StringBuilder strb = new StringBuilder();
+        for (int i = 0; i < id.length() - 1; i++) {
+            strb.append(id.charAt(i)).append('/');
+        }
+        return strb.append(id).toString();
+    }
+
+    /**
+     * Reads a file into memory through its channel, in one read for most
+     * files.
+     */
+    public static byte[] read(File file) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("File too large: " + file);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (in.read(buf) < 0) {
+                    throw new EOFException("File shrank while reading: " + file);
+                }
+            }
+            return buf.array();
+        }
+    }
+
+    /**
+     * Copies a file with transferTo(), without passing the bytes through
+     * the heap.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(File from, Path to) throws IOException {
+        try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0L;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0L) {
+                    break;
+                }
+                position += n;
+            }
+            return position;
+        }
+    }
+}
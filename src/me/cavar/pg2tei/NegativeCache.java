@@ -0,0 +1,157 @@
+/*
+ * NegativeCache.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The books whose RDF or HTML-file the server does not have (404, 410 and
+ * other 4xx responses), so that the next runs do not fetch them again just
+ * to fail the same way. An entry expires after a time to live, after that
+ * the book is tried again.
+ *
+ * The entries are kept in pg2tei.negative in the output folder, one line
+ * per book: ID, expiry in milliseconds since the epoch, cause. Expired
+ * entries are dropped when the file is loaded.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class NegativeCache {
+
+    /**
+     * The file name in the output folder.
+     */
+    public static final String FILE = "pg2tei.negative";
+    /**
+     * The default time to live of an entry, in seconds.
+     */
+    public static final long DEFAULT_TTL = TimeUnit.DAYS.toSeconds(7);
+    private final File file;
+    private final long ttlMillis;
+    /**
+     * The expiry per book ID.
+     */
+    private final ConcurrentHashMap<Integer, Long> expires;
+    private final ConcurrentHashMap<Integer, String> causes;
+
+    /**
+     * Constructor. Loads the file and drops the expired entries.
+     *
+     * @param file
+     * @param ttl time to live of new entries in seconds
+     * @throws IOException
+     */
+    public NegativeCache(File file, long ttl) throws IOException {
+        this.file = file;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttl);
+        this.expires = new ConcurrentHashMap<>();
+        this.causes = new ConcurrentHashMap<>();
+        if (file.exists()) {
+            this.load();
+        }
+    }
+
+    private void load() throws IOException {
+        long now = System.currentTimeMillis();
+        StringBuilder strb = new StringBuilder();
+        for (String line : Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8)) {
+            String[] f = line.split("\t", 3);
+            if (f.length != 3) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(f[0]);
+                long expiry = Long.parseLong(f[1]);
+                if (expiry > now) {
+                    this.expires.put(id, expiry);
+                    this.causes.put(id, f[2]);
+                    strb.append(line).append('\n');
+                }
+            } catch (NumberFormatException e) {
+                Logger.getLogger(NegativeCache.class.getName()).log(Level.WARNING, "Bad negative cache entry: " + line);
+            }
+        }
+        File tmp = new File(this.file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), strb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * True if the book failed for good and the entry did not expire yet.
+     */
+    public boolean contains(int id) {
+        Long expiry = this.expires.get(id);
+        return expiry != null && expiry > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the cause of the failure of a book, or null.
+     */
+    public String getCause(int id) {
+        return this.contains(id) ? this.causes.get(id) : null;
+    }
+
+    /**
+     * Adds a book that failed for good.
+     */
+    public synchronized void add(int id, String cause) {
+        long expiry = System.currentTimeMillis() + this.ttlMillis;
+        String clean = cause.replace('\t', ' ').replace('\n', ' ');
+        this.expires.put(id, expiry);
+        this.causes.put(id, clean);
+        try {
+            Files.write(this.file.toPath(), (id + "\t" + expiry + "\t" + clean + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Logger.getLogger(NegativeCache.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * The number of entries that did not expire.
+     */
+    public int size() {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (Map.Entry<Integer, Long> e : this.expires.entrySet()) {
+            if (e.getValue() > now) {
+                n += 1;
+            }
+        }
+        return n;
+    }
+}
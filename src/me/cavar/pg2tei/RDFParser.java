@@ -26,28 +26,16 @@
  */
 package me.cavar.pg2tei;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.XMLConstants;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
@@ -71,6 +59,18 @@ public class RDFParser extends DefaultHandler {
      * The number of RDF-catalog entries.
      */
     private int entryCounter;
+    /**
+     * The number of entries skipped as finished (or unchanged).
+     */
+    private int skippedCounter;
+    /**
+     * The number of entries of other shards.
+     */
+    private int otherShardCounter;
+    /**
+     * The number of entries the filter did not select.
+     */
+    private int filteredCounter;
     /**
      * Flag for: within a language tag in the RDF structure. Default false
      */
@@ -83,17 +83,57 @@ public class RDFParser extends DefaultHandler {
     private boolean projGCategory;
     private boolean dcCreated;
     private boolean entryFound;
-    String ebookURLStr;
+    /**
+     * The stages that fetch, convert and write the books.
+     */
+    private BookPipeline pipeline;
+    /**
+     * The catalog being parsed, for the byte offsets of the entries.
+     */
+    private CatalogStream catalogStream;
+    /**
+     * Catalog byte offset of the current entry (an upper bound).
+     */
+    private long entryOffset;
     String outputFolder;
+    /**
+     * System.nanoTime() at the start of the current entry.
+     */
+    private long entryStart;
+    /**
+     * The flight recorder event of the current entry.
+     */
+    private BookEvent entryEvent;
+    private Metrics metrics;
+    /**
+     * False for parsers that do not convert the books, e.g. the one that
+     * builds the CatalogIndex: their entries are not counted in the
+     * catalog metrics and get no flight recorder events.
+     */
+    private boolean instrumented;
 
     /**
      * Constructor.
      */
-    public RDFParser(String ebookURLStr, String outputFolder) {
-        this.ebookURLStr = ebookURLStr;
-        this.outputFolder = outputFolder;
+    public RDFParser(BookPipeline pipeline) {
+        this();
+        this.pipeline = pipeline;
+        this.instrumented = true;
+        this.outputFolder = pipeline.outputFolder;
+    }
+
+    /**
+     * Constructor for parsers that do something else with the entries than
+     * converting the books, see entry(). They are not instrumented.
+     */
+    protected RDFParser() {
+        this.metrics = Metrics.getShared();
+        this.instrumented = false;
         this.charBuf = new StringBuffer();
         this.entryCounter = 0;
+        this.skippedCounter = 0;
+        this.otherShardCounter = 0;
+        this.filteredCounter = 0;
         this.languageTag = false;
         this.subjectTag = false;
         this.subjectLCCTag = false;
@@ -110,6 +150,30 @@ public class RDFParser extends DefaultHandler {
         return (this.entryCounter);
     }
 
+    /**
+     *
+     * @return the number of entries not handed to the pipeline
+     */
+    public int getSkippedCounter() {
+        return (this.skippedCounter);
+    }
+
+    /**
+     *
+     * @return the number of entries left to the other shards
+     */
+    public int getOtherShardCounter() {
+        return (this.otherShardCounter);
+    }
+
+    /**
+     *
+     * @return the number of entries the filter did not select
+     */
+    public int getFilteredCounter() {
+        return (this.filteredCounter);
+    }
+
     /**
      *
      * @param fname
@@ -118,21 +182,57 @@ public class RDFParser extends DefaultHandler {
      * @throws SAXNotSupportedException
      */
     public void parseDocument(String fname) throws ParserConfigurationException, SAXNotRecognizedException, SAXNotSupportedException {
-        //get a factory
-        SAXParserFactory spf = SAXParserFactory.newInstance();
-        // we have to switch of SECURE_PROCESSING because of the limits
-        // we have more than 64,000 replacements of entities etc.
-        spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, false);
         try {
-            //get a new instance of parser
-            SAXParser sp = spf.newSAXParser();
             //parse the file and also register this class for call backs
-            sp.parse(fname, this);
+            this.newSAXParser().parse(fname, this);
+        } catch (SAXException | ParserConfigurationException | IOException e) {
+            Logger.getLogger(RDFParser.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * Parses the catalog from a stream, e.g. the catalog.rdf entry of the
+     * zip archive, without storing it on disk first.
+     *
+     * @param in
+     * @param systemId the name of the catalog, used in error messages
+     * @throws ParserConfigurationException
+     * @throws SAXNotRecognizedException
+     * @throws SAXNotSupportedException
+     */
+    public void parseDocument(InputStream in, String systemId) throws ParserConfigurationException, SAXNotRecognizedException, SAXNotSupportedException {
+        InputSource source = new InputSource(in);
+        source.setSystemId(systemId);
+        try {
+            this.newSAXParser().parse(source, this);
         } catch (SAXException | ParserConfigurationException | IOException e) {
             Logger.getLogger(RDFParser.class.getName()).log(Level.SEVERE, null, e);
         }
     }
 
+    /**
+     * Parses the catalog and tracks the byte offset of every entry for the
+     * run journal.
+     *
+     * @param in
+     * @param systemId the name of the catalog, used in error messages
+     * @throws ParserConfigurationException
+     * @throws SAXNotRecognizedException
+     * @throws SAXNotSupportedException
+     */
+    public void parseCatalog(CatalogStream in, String systemId) throws ParserConfigurationException, SAXNotRecognizedException, SAXNotSupportedException {
+        this.catalogStream = in;
+        this.metrics.gauge(Metrics.CATALOG_POSITION, in::position);
+        this.parseDocument(in, systemId);
+        // the size is known now, if it was not before
+        final long end = in.position();
+        this.metrics.gauge(Metrics.CATALOG_SIZE, () -> end);
+    }
+
+    private SAXParser newSAXParser() throws ParserConfigurationException, SAXException {
+        return XMLToolkit.saxParser();
+    }
+
     /**
      *
      * @param uri
@@ -150,7 +250,17 @@ public class RDFParser extends DefaultHandler {
         if (qName.equalsIgnoreCase("pgterms:etext")) {
             this.entryFound = true;
             this.entryCounter += 1;
+            this.entryStart = System.nanoTime();
+            if (this.instrumented) {
+                this.metrics.increment(Metrics.CATALOG_ENTRIES);
+            }
             this.curTEIDoc = new TEIDoc();
+            if (this.catalogStream != null) {
+                this.entryOffset = this.catalogStream.position();
+                if (this.pipeline.getJournal() != null) {
+                    this.pipeline.getJournal().parsed(this.entryOffset);
+                }
+            }
             for (int i = 0; i < attributes.getLength(); i++) {
                 String name = attributes.getQName(i);
                 String type = attributes.getType(i);
@@ -163,11 +273,22 @@ public class RDFParser extends DefaultHandler {
                     int pos = 0;
                     if (matcher.find(pos)) {
                         String tmp = matcher.group();
-                        System.out.printf("Num ID: %s\n", tmp);
                         this.curTEIDoc.idN = Integer.parseInt(tmp);
                     }
                 }
             }
+            // ignore the rest of the entry if it is for another shard
+            if (!this.wanted(this.curTEIDoc.idN)) {
+                this.entryFound = false;
+                this.otherShardCounter += 1;
+                if (this.instrumented) {
+                    this.metrics.increment(Metrics.CATALOG_OTHER_SHARD);
+                }
+                return;
+            }
+            if (this.instrumented) {
+                this.entryEvent = new BookEvent(this.curTEIDoc.idN, BookEvent.CATALOG);
+            }
             return;
         }
         if (!this.entryFound) {
@@ -208,6 +329,48 @@ public class RDFParser extends DefaultHandler {
         }
     }
 
+    /**
+     * True if the book of the entry just started is converted in this run,
+     * false for the books of other shards.
+     */
+    protected boolean wanted(int id) {
+        Shard shard = this.pipeline.getShard();
+        return shard == null || shard.owns(id);
+    }
+
+    /**
+     * Handles a complete catalog entry: hands it to the book pipeline,
+     * unless it is not selected or the book was finished in an earlier
+     * run.
+     */
+    protected void entry(TEIDoc doc) {
+        // nothing is fetched for books the filter does not select
+        if (!this.pipeline.isSelected(doc)) {
+            this.filteredCounter += 1;
+            this.metrics.increment(Metrics.CATALOG_FILTERED);
+            this.metrics.record(Metrics.CATALOG_PARSE, this.entryStart);
+            return;
+        }
+        // skip books finished in an earlier run, in delta mode only
+        // if the catalog entry did not change since
+        String fingerprint = doc.fingerprint();
+        if (this.pipeline.isFinished(doc.idN, fingerprint)) {
+            this.skippedCounter += 1;
+            this.metrics.increment(Metrics.BOOKS_SKIPPED);
+            this.metrics.record(Metrics.CATALOG_PARSE, this.entryStart);
+            this.entryEvent.finish(BookEvent.SKIPPED);
+            return;
+        }
+        this.metrics.record(Metrics.CATALOG_PARSE, this.entryStart);
+        this.entryEvent.finish(BookEvent.OK);
+
+        // hand the entry over to the book pipeline, a long wait here
+        // means the pipeline is the bottleneck
+        long start = System.nanoTime();
+        this.pipeline.submit(doc, this.entryOffset, fingerprint);
+        this.metrics.record(Metrics.CATALOG_WAIT, start);
+    }
+
     /**
      *
      * @param ch
@@ -234,152 +397,7 @@ public class RDFParser extends DefaultHandler {
         }
         if (qName.equalsIgnoreCase("pgterms:etext")) {
             this.entryFound = false;
-            // fetch file-specific RDF
-            String fileID = Integer.toString(this.curTEIDoc.idN);
-            // Create the XML-file
-            // TODO this needs to be determined!
-            // if files exist, skip...
-            File rfile = new File(this.outputFolder + File.separator + fileID + File.separator + fileID + ".rdf");
-            File xfile = new File(this.outputFolder + File.separator + fileID + File.separator + fileID + ".xml");
-            if (rfile.exists() && xfile.exists()) {
-                return;
-            }
-            
-            BookRDF myBookRDF = new BookRDF(this.ebookURLStr + fileID + ".rdf", fileID);
-            myBookRDF.process();
-            // copy over the meta info
-            if (myBookRDF.issued != null) {
-            }
-            if (myBookRDF.language != null) {
-                if (this.curTEIDoc.languageCode == null) {
-                    this.curTEIDoc.languageCode = myBookRDF.language;
-                }
-            }
-            if (myBookRDF.publisher != null) {
-                if (this.curTEIDoc.publisher == null) {
-                    this.curTEIDoc.publisher = myBookRDF.publisher;
-                }
-            }
-            if (myBookRDF.rights != null) {
-                this.curTEIDoc.rights.add(myBookRDF.rights);
-            }
-            if (myBookRDF.title != null) {
-                this.curTEIDoc.title.add(myBookRDF.title);
-            }
-
-            HTMLBook myHTMLBook;
-            // get the HTML-file
-            if (myBookRDF.myHM.containsKey(BookRDF.HTML)) {
-                String[] val = (String[]) myBookRDF.myHM.get(BookRDF.HTML);
-                
-                myHTMLBook = new HTMLBook(val[0], this.outputFolder, this.curTEIDoc.idN, val[2]);
-                myHTMLBook.loadHTML();
-                // if there are pre-paragraphs, append them to license in
-                if (myHTMLBook.preParagraphs.size() > 0) {
-                    for (String right : myHTMLBook.preParagraphs) {
-                        this.curTEIDoc.rights.add(right);
-                    }
-                }
-                // the TEIDoc.
-            } else if (myBookRDF.myHM.containsKey(BookRDF.HTML_ZIP)) {
-                // fix this TODO
-                return;
-            } else if (myBookRDF.myHM.containsKey(BookRDF.EPUB)) {
-                // fix this TODO
-                return;
-            } else if (myBookRDF.myHM.containsKey(BookRDF.EPUB_NO_I)) {
-                // fix this TODO
-                return;
-            } else {
-                // no appropriate file, nothing to convert
-                return;
-            }
-            // did not work, there is no DOM, no time for a cleaner solution
-            if (myHTMLBook.mydoc == null) {
-                return;
-            }
-
-            // convert meta-information to TEI XML DOM
-            this.curTEIDoc.genTEIXMLDom();
-            if (this.curTEIDoc.mydom == null) {
-                return;
-            }
-
-            if (this.curTEIDoc.mydom != null) {
-                // get the <text>-Element and move it over to 
-                NodeList nodes = myHTMLBook.mydoc.getElementsByTagName("text");
-                if (nodes.getLength() == 1) {
-                    Node text = nodes.item(0);
-                    // import node
-                    this.curTEIDoc.mydom.getDocumentElement().appendChild(this.curTEIDoc.mydom.importNode(text, true));
-                }
-            }
-            // serialize the XML
-            TransformerFactory transfac = TransformerFactory.newInstance();
-            Transformer trans;
-            StringWriter strw = new StringWriter();
-            StreamResult result = new StreamResult(strw);
-            try {
-                trans = transfac.newTransformer();
-                trans.setOutputProperty(OutputKeys.INDENT, "yes");
-                trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-                trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-                trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-                DOMSource source = new DOMSource(this.curTEIDoc.mydom);
-                trans.transform(source, result);
-            } catch (TransformerConfigurationException e) {
-                Logger.getLogger(RDFParser.class.getName()).log(Level.SEVERE, null, e);
-            } catch (TransformerException e) {
-                Logger.getLogger(RDFParser.class.getName()).log(Level.SEVERE, null, e);
-            }
-
-            // store TEI XML
-            String clean = strw.toString();
-            strw = null;
-            // first clean those refs, there might be a better version, but...
-            // file:///usr/local/share/ProcessProjectGutenberg/39180/
-            clean = clean.replaceAll("file:///.+/" + fileID + "/", "");
-            String xmlOutFN = this.outputFolder + File.separator
-                    + fileID + File.separator
-                    + fileID + ".xml";
-            File file;
-            System.out.println("Saving TEI XML: " + xmlOutFN);
-            file = new File(xmlOutFN);
-            try (FileOutputStream fop = new FileOutputStream(file)) {
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
-                fop.write(clean.getBytes());
-                fop.flush();
-                fop.close();
-            } catch (IOException e) {
-                Logger.getLogger(RDFParser.class.getName()).log(Level.SEVERE, null, e);
-            }
-            System.out.println("Done");
-
-            // determine size and file URL and call
-            file = new File(xmlOutFN);
-            // myBookRDF.addDocumentInfo to generate the new RDF DOM
-            // store the RDF DOM next to the TEI XML file
-            myBookRDF.addDocumentInfo("http://ltl.emich.edu/gutenberg/", file.length(), "utf-8", fileID);
-
-            // Linearize the BookRDF
-            String rdfFN = this.outputFolder + File.separator
-                    + fileID + File.separator
-                    + fileID + ".rdf";
-            System.out.println("Saving RDF for file: " + rdfFN);
-            file = new File(rdfFN);
-            try (FileOutputStream fop = new FileOutputStream(file)) {
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
-                fop.write(myBookRDF.linearize().getBytes());
-                fop.flush();
-                fop.close();
-            } catch (IOException e) {
-                Logger.getLogger(RDFParser.class.getName()).log(Level.SEVERE, null, e);
-            }
-            System.out.println("Done");
+            this.entry(this.curTEIDoc);
         } else if (qName.equalsIgnoreCase("dc:publisher")) {
             this.curTEIDoc.publisher = this.charBuf.toString();
         } else if (qName.equalsIgnoreCase("dc:title")) {
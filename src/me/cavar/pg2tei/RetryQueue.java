@@ -0,0 +1,206 @@
+/*
+ * RetryQueue.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The books that failed for a reason that may go away: a timeout, a reset
+ * connection, a 5xx or 429 response, a conversion that did not finish. They
+ * wait here, each for its own backoff, until the pipeline has worked
+ * through the catalog, and then go through it again, up to a number of
+ * retries. The backoff doubles with every attempt (2, 4, 8 s, ... up to 2
+ * minutes), and only the first half of it is fixed, the rest is random, so
+ * that the books that failed together do not come back together.
+ *
+ * isTransient() tells the failures worth a retry from those that will
+ * happen again: 4xx responses other than 408 and 429, malformed URLs, files
+ * missing from a local mirror and errors in the code.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class RetryQueue {
+
+    /**
+     * The default number of retries of a book.
+     */
+    public static final int DEFAULT_RETRIES = 3;
+    static final long BASE_DELAY = TimeUnit.SECONDS.toNanos(2);
+    static final long MAX_DELAY = TimeUnit.MINUTES.toNanos(2);
+
+    /**
+     * A book waiting for its retry.
+     */
+    static class Retry implements Delayed {
+
+        final TEIDoc doc;
+        final long due;
+
+        Retry(TEIDoc doc, long due) {
+            this.doc = doc;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(this.getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+    private final int maxRetries;
+    private final DelayQueue<Retry> queue;
+    /**
+     * The retries so far per book ID.
+     */
+    private final ConcurrentHashMap<Integer, Integer> retries;
+
+    /**
+     * Constructor.
+     *
+     * @param maxRetries the number of retries of a book, 0 for none
+     */
+    public RetryQueue(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("The number of retries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+        this.queue = new DelayQueue<>();
+        this.retries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Puts a book on the queue, if it has retries left.
+     *
+     * @return false if the book is out of retries
+     */
+    public boolean defer(TEIDoc doc) {
+        int attempt = this.retries.merge(doc.idN, 1, Integer::sum);
+        if (attempt > this.maxRetries) {
+            return false;
+        }
+        this.queue.add(new Retry(doc, System.nanoTime() + backoff(attempt)));
+        return true;
+    }
+
+    /**
+     * Takes the next book whose backoff is over, waiting at most the
+     * timeout.
+     *
+     * @return the catalog entry of the book, null if none is due in time
+     */
+    public TEIDoc poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Retry r = this.queue.poll(timeout, unit);
+        return r == null ? null : r.doc;
+    }
+
+    public boolean isEmpty() {
+        return this.queue.isEmpty();
+    }
+
+    public int size() {
+        return this.queue.size();
+    }
+
+    /**
+     * The backoff before a retry: half of BASE_DELAY * 2^(attempt - 1),
+     * at most MAX_DELAY, plus up to as much again at random.
+     */
+    static long backoff(int attempt) {
+        long delay = MAX_DELAY;
+        if (attempt < 32) {
+            delay = Math.min(MAX_DELAY, BASE_DELAY << (attempt - 1));
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * True if a failure may go away when the book is tried again: network
+     * errors and timeouts, 408, 429 and 5xx responses, but not missing
+     * files. A null cause, i.e. a step that just did not work, counts as
+     * transient.
+     */
+    public static boolean isTransient(Throwable e) {
+        e = unwrap(e);
+        if (e == null) {
+            return true;
+        }
+        if (e instanceof HTTPClient.StatusException) {
+            int status = ((HTTPClient.StatusException) e).statusCode;
+            return status == 408 || status == 429 || status >= 500;
+        }
+        if (e instanceof TimeoutException) {
+            // a book past its fetch deadline
+            return true;
+        }
+        return e instanceof IOException && !(e instanceof MalformedURLException)
+                && !(e instanceof NoSuchFileException) && !(e instanceof FileNotFoundException);
+    }
+
+    /**
+     * True if the server said there is no such file (4xx other than 408
+     * and 429), which will not change for a while.
+     */
+    public static boolean isGone(Throwable e) {
+        e = unwrap(e);
+        return e instanceof HTTPClient.StatusException && !isTransient(e);
+    }
+
+    /**
+     * A short name of a failure for the journal and the metrics, e.g.
+     * http-404 or HttpTimeoutException.
+     */
+    public static String describe(Throwable e) {
+        e = unwrap(e);
+        if (e instanceof HTTPClient.StatusException) {
+            return "http-" + ((HTTPClient.StatusException) e).statusCode;
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException
+                || e instanceof UncheckedIOException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
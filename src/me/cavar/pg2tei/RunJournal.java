@@ -0,0 +1,363 @@
+/*
+ * RunJournal.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * An append-only journal of the state of every book in a run: fetched,
+ * converted, written (with the SHA-256 of the output files), skipped,
+ * waiting for a retry or failed. Every record also carries the catalog
+ * byte offset before which all books are finished. A restart loads the
+ * journal into memory, skips finished books with a single lookup, and
+ * resumes the catalog parse near that offset (see CatalogStream).
+ *
+ * A book is only recorded as written after its files were renamed into
+ * place, so a crash during a write never leaves a book marked done. A
+ * record cut off by a crash is ignored when the journal is loaded.
+ *
+ * Records also carry the fingerprint of the catalog entry of the book (see
+ * TEIDoc.fingerprint()), so that a delta run can tell finished books whose
+ * entry changed in a newer catalog from those it can skip.
+ *
+ * At the end of a run the final state of every book is written to the
+ * manifest, pg2tei.manifest, one line per book with the path of the TEI
+ * file and its checksums. The manifests of the shards of a run are
+ * combined with Shard.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class RunJournal {
+
+    public static final String FETCHED = "FETCHED";
+    public static final String CONVERTED = "CONVERTED";
+    public static final String WRITTEN = "WRITTEN";
+    public static final String SKIPPED = "SKIPPED";
+    public static final String FAILED = "FAILED";
+    public static final String RETRY = "RETRY";
+    /**
+     * The file name of the manifest.
+     */
+    public static final String MANIFEST = "pg2tei.manifest";
+    /**
+     * Record type for the identity of the catalog the offsets refer to.
+     */
+    private static final String CATALOG = "CATALOG";
+    /**
+     * The journal file.
+     */
+    private File journalFile;
+    /**
+     * Last recorded state per book ID.
+     */
+    private ConcurrentHashMap<Integer, String> states;
+    /**
+     * Last recorded detail (checksums or failure cause) per book ID.
+     */
+    private ConcurrentHashMap<Integer, String> details;
+    /**
+     * Catalog entry fingerprint per book ID.
+     */
+    private ConcurrentHashMap<Integer, String> fingerprints;
+    /**
+     * The catalog identity of the loaded offsets.
+     */
+    private String catalog;
+    /**
+     * The largest finished catalog offset in the loaded journal.
+     */
+    private long loadedOffset;
+    /**
+     * Catalog offsets of the books in the pipeline, by offset.
+     */
+    private TreeMap<Long, Integer> inFlight;
+    /**
+     * Catalog offsets of the books in the pipeline, by ID.
+     */
+    private HashMap<Integer, Long> inFlightIDs;
+    /**
+     * Offset of the catalog entry the parser is at.
+     */
+    private long parsed;
+    private FileChannel out;
+
+    /**
+     * Constructor. Loads and compacts an existing journal.
+     *
+     * @param journalFile
+     * @throws IOException
+     */
+    public RunJournal(File journalFile) throws IOException {
+        this.journalFile = journalFile;
+        this.states = new ConcurrentHashMap<>();
+        this.details = new ConcurrentHashMap<>();
+        this.fingerprints = new ConcurrentHashMap<>();
+        this.inFlight = new TreeMap<>();
+        this.inFlightIDs = new HashMap<>();
+        this.loadedOffset = 0L;
+        this.parsed = 0L;
+        if (journalFile.exists()) {
+            this.load();
+            this.compact();
+        }
+        if (journalFile.getParentFile() != null) {
+            journalFile.getParentFile().mkdirs();
+        }
+        this.out = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(this.journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                if (f[0].equals(CATALOG) && f.length == 3) {
+                    if (!f[1].equals(this.catalog)) {
+                        this.catalog = f[1];
+                        this.loadedOffset = 0L;
+                    }
+                    continue;
+                }
+                // state, ID, detail, offset, fingerprint, end marker
+                if (f.length != 6 || !f[5].equals(".")) {
+                    // cut off by a crash
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(f[1]);
+                    long offset = Long.parseLong(f[3]);
+                    this.states.put(id, f[0]);
+                    this.details.put(id, f[2]);
+                    this.fingerprints.put(id, f[4]);
+                    this.loadedOffset = Math.max(this.loadedOffset, offset);
+                } catch (NumberFormatException e) {
+                    Logger.getLogger(RunJournal.class.getName()).log(Level.WARNING, "Bad journal record: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with one record per book.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(this.journalFile.getPath() + ".tmp");
+        StringBuilder strb = new StringBuilder();
+        if (this.catalog != null) {
+            strb.append(CATALOG).append('\t').append(this.catalog).append("\t.\n");
+        }
+        for (Map.Entry<Integer, String> e : this.states.entrySet()) {
+            strb.append(e.getValue()).append('\t').append(e.getKey()).append('\t')
+                    .append(this.details.get(e.getKey())).append('\t').append(this.loadedOffset).append('\t')
+                    .append(this.fingerprints.get(e.getKey())).append("\t.\n");
+        }
+        try (FileChannel tmpOut = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(strb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                tmpOut.write(buf);
+            }
+            tmpOut.force(true);
+        }
+        Files.move(tmp.toPath(), this.journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sets the identity (e.g. size and modification time) of the catalog
+     * the offsets of this run refer to.
+     *
+     * @return the catalog offset to resume from, 0 if the journal is for
+     * another catalog
+     */
+    public synchronized long startCatalog(String identity) throws IOException {
+        long resume = identity.equals(this.catalog) ? this.loadedOffset : 0L;
+        if (!identity.equals(this.catalog)) {
+            this.catalog = identity;
+            this.append(CATALOG + "\t" + identity + "\t.\n", false);
+        }
+        return resume;
+    }
+
+    /**
+     * True if the book was written or skipped in an earlier run.
+     */
+    public boolean isDone(int id) {
+        String state = this.states.get(id);
+        return WRITTEN.equals(state) || SKIPPED.equals(state);
+    }
+
+    /**
+     * True if the book was written or skipped in an earlier run, and its
+     * catalog entry had the same fingerprint then.
+     */
+    public boolean isUnchanged(int id, String fingerprint) {
+        return this.isDone(id) && fingerprint.equals(this.fingerprints.get(id));
+    }
+
+    /**
+     * Returns the last recorded state of a book, or null.
+     */
+    public String getState(int id) {
+        return this.states.get(id);
+    }
+
+    /**
+     * Notes the catalog offset of the entry the parser is at.
+     */
+    public synchronized void parsed(long offset) {
+        this.parsed = offset;
+    }
+
+    /**
+     * Notes that a book entered the pipeline.
+     *
+     * @param id
+     * @param offset catalog offset of the entry
+     * @param fingerprint fingerprint of the catalog entry
+     */
+    public synchronized void begin(int id, long offset, String fingerprint) {
+        this.fingerprints.put(id, fingerprint);
+        this.inFlight.put(offset, id);
+        this.inFlightIDs.put(id, offset);
+    }
+
+    /**
+     * Records an intermediate state of a book.
+     */
+    public void record(int id, String state) {
+        this.record(id, state, "-", false);
+    }
+
+    /**
+     * Records an intermediate state of a book with a detail, e.g. RETRY
+     * with the failure cause.
+     */
+    public void record(int id, String state, String detail) {
+        this.record(id, state, detail, false);
+    }
+
+    /**
+     * Records a final state of a book and removes it from the pipeline.
+     * WRITTEN records are forced to disk.
+     *
+     * @param id
+     * @param state WRITTEN, SKIPPED or FAILED
+     * @param detail checksums or the failure cause
+     */
+    public void finish(int id, String state, String detail) {
+        synchronized (this) {
+            Long offset = this.inFlightIDs.remove(id);
+            if (offset != null) {
+                this.inFlight.remove(offset);
+            }
+        }
+        this.record(id, state, detail, WRITTEN.equals(state));
+    }
+
+    private void record(int id, String state, String detail, boolean force) {
+        this.states.put(id, state);
+        this.details.put(id, detail);
+        String clean = detail.replace('\t', ' ').replace('\n', ' ');
+        try {
+            synchronized (this) {
+                long low = this.inFlight.isEmpty() ? this.parsed : this.inFlight.firstKey();
+                this.append(state + "\t" + id + "\t" + clean + "\t" + low + "\t"
+                        + this.fingerprints.getOrDefault(id, "-") + "\t.\n", force);
+            }
+        } catch (IOException e) {
+            Logger.getLogger(RunJournal.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+
+    private void append(String line, boolean force) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            this.out.write(buf);
+        }
+        if (force) {
+            this.out.force(false);
+        }
+    }
+
+    /**
+     * Writes the final state of every book by ID to the manifest: the ID,
+     * the state, the path of the TEI file relative to the output folder
+     * ("-" if there is none) and the checksums or the failure cause. The
+     * first line names the shard.
+     *
+     * @param file
+     * @param shard the shard of the run, null for all books
+     * @throws IOException
+     */
+    public void writeManifest(File file, Shard shard) throws IOException {
+        StringBuilder strb = new StringBuilder(Shard.MANIFEST_HEADER)
+                .append(shard == null ? "0/1" : shard.toString()).append('\n');
+        for (Map.Entry<Integer, String> e : new TreeMap<>(this.states).entrySet()) {
+            String state = e.getValue();
+            if (!WRITTEN.equals(state) && !SKIPPED.equals(state) && !FAILED.equals(state)) {
+                continue;
+            }
+            int id = e.getKey();
+            strb.append(id).append('\t').append(state).append('\t')
+                    .append(WRITTEN.equals(state) ? id + "/" + id + ".xml" : "-").append('\t')
+                    .append(this.details.get(id)).append('\n');
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), strb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forces the journal to disk and closes it.
+     */
+    public synchronized void close() {
+        try {
+            this.out.force(true);
+            this.out.close();
+        } catch (IOException e) {
+            Logger.getLogger(RunJournal.class.getName()).log(Level.SEVERE, null, e);
+        }
+    }
+}
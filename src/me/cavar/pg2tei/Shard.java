@@ -0,0 +1,276 @@
+/*
+ * Shard.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * One of N parts of a conversion, for running it on several machines or
+ * processes that share nothing but the catalog. Every book belongs to
+ * exactly one shard, by a hash of its ID that is the same on every JVM, so
+ * the shards need no coordination: each parses the whole catalog, ignores
+ * the books of the others, and has its own output folder, journal and
+ * metrics.
+ *
+ * At the end of a run every shard writes the manifest of its books
+ * (pg2tei.manifest, see RunJournal.writeManifest()). The manifests of all
+ * shards are combined into one with
+ *
+ *   java -cp pg2tei.jar me.cavar.pg2tei.Shard -o all.manifest out/shard-*
+ *
+ * which also reports missing shards and books claimed by two shards.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class Shard {
+
+    /**
+     * The first line of a manifest, followed by the shard as i/N.
+     */
+    public static final String MANIFEST_HEADER = "# pg2tei manifest ";
+    /**
+     * The number of this shard, from 0 to count - 1.
+     */
+    public final int index;
+    /**
+     * The number of shards.
+     */
+    public final int count;
+
+    /**
+     * Constructor.
+     *
+     * @param index 0 to count - 1
+     * @param count
+     */
+    public Shard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard must be i/N with 0 <= i < N: " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parses a shard given as i/N, e.g. 0/4 to 3/4.
+     *
+     * @throws IllegalArgumentException
+     */
+    public static Shard parse(String spec) {
+        String[] parts = spec.split("/", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Shard must be i/N: " + spec);
+        }
+        try {
+            return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Shard must be i/N: " + spec);
+        }
+    }
+
+    /**
+     * True if the book belongs to this shard.
+     */
+    public boolean owns(int id) {
+        return Shard.of(id, this.count) == this.index;
+    }
+
+    /**
+     * The shard of a book. The ID is mixed first (the finalizer of
+     * MurmurHash3), so that runs of neighbouring IDs, e.g. of large
+     * collections added together, spread over all shards.
+     */
+    public static int of(int id, int count) {
+        int h = id;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, count);
+    }
+
+    /**
+     * The name of the output folder of this shard, e.g. shard-0-of-4.
+     */
+    public String getName() {
+        return "shard-" + this.index + "-of-" + this.count;
+    }
+
+    /**
+     * The file of this shard for a file given for the whole run, e.g.
+     * run.shard-0-of-4.prom for run.prom.
+     */
+    public File file(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        name = dot > 0 ? name.substring(0, dot) + "." + this.getName() + name.substring(dot)
+                : name + "." + this.getName();
+        return new File(file.getParentFile(), name);
+    }
+
+    @Override
+    public String toString() {
+        return this.index + "/" + this.count;
+    }
+
+    /**
+     * Combines the manifests of the shards into one, with the paths
+     * relative to the new manifest.
+     *
+     * @param manifests pg2tei.manifest files or the shard folders
+     * @param out the combined manifest
+     * @return the number of problems found: missing shards, books in two
+     * shards or books of the wrong shard
+     * @throws IOException
+     */
+    public static int mergeManifests(List<File> manifests, File out) throws IOException {
+        TreeMap<Integer, String> books = new TreeMap<>();
+        TreeSet<Integer> seen = new TreeSet<>();
+        int count = 0;
+        int problems = 0;
+        Path base = out.getAbsoluteFile().getParentFile().toPath();
+        for (File f : manifests) {
+            File manifest = f.isDirectory() ? new File(f, RunJournal.MANIFEST) : f;
+            Path dir = manifest.getAbsoluteFile().getParentFile().toPath();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+                String line = in.readLine();
+                if (line == null || !line.startsWith(MANIFEST_HEADER)) {
+                    throw new IOException("Not a manifest: " + manifest);
+                }
+                Shard shard = Shard.parse(line.substring(MANIFEST_HEADER.length()));
+                if (count == 0) {
+                    count = shard.count;
+                } else if (shard.count != count) {
+                    System.out.println("Shard " + shard + " of " + manifest + " is not one of " + count);
+                    problems += 1;
+                    continue;
+                }
+                if (!seen.add(shard.index)) {
+                    System.out.println("Shard " + shard + " given twice: " + manifest);
+                    problems += 1;
+                    continue;
+                }
+                while ((line = in.readLine()) != null) {
+                    // ID, state, path, detail
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 4) {
+                        continue;
+                    }
+                    int id = Integer.parseInt(fields[0]);
+                    if (!shard.owns(id)) {
+                        System.out.println("Book " + id + " is not in shard " + shard + ": " + manifest);
+                        problems += 1;
+                    }
+                    String path = fields[2].equals("-") ? "-"
+                            : base.relativize(dir.resolve(fields[2])).toString().replace(File.separatorChar, '/');
+                    if (books.put(id, fields[1] + "\t" + path + "\t" + fields[3]) != null) {
+                        System.out.println("Book " + id + " is in two shards");
+                        problems += 1;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (!seen.contains(i)) {
+                System.out.println("Missing shard " + i + "/" + count);
+                problems += 1;
+            }
+        }
+        File tmp = new File(out.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+            w.write(MANIFEST_HEADER + "0/1\n");
+            for (Map.Entry<Integer, String> e : books.entrySet()) {
+                w.write(e.getKey() + "\t" + e.getValue() + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("%d books of %d shards in %s%n", books.size(), seen.size(), out);
+        return problems;
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("o", true, "The combined manifest (default: pg2tei.manifest)");
+        options.addOption("h", false, "Help");
+        File out = new File(RunJournal.MANIFEST);
+        String[] files;
+        CommandLineParser parser = new DefaultParser();
+        try {
+            CommandLine cmd = parser.parse(options, args);
+            files = cmd.getArgs();
+            if (cmd.hasOption("h") || files.length == 0) {
+                System.out.println("Combines the manifests of the shards of a run: "
+                        + "Shard [-o all.manifest] shard-folder|manifest ...");
+                return;
+            }
+            if (cmd.hasOption("o")) {
+                out = new File(cmd.getOptionValue("o"));
+            }
+        } catch (ParseException ex) {
+            System.out.println("Command line argument error:" + ex.getMessage());
+            return;
+        }
+        ArrayList<File> manifests = new ArrayList<>();
+        for (String f : files) {
+            manifests.add(new File(f));
+        }
+        try {
+            if (Shard.mergeManifests(manifests, out) > 0) {
+                System.exit(1);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.getLogger(Shard.class.getName()).log(Level.SEVERE, null, e);
+            System.exit(1);
+        }
+    }
+}
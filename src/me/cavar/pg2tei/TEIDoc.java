@@ -29,30 +29,22 @@
  */
 package me.cavar.pg2tei;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 /**
  *
@@ -60,6 +52,12 @@ import org.w3c.dom.Element;
  */
 public class TEIDoc {
 
+    /**
+     * Splits the life years off the creator string.
+     */
+    private static final Pattern NAME_SPLIT_RE =
+            Pattern.compile("(?<name>[\\w,\\s]+)(?<year>,\\s+\\d\\d\\d\\d\\s?-+\\s?\\d\\d\\d\\d)");
+
     /**
      * The ID string (number) of the book.
      */
@@ -128,10 +126,6 @@ public class TEIDoc {
      * Project Gutenberg Number ID.
      */
     public int idN;
-    /**
-     * DOM representation.
-     */
-    public Document mydom;
 
     /**
      * Simple constructor.
@@ -145,332 +139,203 @@ public class TEIDoc {
     }
 
     /**
-     *
-     * @param doc
-     * @return
+     * Returns a copy with lists of its own, for a conversion that adds to
+     * the fields.
      */
-    public String getTEIXMLString(Document doc) {
-        TransformerFactory transfac = TransformerFactory.newInstance();
-        Transformer trans;
-        StringWriter strw = new StringWriter();
-        StreamResult result = new StreamResult(strw);
-        try {
-            trans = transfac.newTransformer();
-            trans.setOutputProperty(OutputKeys.INDENT, "yes");
-            trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            // create string from xml tree
-            DOMSource source = new DOMSource(doc);
-            trans.transform(source, result);
-        } catch (TransformerConfigurationException ex) {
-            Logger.getLogger(TEIDoc.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (TransformerException ex) {
-            Logger.getLogger(TEIDoc.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return strw.toString();
+    public TEIDoc copy() {
+        TEIDoc doc = new TEIDoc();
+        doc.idN = this.idN;
+        doc.id = this.id;
+        doc.publisher = this.publisher;
+        doc.title.addAll(this.title);
+        doc.creator = this.creator;
+        doc.friendlyTitle = this.friendlyTitle;
+        doc.languageISO = this.languageISO;
+        doc.languageCode = this.languageCode;
+        doc.rights.addAll(this.rights);
+        doc.subject.addAll(this.subject);
+        doc.createdW3CDTF = this.createdW3CDTF;
+        doc.subjectHeadingsLCC.addAll(this.subjectHeadingsLCC);
+        doc.classificationLCC = this.classificationLCC;
+        doc.projGCategory = this.projGCategory;
+        doc.description = this.description;
+        doc.contributors.addAll(this.contributors);
+        doc.toc = this.toc;
+        return doc;
     }
 
     /**
+     * Returns a stable fingerprint (SHA-256, hex) of the meta-information
+     * collected from the catalog entry. Call it before the book RDF adds to
+     * the fields.
      *
-     * @return Document
-     * @throws ParserConfigurationException
+     * @return the fingerprint
      */
-    public void genTEIXMLDom() {
+    public String fingerprint() {
+        MessageDigest md;
         try {
-            DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = dbfac.newDocumentBuilder();
-            this.mydom = docBuilder.newDocument();
-
-            // TEI root element
-            Element root = this.mydom.createElement("TEI");
-            root.setAttribute("xmlns", "http://www.tei-c.org/ns/1.0");
-            this.mydom.appendChild(root);
-            this.mydom.insertBefore(this.mydom.createProcessingInstruction("xml-model",
-                    "href=\"http://www.tei-c.org/release/xml/tei/custom/schema/relaxng/teilite.rng\""
-                    + " schematypens=\"http://relaxng.org/ns/structure/1.0\""),
-                    root);
-
-            // create teiHeader section
-            Element teiHeader = this.mydom.createElement("teiHeader");
-            root.appendChild(teiHeader);
-
-            // create fileDescription section
-            Element fileDesc = this.mydom.createElement("fileDesc");
-            teiHeader.appendChild(fileDesc);
-
-            // create titleStmt
-            Element titleStmt = this.mydom.createElement("titleStmt");
-            // check for multi-line titles
-            Element ltmp;
-            Element tmp = this.mydom.createElement("title");
-            tmp.setAttribute("type", "full");
-            int numTitles = this.title.size();
-            if (numTitles > 0) {
-                String tmpStr = this.title.get(numTitles - 1);
-                if (tmpStr.contains("\n")) {
-                    // make multiple title statements
-                    String[] subStrs = tmpStr.split("\n");
-
-                    // the first one is main
-                    ltmp = this.mydom.createElement("title");
-                    ltmp.setAttribute("type", "main");
-                    ltmp.appendChild(this.mydom.createTextNode(subStrs[0]));
-                    tmp.appendChild(ltmp);
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digestField(md, this.id);
+        digestField(md, this.publisher);
+        digestList(md, this.title);
+        digestField(md, this.creator);
+        digestField(md, this.friendlyTitle);
+        digestField(md, this.languageISO);
+        digestField(md, this.languageCode);
+        digestList(md, this.rights);
+        digestList(md, this.subject);
+        digestField(md, this.createdW3CDTF);
+        digestList(md, this.subjectHeadingsLCC);
+        digestField(md, this.classificationLCC);
+        digestField(md, this.projGCategory);
+        digestField(md, this.description);
+        digestList(md, this.contributors);
+        digestField(md, this.toc);
+        return Fetcher.toHex(md.digest());
+    }
 
-                    // TODO
-                    // all others are sub should not be... but...
-                    for (int i = 1; i < subStrs.length; i++) {
-                        ltmp = this.mydom.createElement("title");
-                        ltmp.setAttribute("type", "sub");
-                        ltmp.appendChild(this.mydom.createTextNode(subStrs[i]));
-                        tmp.appendChild(ltmp);
-                    }
-                    // titleStmt.appendChild(tmp);
-                } else { // make single title statement
-                    ltmp = this.mydom.createElement("title");
-                    ltmp.setAttribute("type", "main");
-                    ltmp.appendChild(this.mydom.createTextNode(this.title.get(numTitles - 1)));
-                    tmp.appendChild(ltmp);
-                }
-            }
-            ltmp = this.mydom.createElement("title");
-            ltmp.setAttribute("type", "alt");
-            ltmp.appendChild(this.mydom.createTextNode(this.friendlyTitle));
-            tmp.appendChild(ltmp);
-            titleStmt.appendChild(tmp);
+    /**
+     * Adds a field to the digest; null and "" differ, and the length
+     * prefix keeps adjacent fields apart.
+     */
+    private static void digestField(MessageDigest md, String val) {
+        if (val == null) {
+            md.update((byte) 0);
+            return;
+        }
+        byte[] b = val.getBytes(StandardCharsets.UTF_8);
+        md.update((byte) 1);
+        md.update(ByteBuffer.allocate(4).putInt(b.length).array());
+        md.update(b);
+    }
 
-            // add author information
-            tmp = this.mydom.createElement("author");
-            if (this.creator != null) {
-                // split year of from author string
-                Pattern nameSplitRE = Pattern.compile("(?<name>[\\w,\\s]+)(?<year>,\\s+\\d\\d\\d\\d\\s?-+\\s?\\d\\d\\d\\d)");
-                Matcher matcher = nameSplitRE.matcher(this.creator);
-                if (matcher.find(0)) {
-                    String tmpN = matcher.group("name");
-                    //String tmpY = matcher.group("year");
-                    tmp.appendChild(this.mydom.createTextNode(tmpN));
-                } else {
-                    tmp.appendChild(this.mydom.createTextNode(this.creator));
-                }
+    private static void digestList(MessageDigest md, ArrayList<String> vals) {
+        md.update(ByteBuffer.allocate(4).putInt(vals == null ? -1 : vals.size()).array());
+        if (vals != null) {
+            for (String val : vals) {
+                digestField(md, val);
             }
-            titleStmt.appendChild(tmp);
-            fileDesc.appendChild(titleStmt);
+        }
+    }
 
-            // publicationStmt in fileDesc
-            Element publicationStmt = this.mydom.createElement("publicationStmt");
-            tmp = this.mydom.createElement("publisher");
-            if (this.publisher != null) {
-                tmp.appendChild(this.mydom.createTextNode(this.publisher));
-            }
-            publicationStmt.appendChild(tmp);
-            // date
-            tmp = this.mydom.createElement("date");
-            if (this.createdW3CDTF != null) {
-                tmp.appendChild(this.mydom.createTextNode(this.createdW3CDTF));
-            }
-            publicationStmt.appendChild(tmp);
-            // availability
-            tmp = this.mydom.createElement("availability");
-            ltmp = this.mydom.createElement("licence");
-            for (String right : this.rights) {
-                Element ptmp = this.mydom.createElement("p");
-                ptmp.appendChild(this.mydom.createTextNode(right));
-                ltmp.appendChild(ptmp);
-            }
-            tmp.appendChild(ltmp);
-            publicationStmt.appendChild(tmp);
-            // distributor
-            tmp = this.mydom.createElement("distributor");
-            // tmp.appendChild(doc.createTextNode("Distributed in the TEI XML format by:"));
-            Element ptmp;
-            ptmp = this.mydom.createElement("name");
-            ptmp.setAttribute("xml:id", "DC");
-            ptmp.appendChild(this.mydom.createTextNode("Damir Cavar"));
-            tmp.appendChild(ptmp);
-            ptmp = this.mydom.createElement("name");
-            ptmp.setAttribute("xml:id", "LTL");
-            ptmp.appendChild(this.mydom.createTextNode("Language Technology Lab"));
-            tmp.appendChild(ptmp);
-            ptmp = this.mydom.createElement("name");
-            ptmp.setAttribute("xml:id", "ILIT");
-            ptmp.appendChild(this.mydom.createTextNode("Institute for Language Information and Technology"));
-            tmp.appendChild(ptmp);
-            ptmp = this.mydom.createElement("name");
-            ptmp.setAttribute("xml:id", "EMU");
-            ptmp.appendChild(this.mydom.createTextNode("Eastern Michigan University"));
-            tmp.appendChild(ptmp);
+    /**
+     * Writes the meta-information collected from the catalog entry, the
+     * fields of fingerprint(), e.g. to the CatalogIndex.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(this.idN);
+        writeField(out, this.id);
+        writeField(out, this.publisher);
+        writeList(out, this.title);
+        writeField(out, this.creator);
+        writeField(out, this.friendlyTitle);
+        writeField(out, this.languageISO);
+        writeField(out, this.languageCode);
+        writeList(out, this.rights);
+        writeList(out, this.subject);
+        writeField(out, this.createdW3CDTF);
+        writeList(out, this.subjectHeadingsLCC);
+        writeField(out, this.classificationLCC);
+        writeField(out, this.projGCategory);
+        writeField(out, this.description);
+        writeList(out, this.contributors);
+        writeField(out, this.toc);
+    }
 
-            ltmp = this.mydom.createElement("address");
-            // add address info
-            ptmp = this.mydom.createElement("addrLine");
-            ptmp.appendChild(this.mydom.createTextNode("2000 E. Huron River Dr., Suite 104"));
-            ltmp.appendChild(ptmp);
-            ptmp = this.mydom.createElement("addrLine");
-            ptmp.appendChild(this.mydom.createTextNode("Ypsilanti, MI 48197"));
-            ltmp.appendChild(ptmp);
-            ptmp = this.mydom.createElement("addrLine");
-            ptmp.appendChild(this.mydom.createTextNode("USA"));
-            ltmp.appendChild(ptmp);
-            tmp.appendChild(ltmp);
-            publicationStmt.appendChild(tmp);
-            // idno
-            tmp = this.mydom.createElement("idno");
-            if (this.id != null) {
-                tmp.appendChild(this.mydom.createTextNode(Integer.toString(this.idN)));
-            }
-            publicationStmt.appendChild(tmp);
-            fileDesc.appendChild(publicationStmt);
+    /**
+     * Reads what write() wrote.
+     */
+    public static TEIDoc read(DataInput in) throws IOException {
+        TEIDoc doc = new TEIDoc();
+        doc.idN = in.readInt();
+        doc.id = readField(in);
+        doc.publisher = readField(in);
+        readList(in, doc.title);
+        doc.creator = readField(in);
+        doc.friendlyTitle = readField(in);
+        doc.languageISO = readField(in);
+        doc.languageCode = readField(in);
+        readList(in, doc.rights);
+        readList(in, doc.subject);
+        doc.createdW3CDTF = readField(in);
+        readList(in, doc.subjectHeadingsLCC);
+        doc.classificationLCC = readField(in);
+        doc.projGCategory = readField(in);
+        doc.description = readField(in);
+        readList(in, doc.contributors);
+        doc.toc = readField(in);
+        return doc;
+    }
 
-            // --------------------------------------------
-            // sourceDesc in fileDesc
-            Element sourceDesc = this.mydom.createElement("sourceDesc");
-            // contains a <p> with a description of the source
-            tmp = this.mydom.createElement("p");
-            tmp.appendChild(this.mydom.createTextNode("This text was automatically "
-                    + "converted from the corresponding HTML formated text found in the "
-                    + "Project Gutenberg (http://www.gutenberg.org/) collection."));
-            sourceDesc.appendChild(tmp);
-            if (this.creator != null) {
-                tmp = this.mydom.createElement("p");
-                tmp.appendChild(this.mydom.createTextNode("Creator: " + this.creator));
-                sourceDesc.appendChild(tmp);
-            }
-            if (this.description != null) {
-                tmp = this.mydom.createElement("p");
-                tmp.appendChild(this.mydom.createTextNode(this.description));
-                sourceDesc.appendChild(tmp);
-            }
-            fileDesc.appendChild(sourceDesc);
+    /**
+     * Writes a field as length and UTF-8 bytes, -1 for null (writeUTF()
+     * stops at 64K).
+     */
+    private static void writeField(DataOutput out, String val) throws IOException {
+        if (val == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = val.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
 
+    private static String readField(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
 
-            // --------------------------------------------
-            // encodingDesc in teiHeader
-            Element encodingDesc = this.mydom.createElement("encodingDesc");
-            // contains a appInfo with a description of the source
-            tmp = this.mydom.createElement("appInfo");
-            // appInfo contains application
-            ltmp = this.mydom.createElement("application");
-            ltmp.setAttribute("ident", "gutenberg2tei");
-            ltmp.setAttribute("version", "1.0");
-            ptmp = this.mydom.createElement("desc");
-            ptmp.appendChild(this.mydom.createTextNode("Conversion tool using the RDF file catalog and meta-information "
-                    + "and conversion of HTML to TEI XML."));
-            ltmp.appendChild(ptmp);
-            tmp.appendChild(ltmp);
-            encodingDesc.appendChild(tmp);
-            // contains projectDesc
-            tmp = this.mydom.createElement("projectDesc");
-            ltmp = this.mydom.createElement("p");
-            ltmp.appendChild(this.mydom.createTextNode("The conversion of the Project Gutenberg "
-                    + "texts to the TEI XML format started as an independent project at ILIT, EMU."));
-            tmp.appendChild(ltmp);
-            encodingDesc.appendChild(tmp);
-            // contains samplingDecl
-            tmp = this.mydom.createElement("samplingDecl");
-            ltmp = this.mydom.createElement("p");
-            ltmp.appendChild(this.mydom.createTextNode(""));
-            tmp.appendChild(ltmp);
-            encodingDesc.appendChild(tmp);
-            // classDecl
-            tmp = this.mydom.createElement("classDecl");
-            ltmp = this.mydom.createElement("taxonomy");
-            ltmp.setAttribute("xml:id", "lcsh");
-            ptmp = this.mydom.createElement("bibl");
-            ptmp.appendChild(this.mydom.createTextNode("Library of Congress Subject Headings"));
-            ltmp.appendChild(ptmp);
-            tmp.appendChild(ltmp);
-            ltmp = this.mydom.createElement("taxonomy");
-            ltmp.setAttribute("xml:id", "lc");
-            ptmp = this.mydom.createElement("bibl");
-            ptmp.appendChild(this.mydom.createTextNode("Library of Congress Classification"));
-            ltmp.appendChild(ptmp);
-            tmp.appendChild(ltmp);
-            ltmp = this.mydom.createElement("taxonomy");
-            ltmp.setAttribute("xml:id", "pg");
-            ptmp = this.mydom.createElement("bibl");
-            ptmp.appendChild(this.mydom.createTextNode("Project Gutenberg Category"));
-            ltmp.appendChild(ptmp);
-            tmp.appendChild(ltmp);
-            encodingDesc.appendChild(tmp);
+    private static void writeList(DataOutput out, ArrayList<String> vals) throws IOException {
+        out.writeInt(vals.size());
+        for (String val : vals) {
+            writeField(out, val);
+        }
+    }
 
-            teiHeader.appendChild(encodingDesc);
+    private static void readList(DataInput in, ArrayList<String> vals) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            vals.add(readField(in));
+        }
+    }
 
-            // --------------------------------------------
-            // profileDesc in teiHeader
-            Element profileDesc = this.mydom.createElement("profileDesc");
-            // contains creation contains date
-            tmp = this.mydom.createElement("creation");
-            ltmp = this.mydom.createElement("date");
-            ltmp.appendChild(this.mydom.createTextNode(this.createdW3CDTF));
-            tmp.appendChild(ltmp);
-            // add the author name here too, although not correct...
-            //ltmp = doc.createElement("name");
-            //ltmp.appendChild(doc.createTextNode(this.creator));
-            //tmp.appendChild(ltmp);
-            profileDesc.appendChild(tmp);
-            // contains langUsage
-            if (this.languageCode != null) {
-                tmp = this.mydom.createElement("langUsage");
-                ltmp = this.mydom.createElement("language");
-                ltmp.setAttribute("ident", this.languageCode);
-                Locale aLocale = Locale.forLanguageTag(this.languageCode);
-                ltmp.appendChild(this.mydom.createTextNode(aLocale.getDisplayLanguage() + "."));
-                tmp.appendChild(ltmp);
-                profileDesc.appendChild(tmp);
-            }
-            // textClass
-            tmp = this.mydom.createElement("textClass");
-            ltmp = this.mydom.createElement("keywords");
-            ltmp.setAttribute("scheme", "#lcsh");
-            if (this.subjectHeadingsLCC.size() > 0) {
-                for (String term : this.subjectHeadingsLCC) {
-                    ptmp = this.mydom.createElement("term");
-                    ptmp.appendChild(this.mydom.createTextNode(term));
-                    ltmp.appendChild(ptmp);
-                }
-            } else {
-                ptmp = this.mydom.createElement("term");
-                // ptmp.appendChild(doc.createTextNode(term));
-                ltmp.appendChild(ptmp);
-            }
-            tmp.appendChild(ltmp);
-            if (this.classificationLCC != null) {
-                ltmp = this.mydom.createElement("classCode");
-                ltmp.setAttribute("scheme", "#lc");
-                ltmp.appendChild(this.mydom.createTextNode(this.classificationLCC));
-                tmp.appendChild(ltmp);
-            }
-            if (this.projGCategory != null) {
-                ltmp = this.mydom.createElement("classCode");
-                ltmp.setAttribute("scheme", "#pg");
-                ltmp.appendChild(this.mydom.createTextNode(this.projGCategory));
-                tmp.appendChild(ltmp);
-            }
-            profileDesc.appendChild(tmp);
-            teiHeader.appendChild(profileDesc);
+    /**
+     *
+     * @param doc
+     * @return
+     */
+    public String getTEIXMLString(Document doc) {
+        try {
+            return XMLToolkit.serialize(doc);
+        } catch (TransformerException ex) {
+            Logger.getLogger(TEIDoc.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return "";
+    }
 
-            // --------------------------------------------
-            // revisionDesc in teiHeader
-            Element revisionDesc = this.mydom.createElement("revisionDesc");
-            // contains a list of change tags
-            tmp = this.mydom.createElement("change");
-            SimpleDateFormat ft = new SimpleDateFormat("yyyy-MM-dd");
-            Date t = new Date();
-            tmp.setAttribute("when", ft.format(t));
-            tmp.setAttribute("who", "#DC");
-            tmp.appendChild(this.mydom.createTextNode("Initial conversion from HTML to TEI XML."));
-            revisionDesc.appendChild(tmp);
-            teiHeader.appendChild(revisionDesc);
-            // create text section
-            // Element text = this.mydom.createElement("text");
-            // !!!
-            // skip that and just append the text-Element from the converted HTML-document.
-            // !!!
-            // root.appendChild(text);
-        } catch (ParserConfigurationException e) {
-            Logger.getLogger(Fetcher.class.getName()).log(Level.SEVERE, null, e);
+    /**
+     * Returns the creator without the life years.
+     *
+     * @return null if there is no creator
+     */
+    public String getAuthor() {
+        if (this.creator == null) {
+            return null;
+        }
+        // split year of from author string
+        Matcher matcher = TEIDoc.NAME_SPLIT_RE.matcher(this.creator);
+        if (matcher.find(0)) {
+            return matcher.group("name");
         }
+        return this.creator;
     }
 
     /**
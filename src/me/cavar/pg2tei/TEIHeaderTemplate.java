@@ -0,0 +1,539 @@
+/*
+ * TEIHeaderTemplate.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The TEI XML document around the converted text: XML declaration, TEI root
+ * and teiHeader. Most of the header is the same for every book (distributor,
+ * encodingDesc, classDecl taxonomies, ...), so a template is compiled once
+ * into UTF-8 bytes, and only the per-book fields are escaped and spliced in
+ * at the slots of the template.
+ *
+ * A template is a TEI document with <?pg2tei name?> processing instructions
+ * as slots. A slot on a line of its own is a block slot: its elements are
+ * written on lines of their own with the indentation of the slot, and it
+ * leaves no empty line when the book has nothing for it. In attribute
+ * values, the text slots (author, publisher, date, idno, today) are written
+ * as ${name}. The slots are:
+ *
+ *   title      title elements (main, sub, alt), block
+ *   author     author name without the life years
+ *   publisher  publisher
+ *   date       creation date (W3CDTF)
+ *   rights     licence paragraphs, block
+ *   idno       book number
+ *   source     creator and description paragraphs, block
+ *   language   langUsage element, block
+ *   keywords   term elements, block
+ *   classCode  LC classification and PG category, block
+ *   today      date of the conversion
+ *   text       where the converted <text>-element goes, required
+ *
+ * Distributors can use their own template with the -H option.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class TEIHeaderTemplate {
+
+    /**
+     * The template of the Language Technology Lab at EMU.
+     */
+    public static final String DEFAULT_TEMPLATE = ""
+            + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<?xml-model href=\"http://www.tei-c.org/release/xml/tei/custom/schema/relaxng/teilite.rng\""
+            + " schematypens=\"http://relaxng.org/ns/structure/1.0\"?>\n"
+            + "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\">\n"
+            + "  <teiHeader>\n"
+            + "    <fileDesc>\n"
+            + "      <titleStmt>\n"
+            + "        <title type=\"full\">\n"
+            + "          <?pg2tei title?>\n"
+            + "        </title>\n"
+            + "        <author><?pg2tei author?></author>\n"
+            + "      </titleStmt>\n"
+            + "      <publicationStmt>\n"
+            + "        <publisher><?pg2tei publisher?></publisher>\n"
+            + "        <date><?pg2tei date?></date>\n"
+            + "        <availability>\n"
+            + "          <licence>\n"
+            + "            <?pg2tei rights?>\n"
+            + "          </licence>\n"
+            + "        </availability>\n"
+            + "        <distributor>\n"
+            + "          <name xml:id=\"DC\">Damir Cavar</name>\n"
+            + "          <name xml:id=\"LTL\">Language Technology Lab</name>\n"
+            + "          <name xml:id=\"ILIT\">Institute for Language Information and Technology</name>\n"
+            + "          <name xml:id=\"EMU\">Eastern Michigan University</name>\n"
+            + "          <address>\n"
+            + "            <addrLine>2000 E. Huron River Dr., Suite 104</addrLine>\n"
+            + "            <addrLine>Ypsilanti, MI 48197</addrLine>\n"
+            + "            <addrLine>USA</addrLine>\n"
+            + "          </address>\n"
+            + "        </distributor>\n"
+            + "        <idno><?pg2tei idno?></idno>\n"
+            + "      </publicationStmt>\n"
+            + "      <sourceDesc>\n"
+            + "        <p>This text was automatically converted from the corresponding HTML formated text"
+            + " found in the Project Gutenberg (http://www.gutenberg.org/) collection.</p>\n"
+            + "        <?pg2tei source?>\n"
+            + "      </sourceDesc>\n"
+            + "    </fileDesc>\n"
+            + "    <encodingDesc>\n"
+            + "      <appInfo>\n"
+            + "        <application ident=\"gutenberg2tei\" version=\"1.0\">\n"
+            + "          <desc>Conversion tool using the RDF file catalog and meta-information and conversion"
+            + " of HTML to TEI XML.</desc>\n"
+            + "        </application>\n"
+            + "      </appInfo>\n"
+            + "      <projectDesc>\n"
+            + "        <p>The conversion of the Project Gutenberg texts to the TEI XML format started as an"
+            + " independent project at ILIT, EMU.</p>\n"
+            + "      </projectDesc>\n"
+            + "      <samplingDecl>\n"
+            + "        <p></p>\n"
+            + "      </samplingDecl>\n"
+            + "      <classDecl>\n"
+            + "        <taxonomy xml:id=\"lcsh\">\n"
+            + "          <bibl>Library of Congress Subject Headings</bibl>\n"
+            + "        </taxonomy>\n"
+            + "        <taxonomy xml:id=\"lc\">\n"
+            + "          <bibl>Library of Congress Classification</bibl>\n"
+            + "        </taxonomy>\n"
+            + "        <taxonomy xml:id=\"pg\">\n"
+            + "          <bibl>Project Gutenberg Category</bibl>\n"
+            + "        </taxonomy>\n"
+            + "      </classDecl>\n"
+            + "    </encodingDesc>\n"
+            + "    <profileDesc>\n"
+            + "      <creation>\n"
+            + "        <date><?pg2tei date?></date>\n"
+            + "      </creation>\n"
+            + "      <?pg2tei language?>\n"
+            + "      <textClass>\n"
+            + "        <keywords scheme=\"#lcsh\">\n"
+            + "          <?pg2tei keywords?>\n"
+            + "        </keywords>\n"
+            + "        <?pg2tei classCode?>\n"
+            + "      </textClass>\n"
+            + "    </profileDesc>\n"
+            + "    <revisionDesc>\n"
+            + "      <change when=\"${today}\" who=\"#DC\">Initial conversion from HTML to TEI XML.</change>\n"
+            + "    </revisionDesc>\n"
+            + "  </teiHeader>\n"
+            + "  <?pg2tei text?>\n"
+            + "</TEI>\n";
+    /**
+     * The processing instruction target of the slots.
+     */
+    private static final String SLOT_TARGET = "pg2tei";
+    private static final String TEXT_SLOT = "text";
+    private static final HashSet<String> SLOTS = new HashSet<>(Arrays.asList("title", "author", "publisher",
+            "date", "rights", "idno", "source", "language", "keywords", "classCode", "today", TEXT_SLOT));
+    /**
+     * The slots with plain text, allowed in attribute values.
+     */
+    private static final HashSet<String> TEXT_SLOTS = new HashSet<>(Arrays.asList("author", "publisher",
+            "date", "idno", "today"));
+    /**
+     * The template used by TEIWriter.
+     */
+    private static TEIHeaderTemplate shared;
+    /**
+     * The constant parts, one more than there are slots.
+     */
+    private final ArrayList<byte[]> chunks = new ArrayList<>();
+    private final ArrayList<String> slots = new ArrayList<>();
+    /**
+     * The indentation of the block slots, null for inline slots.
+     */
+    private final ArrayList<String> indents = new ArrayList<>();
+    /**
+     * True for the slots in attribute values.
+     */
+    private final ArrayList<Boolean> inAttribute = new ArrayList<>();
+    /**
+     * The index of the text slot.
+     */
+    private int textSlot;
+
+    /**
+     * Constructor. Compiles a template.
+     *
+     * @param in the template
+     * @param systemId for error messages
+     * @throws XMLStreamException if the template is not well-formed, has an
+     * unknown slot or no text slot
+     */
+    public TEIHeaderTemplate(InputStream in, String systemId) throws XMLStreamException {
+        this.compile(XMLToolkit.createXMLStreamReader(in, systemId));
+    }
+
+    /**
+     * Returns the shared template, the default template unless configure()
+     * was called.
+     */
+    public static synchronized TEIHeaderTemplate getShared() {
+        if (TEIHeaderTemplate.shared == null) {
+            try {
+                TEIHeaderTemplate.shared = new TEIHeaderTemplate(new ByteArrayInputStream(
+                        DEFAULT_TEMPLATE.getBytes(StandardCharsets.UTF_8)), "default-template");
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return TEIHeaderTemplate.shared;
+    }
+
+    /**
+     * Replaces the shared template with the one in a file.
+     */
+    public static synchronized void configure(File templateFile) throws IOException, XMLStreamException {
+        try (InputStream in = new FileInputStream(templateFile)) {
+            TEIHeaderTemplate.shared = new TEIHeaderTemplate(in, templateFile.toURI().toString());
+        }
+    }
+
+    private void compile(XMLStreamReader r) throws XMLStreamException {
+        this.textSlot = -1;
+        StringBuilder cur = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        int depth = 0;
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        cur.append('<').append(qName(r.getPrefix(), r.getLocalName()));
+                        for (int i = 0; i < r.getNamespaceCount(); i++) {
+                            String prefix = r.getNamespacePrefix(i);
+                            cur.append(prefix == null || prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix);
+                            cur.append("=\"").append(escape(r.getNamespaceURI(i), true)).append('"');
+                        }
+                        for (int i = 0; i < r.getAttributeCount(); i++) {
+                            cur.append(' ').append(qName(r.getAttributePrefix(i), r.getAttributeLocalName(i)));
+                            cur.append("=\"");
+                            this.appendValue(cur, r.getAttributeValue(i), r);
+                            cur.append('"');
+                        }
+                        cur.append('>');
+                        depth++;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        cur.append("</").append(qName(r.getPrefix(), r.getLocalName())).append('>');
+                        depth--;
+                        if (depth == 0) {
+                            cur.append('\n');
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth > 0) {
+                            cur.append(escape(r.getText(), false));
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        cur.append("<!--").append(r.getText()).append("-->");
+                        if (depth == 0) {
+                            cur.append('\n');
+                        }
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        if (SLOT_TARGET.equals(r.getPITarget())) {
+                            String slot = r.getPIData() != null ? r.getPIData().trim() : "";
+                            if (!SLOTS.contains(slot)) {
+                                throw new XMLStreamException("Unknown template slot: " + slot, r.getLocation());
+                            }
+                            if (slot.equals(TEXT_SLOT)) {
+                                if (this.textSlot >= 0) {
+                                    throw new XMLStreamException("Second text slot", r.getLocation());
+                                }
+                                this.textSlot = this.slots.size();
+                            }
+                            // on a line of its own: a block slot
+                            int nl = cur.lastIndexOf("\n");
+                            String indent = null;
+                            if (nl >= 0 && cur.substring(nl + 1).trim().isEmpty()) {
+                                indent = cur.substring(nl + 1);
+                                cur.setLength(nl);
+                            }
+                            this.cut(cur, slot, indent, false);
+                        } else {
+                            cur.append("<?").append(r.getPITarget());
+                            if (r.getPIData() != null && !r.getPIData().isEmpty()) {
+                                cur.append(' ').append(r.getPIData());
+                            }
+                            cur.append("?>");
+                            if (depth == 0) {
+                                cur.append('\n');
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            r.close();
+        }
+        if (this.textSlot < 0) {
+            throw new XMLStreamException("The template has no <?" + SLOT_TARGET + " " + TEXT_SLOT + "?> slot");
+        }
+        this.chunks.add(cur.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Ends the current chunk at a slot.
+     */
+    private void cut(StringBuilder cur, String slot, String indent, boolean attribute) {
+        this.chunks.add(cur.toString().getBytes(StandardCharsets.UTF_8));
+        this.slots.add(slot);
+        this.indents.add(indent);
+        this.inAttribute.add(attribute);
+        cur.setLength(0);
+    }
+
+    /**
+     * Appends an attribute value, cutting at the ${name} text slots.
+     */
+    private void appendValue(StringBuilder cur, String value, XMLStreamReader r) throws XMLStreamException {
+        int pos = 0;
+        int start;
+        while ((start = value.indexOf("${", pos)) >= 0) {
+            int end = value.indexOf('}', start);
+            if (end < 0) {
+                break;
+            }
+            String slot = value.substring(start + 2, end);
+            if (!TEXT_SLOTS.contains(slot)) {
+                throw new XMLStreamException("Not a text slot: " + slot, r.getLocation());
+            }
+            cur.append(escape(value.substring(pos, start), true));
+            this.cut(cur, slot, null, true);
+            pos = end + 1;
+        }
+        cur.append(escape(value.substring(pos), true));
+    }
+
+    private static String qName(String prefix, String localName) {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    /**
+     * Writes everything up to the converted text: XML declaration, TEI
+     * root start tag and teiHeader.
+     */
+    public void writeHead(TEIDoc doc, OutputStream out) throws IOException {
+        this.write(doc, out, 0, this.textSlot);
+        String indent = this.indents.get(this.textSlot);
+        if (indent != null) {
+            out.write(("\n" + indent).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Writes everything after the converted text, at least the TEI root end
+     * tag.
+     */
+    public void writeTail(TEIDoc doc, OutputStream out) throws IOException {
+        this.write(doc, out, this.textSlot + 1, this.slots.size());
+    }
+
+    /**
+     * Writes the chunks from to to, with the slots between them.
+     */
+    private void write(TEIDoc doc, OutputStream out, int from, int to) throws IOException {
+        StringBuilder strb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            out.write(this.chunks.get(i));
+            strb.setLength(0);
+            this.fillSlot(doc, this.slots.get(i), this.indents.get(i), this.inAttribute.get(i), strb);
+            out.write(strb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(this.chunks.get(to));
+    }
+
+    /**
+     * Appends the per-book content of a slot, escaped.
+     */
+    private void fillSlot(TEIDoc doc, String slot, String indent, boolean attribute, StringBuilder strb) {
+        switch (slot) {
+            case "title":
+                // check for multi-line titles
+                int numTitles = doc.title.size();
+                if (numTitles > 0) {
+                    String[] subStrs = doc.title.get(numTitles - 1).split("\n");
+                    // the first one is main
+                    element(strb, indent, "title type=\"main\"", "title", subStrs[0]);
+                    // TODO
+                    // all others are sub should not be... but...
+                    for (int i = 1; i < subStrs.length; i++) {
+                        element(strb, indent, "title type=\"sub\"", "title", subStrs[i]);
+                    }
+                }
+                element(strb, indent, "title type=\"alt\"", "title", doc.friendlyTitle);
+                break;
+            case "author":
+                text(strb, indent, attribute, doc.getAuthor());
+                break;
+            case "publisher":
+                text(strb, indent, attribute, doc.publisher);
+                break;
+            case "date":
+                text(strb, indent, attribute, doc.createdW3CDTF);
+                break;
+            case "rights":
+                for (String right : doc.rights) {
+                    element(strb, indent, "p", "p", right);
+                }
+                break;
+            case "idno":
+                text(strb, indent, attribute, doc.id != null ? Integer.toString(doc.idN) : null);
+                break;
+            case "source":
+                if (doc.creator != null) {
+                    element(strb, indent, "p", "p", "Creator: " + doc.creator);
+                }
+                if (doc.description != null) {
+                    element(strb, indent, "p", "p", doc.description);
+                }
+                break;
+            case "language":
+                if (doc.languageCode != null) {
+                    newLine(strb, indent);
+                    strb.append("<langUsage>");
+                    element(strb, indent != null ? indent + "  " : null,
+                            "language ident=\"" + escape(doc.languageCode, true) + "\"", "language",
+                            Locale.forLanguageTag(doc.languageCode).getDisplayLanguage() + ".");
+                    newLine(strb, indent);
+                    strb.append("</langUsage>");
+                }
+                break;
+            case "keywords":
+                if (doc.subjectHeadingsLCC.size() > 0) {
+                    for (String term : doc.subjectHeadingsLCC) {
+                        element(strb, indent, "term", "term", term);
+                    }
+                } else {
+                    element(strb, indent, "term", "term", null);
+                }
+                break;
+            case "classCode":
+                if (doc.classificationLCC != null) {
+                    element(strb, indent, "classCode scheme=\"#lc\"", "classCode", doc.classificationLCC);
+                }
+                if (doc.projGCategory != null) {
+                    element(strb, indent, "classCode scheme=\"#pg\"", "classCode", doc.projGCategory);
+                }
+                break;
+            case "today":
+                text(strb, indent, attribute, LocalDate.now().toString());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void newLine(StringBuilder strb, String indent) {
+        if (indent != null) {
+            strb.append('\n').append(indent);
+        }
+    }
+
+    private static void text(StringBuilder strb, String indent, boolean attribute, String text) {
+        if (text != null) {
+            newLine(strb, indent);
+            strb.append(escape(text, attribute));
+        }
+    }
+
+    /**
+     * Appends an element with text content; null text makes it empty.
+     */
+    private static void element(StringBuilder strb, String indent, String startTag, String name, String text) {
+        newLine(strb, indent);
+        strb.append('<').append(startTag).append('>');
+        if (text != null) {
+            strb.append(escape(text, false));
+        }
+        strb.append("</").append(name).append('>');
+    }
+
+    /**
+     * Escapes text content or attribute values.
+     */
+    static String escape(String text, boolean attribute) {
+        StringBuilder strb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String rep = null;
+            switch (c) {
+                case '&':
+                    rep = "&amp;";
+                    break;
+                case '<':
+                    rep = "&lt;";
+                    break;
+                case '>':
+                    rep = "&gt;";
+                    break;
+                case '"':
+                    rep = attribute ? "&quot;" : null;
+                    break;
+                default:
+                    break;
+            }
+            if (rep != null) {
+                if (strb == null) {
+                    strb = new StringBuilder(text.length() + 16);
+                    strb.append(text, 0, i);
+                }
+                strb.append(rep);
+            } else if (strb != null) {
+                strb.append(c);
+            }
+        }
+        return strb != null ? strb.toString() : text;
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * TEIWriter.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Streams a TEI XML file to disk: the header from the TEIDoc through the
+ * compiled TEIHeaderTemplate, then the <text>-element, either converted on
+ * the fly from the HTML-file, copied event by event from the converter
+ * output on disk, or copied node by node from a DOM. The bytes go through a small buffer into a
+ * FileChannel as UTF-8, and the SHA-256 of the file is computed on the way,
+ * so the memory needed does not depend on the size of the book.
+ *
+ * Local file URLs (file:///.../<id>/) in attribute values are rewritten to
+ * relative ones as the attributes are written.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class TEIWriter implements Closeable {
+
+    private FileChannel channel;
+    private MessageDigest digest;
+    private OutputStream out;
+    private TEIStreamWriter writer;
+    private TEIHeaderTemplate template;
+    private TEIDoc doc;
+
+    /**
+     * Constructor. Creates or truncates the file.
+     *
+     * @param file
+     * @param fileID the book ID, for the file URLs to rewrite
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public TEIWriter(File file, String fileID) throws IOException, XMLStreamException {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.out = new BufferedOutputStream(new DigestOutputStream(
+                Channels.newOutputStream(this.channel), this.digest), 64 * 1024);
+        XMLStreamWriter w = XMLToolkit.createXMLStreamWriter(this.out, "UTF-8");
+        // file:///usr/local/share/ProcessProjectGutenberg/39180/
+        this.writer = new TEIStreamWriter(w, Pattern.compile("file:///.+/" + Pattern.quote(fileID) + "/"));
+    }
+
+    /**
+     * Returns the writer for the <text>-element, e.g. for HTMLToTEI.
+     */
+    public XMLStreamWriter getWriter() {
+        return this.writer;
+    }
+
+    /**
+     * Writes the XML declaration, the TEI root start tag and the header,
+     * from the shared TEIHeaderTemplate.
+     *
+     * @param doc
+     * @throws IOException
+     */
+    public void writeStart(TEIDoc doc) throws IOException {
+        this.template = TEIHeaderTemplate.getShared();
+        this.doc = doc;
+        // nothing went through the StAX writer yet
+        this.template.writeHead(doc, this.out);
+    }
+
+    /**
+     * Copies a DOM node (the <text>-element of a converted document) to the
+     * output, without importing it anywhere.
+     *
+     * @param root
+     * @throws XMLStreamException
+     */
+    public void writeNode(Node root) throws XMLStreamException {
+        Node node = root;
+        while (node != null) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    this.startElement(node);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    this.writer.writeCharacters(node.getNodeValue());
+                    break;
+                case Node.COMMENT_NODE:
+                    this.writer.writeComment(node.getNodeValue());
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    this.writer.writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+                    break;
+                default:
+                    break;
+            }
+            // depth first, without recursion
+            if (node.getNodeType() == Node.ELEMENT_NODE && node.getFirstChild() != null) {
+                node = node.getFirstChild();
+                continue;
+            }
+            while (node != null) {
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    this.writer.writeEndElement();
+                }
+                if (node == root) {
+                    node = null;
+                } else if (node.getNextSibling() != null) {
+                    node = node.getNextSibling();
+                    break;
+                } else {
+                    node = node.getParentNode();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the first <text>-element of a document, e.g. the output of
+     * odttotei, event by event from the reader to the output. Only the
+     * namespace declarations of its ancestors are kept on the way, so the
+     * memory needed does not depend on the size of the document.
+     *
+     * @param r
+     * @return false if there is no <text>-element
+     * @throws XMLStreamException
+     */
+    public boolean copyText(XMLStreamReader r) throws XMLStreamException {
+        // the declarations in scope as prefix, URI pairs, and where the
+        // declarations of each open element start
+        ArrayList<String[]> inScope = new ArrayList<>();
+        ArrayDeque<Integer> marks = new ArrayDeque<>();
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (r.getLocalName().equals("text")) {
+                    this.copyElement(r, inScope);
+                    return true;
+                }
+                marks.push(inScope.size());
+                for (int i = 0; i < r.getNamespaceCount(); i++) {
+                    String prefix = r.getNamespacePrefix(i);
+                    inScope.add(new String[]{prefix != null ? prefix : "", r.getNamespaceURI(i)});
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                int mark = marks.pop();
+                while (inScope.size() > mark) {
+                    inScope.remove(inScope.size() - 1);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the element the reader is at, with its subtree. The element
+     * gets the declarations in scope, so that it stands on its own.
+     */
+    private void copyElement(XMLStreamReader r, ArrayList<String[]> inScope) throws XMLStreamException {
+        int depth = 0;
+        do {
+            switch (r.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String prefix = r.getPrefix() != null ? r.getPrefix() : "";
+                    String ns = r.getNamespaceURI() != null ? r.getNamespaceURI() : "";
+                    this.writer.writeStartElement(prefix, r.getLocalName(), ns);
+                    // later declarations of a prefix win
+                    LinkedHashMap<String, String> decls = new LinkedHashMap<>();
+                    if (depth == 0) {
+                        for (String[] d : inScope) {
+                            decls.put(d[0], d[1]);
+                        }
+                    }
+                    for (int i = 0; i < r.getNamespaceCount(); i++) {
+                        String p = r.getNamespacePrefix(i);
+                        decls.put(p != null ? p : "", r.getNamespaceURI(i));
+                    }
+                    for (Map.Entry<String, String> d : decls.entrySet()) {
+                        if (d.getKey().isEmpty()) {
+                            this.writer.writeDefaultNamespace(d.getValue());
+                        } else {
+                            this.writer.writeNamespace(d.getKey(), d.getValue());
+                        }
+                    }
+                    for (int i = 0; i < r.getAttributeCount(); i++) {
+                        String ans = r.getAttributeNamespace(i);
+                        if (ans != null && !ans.isEmpty()) {
+                            String ap = r.getAttributePrefix(i);
+                            this.writer.writeAttribute(ap != null ? ap : "", ans, r.getAttributeLocalName(i),
+                                    r.getAttributeValue(i));
+                        } else {
+                            this.writer.writeAttribute(r.getAttributeLocalName(i), r.getAttributeValue(i));
+                        }
+                    }
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    this.writer.writeEndElement();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    this.writer.writeCharacters(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    this.writer.writeComment(r.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    this.writer.writeProcessingInstruction(r.getPITarget(), r.getPIData());
+                    break;
+                default:
+                    break;
+            }
+            if (depth > 0) {
+                r.next();
+            }
+        } while (depth > 0);
+    }
+
+    private void startElement(Node node) throws XMLStreamException {
+        String prefix = node.getPrefix() != null ? node.getPrefix() : "";
+        String local = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+        String ns = node.getNamespaceURI() != null ? node.getNamespaceURI() : "";
+        this.writer.writeStartElement(prefix, local, ns);
+        NamedNodeMap attrs = node.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr a = (Attr) attrs.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI())
+                    || a.getName().equals("xmlns") || a.getName().startsWith("xmlns:")) {
+                if (a.getName().equals("xmlns")) {
+                    this.writer.writeDefaultNamespace(a.getValue());
+                } else {
+                    this.writer.writeNamespace(a.getName().substring(6), a.getValue());
+                }
+            } else if (a.getNamespaceURI() != null) {
+                this.writer.writeAttribute(a.getPrefix() != null ? a.getPrefix() : "",
+                        a.getNamespaceURI(), a.getLocalName(), a.getValue());
+            } else {
+                this.writer.writeAttribute(a.getName(), a.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes the rest of the template, at least the end tag of the root,
+     * and forces the file to disk.
+     *
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    public void writeEnd() throws XMLStreamException, IOException {
+        this.writer.writeEndDocument();
+        this.writer.flush();
+        this.template.writeTail(this.doc, this.out);
+        this.out.flush();
+        this.channel.force(true);
+    }
+
+    /**
+     * Returns the number of bytes written.
+     */
+    public long getLength() throws IOException {
+        return this.channel.size();
+    }
+
+    /**
+     * Returns the SHA-256 of the bytes written, call after writeEnd().
+     */
+    public String getChecksum() {
+        return Fetcher.toHex(this.digest.digest());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Rewrites file URLs in attribute values.
+     */
+    private static class TEIStreamWriter implements XMLStreamWriter {
+
+        private final XMLStreamWriter w;
+        private final Pattern fileURL;
+
+        TEIStreamWriter(XMLStreamWriter w, Pattern fileURL) {
+            this.w = w;
+            this.fileURL = fileURL;
+        }
+
+        private String rewrite(String value) {
+            if (value == null || !value.contains("file:")) {
+                return value;
+            }
+            return this.fileURL.matcher(value).replaceAll("");
+        }
+
+        @Override
+        public void writeStartElement(String localName) throws XMLStreamException {
+            this.w.writeStartElement(localName);
+        }
+
+        @Override
+        public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+            this.w.writeStartElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            this.w.writeStartElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+            this.w.writeEmptyElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            this.w.writeEmptyElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEmptyElement(String localName) throws XMLStreamException {
+            this.w.writeEmptyElement(localName);
+        }
+
+        @Override
+        public void writeEndElement() throws XMLStreamException {
+            this.w.writeEndElement();
+        }
+
+        @Override
+        public void writeEndDocument() throws XMLStreamException {
+            this.w.writeEndDocument();
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            this.w.close();
+        }
+
+        @Override
+        public void flush() throws XMLStreamException {
+            this.w.flush();
+        }
+
+        @Override
+        public void writeAttribute(String localName, String value) throws XMLStreamException {
+            this.w.writeAttribute(localName, this.rewrite(value));
+        }
+
+        @Override
+        public void writeAttribute(String prefix, String namespaceURI, String localName, String value)
+                throws XMLStreamException {
+            this.w.writeAttribute(prefix, namespaceURI, localName, this.rewrite(value));
+        }
+
+        @Override
+        public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+            this.w.writeAttribute(namespaceURI, localName, this.rewrite(value));
+        }
+
+        @Override
+        public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+            this.w.writeNamespace(prefix, namespaceURI);
+        }
+
+        @Override
+        public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+            this.w.writeDefaultNamespace(namespaceURI);
+        }
+
+        @Override
+        public void writeComment(String data) throws XMLStreamException {
+            this.w.writeComment(data);
+        }
+
+        @Override
+        public void writeProcessingInstruction(String target) throws XMLStreamException {
+            this.w.writeProcessingInstruction(target);
+        }
+
+        @Override
+        public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+            this.w.writeProcessingInstruction(target, data);
+        }
+
+        @Override
+        public void writeCData(String data) throws XMLStreamException {
+            this.w.writeCData(data);
+        }
+
+        @Override
+        public void writeDTD(String dtd) throws XMLStreamException {
+            this.w.writeDTD(dtd);
+        }
+
+        @Override
+        public void writeEntityRef(String name) throws XMLStreamException {
+            this.w.writeEntityRef(name);
+        }
+
+        @Override
+        public void writeStartDocument() throws XMLStreamException {
+            this.w.writeStartDocument();
+        }
+
+        @Override
+        public void writeStartDocument(String version) throws XMLStreamException {
+            this.w.writeStartDocument(version);
+        }
+
+        @Override
+        public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+            this.w.writeStartDocument(encoding, version);
+        }
+
+        @Override
+        public void writeCharacters(String text) throws XMLStreamException {
+            this.w.writeCharacters(text);
+        }
+
+        @Override
+        public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+            this.w.writeCharacters(text, start, len);
+        }
+
+        @Override
+        public String getPrefix(String uri) throws XMLStreamException {
+            return this.w.getPrefix(uri);
+        }
+
+        @Override
+        public void setPrefix(String prefix, String uri) throws XMLStreamException {
+            this.w.setPrefix(prefix, uri);
+        }
+
+        @Override
+        public void setDefaultNamespace(String uri) throws XMLStreamException {
+            this.w.setDefaultNamespace(uri);
+        }
+
+        @Override
+        public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+            this.w.setNamespaceContext(context);
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            return this.w.getNamespaceContext();
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return this.w.getProperty(name);
+        }
+    }
+}
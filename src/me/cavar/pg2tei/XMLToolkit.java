@@ -0,0 +1,331 @@
+/*
+ * XMLToolkit.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * The XML machinery shared by all classes: the JAXP factories are looked
+ * up once, document builders, SAX parsers, serializers and compiled XPath
+ * expressions are kept per thread and reused for every book, and compiled
+ * XSLT stylesheets (Templates) are cached by file. Stylesheets are compiled
+ * with Saxon, serializing uses the processor of the JDK. None of the JAXP
+ * objects handed out here may be passed to another thread.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import net.sf.saxon.TransformerFactoryImpl;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public final class XMLToolkit {
+
+    /**
+     * The prefixes of the Project Gutenberg RDF.
+     */
+    private static final Map<String, String> PG_PREFIXES;
+
+    static {
+        HashMap<String, String> m = new HashMap<>();
+        m.put("rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
+        m.put("cc", "http://web.resource.org/cc/");
+        m.put("dcam", "http://purl.org/dc/dcam/");
+        m.put("dcterms", "http://purl.org/dc/terms/");
+        m.put("marcrel", "http://www.loc.gov/loc.terms/relators/");
+        m.put("pgterms", "http://www.gutenberg.org/2009/pgterms/");
+        PG_PREFIXES = Collections.unmodifiableMap(m);
+    }
+    /**
+     * Namespace context for XPath expressions over the Project Gutenberg
+     * RDF, immutable and shared.
+     */
+    public static final NamespaceContext PG_NAMESPACES = new NamespaceContext() {
+        @Override
+        public String getNamespaceURI(String prefix) {
+            String uri = PG_PREFIXES.get(prefix);
+            return uri != null ? uri : XMLConstants.NULL_NS_URI;
+        }
+
+        @Override
+        public String getPrefix(String uri) {
+            for (Map.Entry<String, String> e : PG_PREFIXES.entrySet()) {
+                if (e.getValue().equals(uri)) {
+                    return e.getKey();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String uri) {
+            String prefix = this.getPrefix(uri);
+            if (prefix == null) {
+                return Collections.<String>emptyList().iterator();
+            }
+            return Collections.singletonList(prefix).iterator();
+        }
+    };
+    /**
+     * The factories; only used while holding their lock, since JAXP does
+     * not promise thread-safe factories.
+     */
+    private static final DocumentBuilderFactory BUILDER_FACTORY;
+    private static final SAXParserFactory SAX_FACTORY;
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newDefaultInstance();
+    /**
+     * Saxon for the stylesheets, the odttotei stylesheets are XSLT 2.0,
+     * which the processor of the JDK does not know.
+     */
+    private static final TransformerFactory XSLT_FACTORY = new TransformerFactoryImpl();
+    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // text in one piece per event
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+        BUILDER_FACTORY.setNamespaceAware(true);
+        SAX_FACTORY = SAXParserFactory.newInstance();
+        try {
+            // we have to switch of SECURE_PROCESSING because of the limits
+            // we have more than 64,000 replacements of entities etc.
+            SAX_FACTORY.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, false);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private static final ThreadLocal<DocumentBuilder> BUILDERS = new ThreadLocal<>();
+    private static final ThreadLocal<SAXParser> SAX_PARSERS = new ThreadLocal<>();
+    private static final ThreadLocal<Transformer> SERIALIZERS = new ThreadLocal<>();
+    private static final ThreadLocal<HashMap<String, XPathExpression>> XPATHS =
+            ThreadLocal.withInitial(HashMap::new);
+    /**
+     * Compiled stylesheets by absolute path; Templates are thread-safe.
+     */
+    private static final ConcurrentHashMap<String, Templates> TEMPLATES = new ConcurrentHashMap<>();
+
+    private XMLToolkit() {
+    }
+
+    /**
+     * Returns the namespace aware document builder of this thread, reset.
+     */
+    public static DocumentBuilder documentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = BUILDERS.get();
+        if (builder == null) {
+            synchronized (BUILDER_FACTORY) {
+                builder = BUILDER_FACTORY.newDocumentBuilder();
+            }
+            BUILDERS.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Returns a new, empty DOM document.
+     */
+    public static Document newDocument() throws ParserConfigurationException {
+        return documentBuilder().newDocument();
+    }
+
+    /**
+     * Parses a document with the builder of this thread.
+     */
+    public static Document parse(InputSource source) throws ParserConfigurationException, SAXException, IOException {
+        return documentBuilder().parse(source);
+    }
+
+    /**
+     * Returns the SAX parser of this thread, reset. Secure processing is
+     * switched off for the entity-heavy catalog.
+     */
+    public static SAXParser saxParser() throws ParserConfigurationException, SAXException {
+        SAXParser parser = SAX_PARSERS.get();
+        if (parser == null) {
+            synchronized (SAX_FACTORY) {
+                parser = SAX_FACTORY.newSAXParser();
+            }
+            SAX_PARSERS.set(parser);
+        } else {
+            parser.reset();
+        }
+        return parser;
+    }
+
+    /**
+     * Returns the serializer of this thread: UTF-8, with XML declaration,
+     * indented by two spaces. Callers must not change its settings.
+     */
+    public static Transformer serializer() throws TransformerConfigurationException {
+        Transformer trans = SERIALIZERS.get();
+        if (trans == null) {
+            synchronized (TRANSFORMER_FACTORY) {
+                trans = TRANSFORMER_FACTORY.newTransformer();
+            }
+            trans.setOutputProperty(OutputKeys.INDENT, "yes");
+            trans.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+            trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+            trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+            SERIALIZERS.set(trans);
+        }
+        return trans;
+    }
+
+    /**
+     * Serializes a DOM node with the serializer of this thread.
+     */
+    public static void serialize(Node node, Result result) throws TransformerException {
+        serializer().transform(new DOMSource(node), result);
+    }
+
+    /**
+     * Serializes a DOM node to a string.
+     */
+    public static String serialize(Node node) throws TransformerException {
+        StringWriter strw = new StringWriter();
+        serialize(node, new StreamResult(strw));
+        return strw.toString();
+    }
+
+    /**
+     * Returns the compiled XPath expression of this thread, with the
+     * Project Gutenberg RDF prefixes bound. Expressions are compiled once
+     * per thread.
+     */
+    public static XPathExpression xpath(String expression) throws XPathExpressionException {
+        HashMap<String, XPathExpression> compiled = XPATHS.get();
+        XPathExpression expr = compiled.get(expression);
+        if (expr == null) {
+            XPath xpath;
+            synchronized (XPATH_FACTORY) {
+                xpath = XPATH_FACTORY.newXPath();
+            }
+            xpath.setNamespaceContext(PG_NAMESPACES);
+            expr = xpath.compile(expression);
+            compiled.put(expression, expr);
+        }
+        return expr;
+    }
+
+    /**
+     * Returns the compiled stylesheet, compiling it on first use.
+     */
+    public static Templates templates(File stylesheet) throws TransformerConfigurationException {
+        String key = stylesheet.getAbsolutePath();
+        Templates templates = TEMPLATES.get(key);
+        if (templates == null) {
+            synchronized (XSLT_FACTORY) {
+                templates = TEMPLATES.get(key);
+                if (templates == null) {
+                    templates = XSLT_FACTORY.newTemplates(new StreamSource(stylesheet));
+                    TEMPLATES.put(key, templates);
+                }
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * Returns a new SAX handler that runs a compiled stylesheet on the
+     * events it receives, to chain stylesheets without a tree in between.
+     */
+    public static TransformerHandler transformerHandler(Templates templates) throws TransformerConfigurationException {
+        synchronized (XSLT_FACTORY) {
+            if (!XSLT_FACTORY.getFeature(SAXTransformerFactory.FEATURE)) {
+                throw new TransformerConfigurationException("The XSLT processor cannot be chained with SAX");
+            }
+            return ((SAXTransformerFactory) XSLT_FACTORY).newTransformerHandler(templates);
+        }
+    }
+
+    /**
+     * Creates a namespace aware, coalescing StAX reader.
+     */
+    public static XMLStreamReader createXMLStreamReader(InputStream in, String systemId) throws XMLStreamException {
+        synchronized (INPUT_FACTORY) {
+            return INPUT_FACTORY.createXMLStreamReader(systemId, in);
+        }
+    }
+
+    /**
+     * Creates a StAX writer to out.
+     */
+    public static XMLStreamWriter createXMLStreamWriter(OutputStream out, String encoding) throws XMLStreamException {
+        synchronized (OUTPUT_FACTORY) {
+            return OUTPUT_FACTORY.createXMLStreamWriter(out, encoding);
+        }
+    }
+
+    /**
+     * Creates a StAX writer to a result, e.g. a DOMResult.
+     */
+    public static XMLStreamWriter createXMLStreamWriter(Result result) throws XMLStreamException {
+        synchronized (OUTPUT_FACTORY) {
+            return OUTPUT_FACTORY.createXMLStreamWriter(result);
+        }
+    }
+}
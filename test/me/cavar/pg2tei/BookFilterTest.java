@@ -0,0 +1,160 @@
+/*
+ * BookFilterTest.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Compiles filter expressions and tests them against a few catalog
+ * entries: the precedence of not, and and or, quoted values that look
+ * like keywords, fields with several values, ID ranges, and expressions
+ * that must be rejected.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class BookFilterTest {
+
+    private static TEIDoc book(int id, String lang, String title, String... lcsh) {
+        TEIDoc doc = new TEIDoc();
+        doc.idN = id;
+        doc.languageCode = lang;
+        doc.title.add(title);
+        doc.subjectHeadingsLCC.addAll(Arrays.asList(lcsh));
+        return doc;
+    }
+
+    private static final TEIDoc ALICE = book(11, "en", "Alice's Adventures in Wonderland",
+            "Fantasy fiction", "Children's stories");
+    private static final TEIDoc FAUST = book(2229, "de", "Faust: Der Trag\u00f6die erster Teil",
+            "Tragedies");
+    private static final TEIDoc WAR = book(2600, "en", "War and Peace",
+            "Historical fiction", "Napoleonic Wars, 1800-1815 -- Fiction");
+
+    private static boolean matches(String expression, TEIDoc doc) {
+        return BookFilter.compile(expression).matches(doc);
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        String expr = "lang = de or lang = en and id > 2000";
+        assertTrue(matches(expr, FAUST));
+        assertTrue(matches(expr, WAR));
+        assertFalse(matches(expr, ALICE));
+        expr = "(lang = de or lang = en) and id > 2000";
+        assertTrue(matches(expr, FAUST));
+        assertFalse(matches(expr, ALICE));
+    }
+
+    @Test
+    public void notBindsTighterThanAnd() {
+        String expr = "not lang = de and id < 3000";
+        assertTrue(matches(expr, ALICE));
+        assertFalse(matches(expr, FAUST));
+        assertTrue(matches("not not lang = de", FAUST));
+        assertFalse(matches("not (lang = de or lang = en)", WAR));
+    }
+
+    @Test
+    public void quotedKeywordsAreValues() {
+        assertTrue(matches("title contains \"and\"", WAR));
+        assertFalse(matches("title contains \"and\"", FAUST));
+        assertTrue(matches("title contains 'not' or title startsWith \"War and\"", WAR));
+        assertTrue(matches("title contains \"(\" or title contains \": der\"", FAUST));
+        assertTrue(matches("lcsh in (\"Napoleonic Wars, 1800-1815 -- Fiction\", Tragedies)", WAR));
+    }
+
+    @Test
+    public void severalValuesMatchIfOneDoes() {
+        assertTrue(matches("lcsh contains fiction", ALICE));
+        assertTrue(matches("lcsh = \"children's stories\"", ALICE));
+        assertFalse(matches("lcsh = fiction", ALICE));
+    }
+
+    @Test
+    public void unequalMatchesIfNoValueIsEqual() {
+        assertFalse(matches("lcsh != \"Fantasy fiction\"", ALICE));
+        assertTrue(matches("lcsh != \"Fantasy fiction\"", WAR));
+        assertEquals(matches("not lcsh = \"Historical fiction\"", WAR),
+                matches("lcsh != \"Historical fiction\"", WAR));
+        // no value at all
+        assertTrue(matches("lcc != PR", ALICE));
+        assertFalse(matches("lcc = PR", ALICE));
+    }
+
+    @Test
+    public void idRanges() {
+        String expr = "id in (1-100, 2229, 2500-2599)";
+        assertTrue(matches(expr, ALICE));
+        assertTrue(matches(expr, FAUST));
+        assertFalse(matches(expr, WAR));
+        assertTrue(matches("id in (2600-2600)", WAR));
+        assertTrue(matches("id >= 2600", WAR));
+        assertFalse(matches("id != 2600", WAR));
+    }
+
+    @Test
+    public void malformedExpressionsAreRejected() {
+        for (String expr : new String[]{"", "lang", "lang =", "lang = en and", "(lang = en",
+            "lang = en)", "lang in (en, de", "lang in ()", "title = 'Faust", "color = red",
+            "lang like en", "id in (100-1)", "id in (a-z)", "id = eleven", "id contains 1",
+            "not", "lang = en or or lang = de", ") lang = en ("}) {
+            assertThrows(IllegalArgumentException.class, () -> BookFilter.compile(expr), expr);
+        }
+    }
+
+    @Test
+    public void deepExpressionsFailOrMatchWithoutOverflow() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            StringBuilder open = new StringBuilder();
+            StringBuilder close = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                open.append('(');
+                close.append(')');
+            }
+            String nested = open + "lang = en" + close;
+            assertThrows(IllegalArgumentException.class, () -> BookFilter.compile(nested));
+            assertThrows(IllegalArgumentException.class, () -> BookFilter.compile(open.toString()));
+
+            StringBuilder nots = new StringBuilder();
+            StringBuilder terms = new StringBuilder("id = 0");
+            for (int i = 1; i <= 100000; i++) {
+                nots.append("not ");
+                terms.append(" or id = ").append(i);
+            }
+            assertTrue(matches(nots + "lang = en", ALICE));
+            assertTrue(matches(terms.toString(), WAR));
+            assertFalse(matches(terms.toString().replace(" or ", " and "), WAR));
+        });
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * FetcherTest.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Downloads a stand-in catalog from a server on the loopback interface
+ * that fails on request, answers Range requests, and counts the requests
+ * it gets.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class FetcherTest {
+
+    @TempDir
+    File folder;
+    private HttpServer server;
+    private URL url;
+    private final byte[] catalog = new byte[100000];
+    private final AtomicInteger requests = new AtomicInteger(0);
+    /**
+     * The status of the next responses instead of the catalog, 0 for none.
+     */
+    private volatile int failWith;
+    private volatile int failures;
+
+    @BeforeEach
+    public void start() throws IOException {
+        for (int i = 0; i < this.catalog.length; i++) {
+            this.catalog[i] = (byte) (i * 31);
+        }
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+        this.url = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/catalog.rdf.zip");
+    }
+
+    @AfterEach
+    public void stop() {
+        this.server.stop(0);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        this.requests.incrementAndGet();
+        if (this.failWith != 0 && this.failures > 0) {
+            this.failures -= 1;
+            ex.sendResponseHeaders(this.failWith, -1);
+            ex.close();
+            return;
+        }
+        ex.getResponseHeaders().set("Content-Type", "application/zip");
+        ex.getResponseHeaders().set("ETag", "\"catalog\"");
+        String range = ex.getRequestHeaders().getFirst("Range");
+        int from = range != null ? Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-'))) : 0;
+        if (from >= this.catalog.length) {
+            ex.getResponseHeaders().set("Content-Range", "bytes */" + this.catalog.length);
+            ex.sendResponseHeaders(416, -1);
+            ex.close();
+            return;
+        }
+        if (range != null) {
+            ex.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + (this.catalog.length - 1) + "/" + this.catalog.length);
+        }
+        ex.sendResponseHeaders(range != null ? 206 : 200, this.catalog.length - from);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(this.catalog, from, this.catalog.length - from);
+        }
+    }
+
+    private String sha256(byte[] data) throws Exception {
+        return Fetcher.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private File part(File output) {
+        return new File(output.getPath() + ".part");
+    }
+
+    @Test
+    public void missingCatalogIsAskedForOnce() {
+        this.failWith = 404;
+        this.failures = 10;
+        File output = new File(this.folder, "catalog.rdf.zip");
+        HTTPClient.StatusException e = assertThrows(HTTPClient.StatusException.class,
+                () -> new Fetcher(null, null, null).getCatalog(this.url, output));
+        assertEquals(404, e.statusCode);
+        assertEquals(1, this.requests.get());
+    }
+
+    @Test
+    public void serverErrorIsRetried() throws Exception {
+        this.failWith = 503;
+        this.failures = 1;
+        File output = new File(this.folder, "catalog.rdf.zip");
+        String checksum = new Fetcher(null, null, null).getCatalog(this.url, output);
+        assertEquals(2, this.requests.get());
+        assertArrayEquals(this.catalog, Files.readAllBytes(output.toPath()));
+        assertEquals(this.sha256(this.catalog), checksum);
+    }
+
+    @Test
+    public void interruptedDownloadIsResumed() throws Exception {
+        File output = new File(this.folder, "catalog.rdf.zip");
+        Files.write(this.part(output).toPath(), Arrays.copyOf(this.catalog, 30000));
+        String checksum = new Fetcher(null, null, null).getCatalog(this.url, output);
+        assertArrayEquals(this.catalog, Files.readAllBytes(output.toPath()));
+        assertEquals(this.sha256(this.catalog), checksum);
+    }
+
+    @Test
+    public void completePartFileIsKept() throws Exception {
+        File output = new File(this.folder, "catalog.rdf.zip");
+        Files.write(this.part(output).toPath(), this.catalog);
+        String checksum = new Fetcher(null, null, null).getCatalog(this.url, output);
+        // one 416, the length matches
+        assertEquals(1, this.requests.get());
+        assertArrayEquals(this.catalog, Files.readAllBytes(output.toPath()));
+        assertEquals(this.sha256(this.catalog), checksum);
+    }
+
+    @Test
+    public void longerPartFileIsDownloadedAgain() throws Exception {
+        File output = new File(this.folder, "catalog.rdf.zip");
+        byte[] stale = Arrays.copyOf(this.catalog, this.catalog.length + 5000);
+        Files.write(this.part(output).toPath(), stale);
+        String checksum = new Fetcher(null, null, null).getCatalog(this.url, output);
+        // a 416 that does not match, then the whole file
+        assertEquals(2, this.requests.get());
+        assertArrayEquals(this.catalog, Files.readAllBytes(output.toPath()));
+        assertEquals(this.sha256(this.catalog), checksum);
+        assertFalse(this.part(output).exists());
+    }
+}
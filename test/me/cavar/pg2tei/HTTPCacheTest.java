@@ -0,0 +1,241 @@
+/*
+ * HTTPCacheTest.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Runs HTTPClient with an HTTPCache against a stand-in server on the
+ * loopback interface, which answers conditional requests with a 304 and
+ * counts the requests it gets.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class HTTPCacheTest {
+
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+
+    @TempDir
+    File cacheFolder;
+    private HttpServer server;
+    private URL base;
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final AtomicInteger notModified = new AtomicInteger(0);
+    /**
+     * The body and ETag the server has now, the ETag null for none.
+     */
+    private volatile String body = "<rdf:RDF/>";
+    private volatile String etag = "\"v1\"";
+    private volatile boolean gzip;
+
+    @BeforeEach
+    public void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+        this.base = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/");
+    }
+
+    @AfterEach
+    public void stop() {
+        this.server.stop(0);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        this.requests.incrementAndGet();
+        String tag = this.etag;
+        String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = ex.getRequestHeaders().getFirst("If-Modified-Since");
+        if (tag != null ? tag.equals(ifNoneMatch) : LAST_MODIFIED.equals(ifModifiedSince)) {
+            this.notModified.incrementAndGet();
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+        if (tag != null) {
+            ex.getResponseHeaders().set("ETag", tag);
+        }
+        ex.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+        byte[] bytes = this.body.getBytes(StandardCharsets.UTF_8);
+        if (this.gzip) {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            try (GZIPOutputStream gz = new GZIPOutputStream(bOut)) {
+                gz.write(bytes);
+            }
+            bytes = bOut.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        ex.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private HTTPClient client(long ttlSeconds) {
+        HTTPClient client = new HTTPClient(2000, 5000);
+        client.setCache(new HTTPCache(this.cacheFolder, ttlSeconds));
+        return client;
+    }
+
+    private static String text(HTTPClient.Response res) {
+        return new String(res.body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The number of bodies in the cache folder.
+     */
+    private long bodies() throws IOException {
+        try (Stream<Path> files = Files.walk(this.cacheFolder.toPath())) {
+            return files.filter(f -> f.toString().endsWith(".body")).count();
+        }
+    }
+
+    @Test
+    public void notModifiedReusesTheCachedBody() throws Exception {
+        HTTPClient client = this.client(0L);
+        URL url = new URL(this.base, "ebooks/11.rdf");
+
+        HTTPClient.Response first = client.get(url);
+        assertEquals("<rdf:RDF/>", text(first));
+        assertFalse(first.fromCache);
+
+        HTTPClient.Response again = client.get(url);
+        assertEquals(2, this.requests.get());
+        assertEquals(1, this.notModified.get());
+        assertEquals("<rdf:RDF/>", text(again));
+        assertTrue(again.fromCache);
+
+        HTTPClient.Response async = client.getAsync(url).get(10, TimeUnit.SECONDS);
+        assertEquals(2, this.notModified.get());
+        assertEquals("<rdf:RDF/>", text(async));
+        assertTrue(async.fromCache);
+    }
+
+    @Test
+    public void lastModifiedAloneRevalidates() throws Exception {
+        this.etag = null;
+        HTTPClient client = this.client(0L);
+        URL url = new URL(this.base, "ebooks/11.rdf");
+
+        client.get(url);
+        HTTPClient.Response again = client.get(url);
+        assertEquals(1, this.notModified.get());
+        assertEquals("<rdf:RDF/>", text(again));
+        assertTrue(again.fromCache);
+    }
+
+    @Test
+    public void changedBodyReplacesTheEntry() throws Exception {
+        HTTPClient client = this.client(0L);
+        URL url = new URL(this.base, "ebooks/11.rdf");
+
+        client.get(url);
+        this.body = "<rdf:RDF>new</rdf:RDF>";
+        this.etag = "\"v2\"";
+        HTTPClient.Response changed = client.get(url);
+        assertEquals(0, this.notModified.get());
+        assertEquals("<rdf:RDF>new</rdf:RDF>", text(changed));
+        assertFalse(changed.fromCache);
+
+        HTTPClient.Response again = client.get(url);
+        assertEquals(1, this.notModified.get());
+        assertEquals("<rdf:RDF>new</rdf:RDF>", text(again));
+        // the old body is gone
+        assertEquals(1, this.bodies());
+    }
+
+    @Test
+    public void encodedBodyIsStoredDecoded() throws Exception {
+        this.gzip = true;
+        HTTPClient client = this.client(0L);
+        URL url = new URL(this.base, "files/11/11-h/11-h.htm");
+
+        assertEquals("<rdf:RDF/>", text(client.get(url)));
+        HTTPClient.Response again = client.get(url);
+        assertEquals(1, this.notModified.get());
+        assertEquals("<rdf:RDF/>", text(again));
+    }
+
+    @Test
+    public void streamsAndDownloadsReadTheCacheFile() throws Exception {
+        HTTPClient client = this.client(0L);
+        URL url = new URL(this.base, "files/11/11-h/11-h.htm");
+        Path file = this.cacheFolder.toPath().resolve("11-h.htm");
+
+        client.downloadAsync(url, file).get(10, TimeUnit.SECONDS);
+        assertEquals("<rdf:RDF/>", Files.readString(file));
+        Files.delete(file);
+        HTTPClient.Response res = client.downloadAsync(url, file).get(10, TimeUnit.SECONDS);
+        assertTrue(res.fromCache);
+        assertEquals("<rdf:RDF/>", Files.readString(file));
+        try (InputStream in = client.getStream(url)) {
+            assertEquals("<rdf:RDF/>", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(2, this.notModified.get());
+    }
+
+    @Test
+    public void entryWithinTheTTLSendsNoRequest() throws Exception {
+        HTTPClient client = this.client(3600L);
+        URL url = new URL(this.base, "ebooks/11.rdf");
+
+        client.get(url);
+        HTTPClient.Response again = client.get(url);
+        HTTPClient.Response async = client.getAsync(url).get(10, TimeUnit.SECONDS);
+        assertEquals(1, this.requests.get());
+        assertEquals("<rdf:RDF/>", text(again));
+        assertTrue(again.fromCache);
+        assertTrue(async.fromCache);
+
+        // a new client, as in the next run, finds the entry on disk
+        assertTrue(this.client(3600L).get(url).fromCache);
+        assertEquals(1, this.requests.get());
+    }
+}
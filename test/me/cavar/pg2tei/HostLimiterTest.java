@@ -0,0 +1,187 @@
+/*
+ * HostLimiterTest.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Runs HTTPClient with a HostLimiter against stand-in servers on the
+ * loopback interface: one that throttles with 429 responses above a few
+ * requests in flight, and one that stalls a body. When latency counts as
+ * overload is checked without a server, its timing would be that of the
+ * test machine.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class HostLimiterTest {
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+
+    private URL start(HttpHandler handler) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.serverThreads = Executors.newFixedThreadPool(64);
+        this.server.setExecutor(this.serverThreads);
+        this.server.createContext("/", handler);
+        this.server.start();
+        return new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/");
+    }
+
+    @AfterEach
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.serverThreads.shutdownNow();
+        }
+    }
+
+    private static void send(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Fetches a URL again while the host answers with 429.
+     */
+    private static CompletableFuture<HTTPClient.Response> getUntilServed(final HTTPClient client, final URL url) {
+        return client.fetchAsync(url, Collections.<String, String>emptyMap()).thenCompose(res -> res.statusCode == 429
+                ? getUntilServed(client, url) : CompletableFuture.completedFuture(res));
+    }
+
+    @Test
+    public void throttlingHostIsBackedOffAndServesAll() throws Exception {
+        final int capacity = 8;
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger throttled = new AtomicInteger(0);
+        URL base = this.start(ex -> {
+            try {
+                if (inFlight.incrementAndGet() > capacity) {
+                    throttled.incrementAndGet();
+                    ex.getResponseHeaders().set("Retry-After", "1");
+                    send(ex, 429, "");
+                    return;
+                }
+                Thread.sleep(20L);
+                send(ex, 200, "book");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        HTTPClient client = new HTTPClient(2000, 5000);
+        client.setLimiter(new HostLimiter(0.0, 32));
+        long backoffs = Metrics.getShared().getCount(Metrics.HOST_BACKOFFS);
+
+        final int books = 150;
+        List<CompletableFuture<HTTPClient.Response>> all = new ArrayList<>();
+        for (int i = 0; i < books; i++) {
+            all.add(getUntilServed(client, new URL(base, "ebooks/" + i + ".rdf")));
+        }
+        for (CompletableFuture<HTTPClient.Response> f : all) {
+            assertEquals("book", new String(f.get(60, TimeUnit.SECONDS).body, StandardCharsets.UTF_8));
+        }
+        assertTrue(Metrics.getShared().getCount(Metrics.HOST_BACKOFFS) > backoffs, "no backoff");
+        // all at once would be turned away nearly all
+        assertTrue(throttled.get() < books / 2, throttled.get() + " requests throttled");
+    }
+
+    @Test
+    public void jitterOfAFastHostIsNoOverload() {
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        // a few ms on a host that answers in 1 ms
+        assertFalse(HostLimiter.overloaded(8 * ms, ms, 100));
+        // a slow host twice as slow
+        assertTrue(HostLimiter.overloaded(220 * ms, 100 * ms, 100));
+        // the first responses, with the connections still opening
+        assertFalse(HostLimiter.overloaded(220 * ms, 100 * ms, 5));
+        // slower, but not twice
+        assertFalse(HostLimiter.overloaded(180 * ms, 100 * ms, 100));
+    }
+
+    @Test
+    public void permitIsReleasedWhenTheHeadersArrive() throws Exception {
+        final CountDownLatch rest = new CountDownLatch(1);
+        URL base = this.start(ex -> {
+            try {
+                if (ex.getRequestURI().getPath().endsWith("slow.htm")) {
+                    // the headers and a first chunk, the rest later
+                    ex.sendResponseHeaders(200, 0);
+                    try (OutputStream out = ex.getResponseBody()) {
+                        out.write("first ".getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                        rest.await(30, TimeUnit.SECONDS);
+                        out.write("last".getBytes(StandardCharsets.UTF_8));
+                    }
+                } else {
+                    send(ex, 200, "book");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        HTTPClient client = new HTTPClient(2000, 10000);
+        // one request in flight to the host
+        client.setLimiter(new HostLimiter(0.0, 1));
+
+        try (InputStream slow = client.getStream(new URL(base, "slow.htm"))) {
+            // sent while the body of the other is still coming
+            HTTPClient.Response res = client.getAsync(new URL(base, "ebooks/1.rdf")).get(5, TimeUnit.SECONDS);
+            assertEquals("book", new String(res.body, StandardCharsets.UTF_8));
+            rest.countDown();
+            assertEquals("first last", new String(slow.readAllBytes(), StandardCharsets.UTF_8));
+        } finally {
+            rest.countDown();
+        }
+    }
+}
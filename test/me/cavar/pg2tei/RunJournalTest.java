@@ -0,0 +1,251 @@
+/*
+ * RunJournalTest.java
+ *
+ * (C) 2012 by Damir Cavar
+ *
+ * Interrupts a run over a generated catalog of a few MB, with the books
+ * finishing out of order, and resumes it the way Gutenberg2TEI does: the
+ * journal is loaded, the catalog is opened at the low-water offset, and the
+ * entries of finished books are skipped. Also loads a journal whose last
+ * record was cut off.
+ *
+ *
+ * License:
+ * ========
+ *
+ * Copyright 2012 Damir Cavar (http://cavar.me/damir/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package me.cavar.pg2tei;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ *
+ * @author Damir Cavar
+ */
+public class RunJournalTest {
+
+    private static final String IDENTITY = "catalog.rdf";
+    private static final int BOOKS = 6000;
+    @TempDir
+    File folder;
+
+    /**
+     * A catalog of entries of different lengths, about 3.5 MB.
+     */
+    private static byte[] catalog() {
+        StringBuilder strb = new StringBuilder();
+        strb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<!-- a stand-in for catalog.rdf -->\n")
+                .append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n")
+                .append("  xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n")
+                .append("  xmlns:pgterms=\"http://www.gutenberg.org/rdfterms/\">\n");
+        for (int i = 1; i <= BOOKS; i++) {
+            strb.append("<pgterms:etext rdf:ID=\"etext").append(i).append("\">\n")
+                    .append("  <dc:title>Book ").append(i).append("</dc:title>\n")
+                    .append("  <dc:description>");
+            for (int j = 0; j < 400 + (i * 37) % 400; j++) {
+                strb.append((char) ('a' + (i + j) % 26));
+            }
+            strb.append("</dc:description>\n</pgterms:etext>\n");
+        }
+        strb.append("</rdf:RDF>\n");
+        return strb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stops the parse like a crash.
+     */
+    private static class Crash extends SAXException {
+
+        Crash() {
+            super("crash");
+        }
+    }
+
+    /**
+     * Hands the entries of the catalog to the journal like RDFParser and
+     * BookPipeline.
+     */
+    private abstract static class Entries extends DefaultHandler {
+
+        private final CatalogStream in;
+        private long offset;
+        private int id;
+
+        Entries(CatalogStream in) {
+            this.in = in;
+        }
+
+        abstract void parsed(long offset);
+
+        abstract void entry(int id, long offset) throws SAXException;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (qName.equals("pgterms:etext")) {
+                this.offset = this.in.position();
+                this.id = Integer.parseInt(attributes.getValue("rdf:ID").substring("etext".length()));
+                this.parsed(this.offset);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (qName.equals("pgterms:etext")) {
+                this.entry(this.id, this.offset);
+            }
+        }
+    }
+
+    private static void parse(Entries entries) throws Exception {
+        try {
+            XMLToolkit.saxParser().parse(entries.in, entries);
+        } catch (Crash e) {
+            // the run stopped
+        }
+    }
+
+    @Test
+    public void resumedRunConvertsEveryBookOnce() throws Exception {
+        final byte[] catalog = catalog();
+        final File journalFile = new File(this.folder, "pg2tei.journal");
+        final Set<Integer> finished = new HashSet<>();
+        final int crashAt = 4500;
+
+        // the first run: the books finish in a random order, up to 64 in
+        // the pipeline, and the run stops in the middle of the catalog
+        final RunJournal first = new RunJournal(journalFile);
+        assertEquals(0L, first.startCatalog(IDENTITY));
+        final Random random = new Random(42L);
+        final List<Integer> pipeline = new ArrayList<>();
+        CatalogStream in = CatalogStream.open(new ByteArrayInputStream(catalog), 0L);
+        parse(new Entries(in) {
+            @Override
+            void parsed(long offset) {
+                first.parsed(offset);
+            }
+
+            @Override
+            void entry(int id, long offset) throws SAXException {
+                if (id == crashAt) {
+                    throw new Crash();
+                }
+                first.begin(id, offset, "fp" + id);
+                first.record(id, RunJournal.FETCHED);
+                pipeline.add(id);
+                if (pipeline.size() > 64 || random.nextInt(4) == 0) {
+                    int done = pipeline.remove(random.nextInt(pipeline.size()));
+                    first.finish(done, RunJournal.WRITTEN, "sha" + done);
+                    finished.add(done);
+                }
+            }
+        });
+        first.close();
+        assertFalse(pipeline.isEmpty());
+
+        // the second run, as in Gutenberg2TEI
+        final RunJournal second = new RunJournal(journalFile);
+        long resume = second.startCatalog(IDENTITY);
+        // a resume that splices the prolog onto the catalog
+        assertTrue(resume > CatalogStream.SLACK, "resume at " + resume);
+        for (int id : finished) {
+            assertTrue(second.isDone(id), "book " + id + " not done");
+        }
+        for (int id : pipeline) {
+            assertFalse(second.isDone(id), "book " + id + " done");
+        }
+        final List<Integer> seen = new ArrayList<>();
+        final List<Integer> converted = new ArrayList<>();
+        in = CatalogStream.open(new ByteArrayInputStream(catalog), resume);
+        parse(new Entries(in) {
+            @Override
+            void parsed(long offset) {
+                second.parsed(offset);
+            }
+
+            @Override
+            void entry(int id, long offset) {
+                seen.add(id);
+                if (!second.isDone(id)) {
+                    converted.add(id);
+                }
+            }
+        });
+        second.close();
+
+        // the rest of the catalog from a whole entry on, in order
+        int from = seen.get(0);
+        assertTrue(from > 1, "parsed from the start");
+        assertEquals(BOOKS - from + 1, seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(from + i, (int) seen.get(i));
+        }
+        // every book is converted, none twice
+        Set<Integer> all = new HashSet<>(finished);
+        for (int id : converted) {
+            assertTrue(all.add(id), "book " + id + " converted twice");
+        }
+        assertEquals(BOOKS, all.size());
+    }
+
+    @Test
+    public void recordCutOffByACrashIsIgnored() throws IOException {
+        File journalFile = new File(this.folder, "pg2tei.journal");
+        RunJournal first = new RunJournal(journalFile);
+        first.startCatalog(IDENTITY);
+        first.parsed(2000L);
+        first.begin(1, 1000L, "fp1");
+        first.begin(2, 2000L, "fp2");
+        first.finish(2, RunJournal.WRITTEN, "sha2");
+        first.close();
+        // the start of a record with a later low-water offset
+        Files.write(journalFile.toPath(), "WRITTEN\t1\tsha1\t5000000\tfp".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        RunJournal second = new RunJournal(journalFile);
+        assertEquals(1000L, second.startCatalog(IDENTITY));
+        assertTrue(second.isDone(2));
+        assertFalse(second.isDone(1));
+        // the journal was compacted and goes on after the whole records
+        second.begin(1, 1000L, "fp1");
+        second.finish(1, RunJournal.WRITTEN, "sha1");
+        second.close();
+        RunJournal third = new RunJournal(journalFile);
+        assertTrue(third.isDone(1));
+        assertTrue(third.isDone(2));
+        third.close();
+    }
+}